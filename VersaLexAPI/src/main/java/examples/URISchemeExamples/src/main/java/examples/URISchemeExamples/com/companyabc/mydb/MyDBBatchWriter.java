@@ -0,0 +1,369 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The <code>MyDBBatchWriter</code> class inserts small records written
+ * concurrently by several
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBOutputStream}s
+ * with one JDBC batch and one commit (group commit), instead of one
+ * connection, <code>INSERT</code> and commit per record.
+ *
+ * <p> A single background thread collects queued records until the batch
+ * holds <code>cleo.uri.mydb.batch.maxrecords</code> records or
+ * <code>cleo.uri.mydb.batch.maxbytes</code> bytes, or until the first record
+ * has waited <code>cleo.uri.mydb.batch.maxdelay</code> MS. It then inserts
+ * the batch in a single transaction.
+ * {@link #write(String, String, MyDBPayloadBuffer, long, String)} returns
+ * as soon as the transaction holding that record has been committed.
+ * If the batch fails, its records are retried one at a time so a single bad
+ * record does not fail the others.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.batch</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, small records are written through the batch
+ *         writer</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.batch.maxrecordsize</td>
+ *     <td>65536</td>
+ *     <td>Largest record in bytes written through the batch writer; larger
+ *         records are inserted directly</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.batch.maxrecords</td>
+ *     <td>100</td>
+ *     <td>Maximum number of records per batch</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.batch.maxbytes</td>
+ *     <td>4194304</td>
+ *     <td>Maximum number of bytes per batch</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.batch.maxdelay</td>
+ *     <td>20</td>
+ *     <td>Maximum time in MS a record waits for the batch to fill up</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBBatchWriter implements Runnable {
+  private static MyDBBatchWriter instance = null;
+
+  // Batch settings
+  private final long maxRecordSize;
+  private final int  maxRecords;
+  private final long maxBytes;
+  private final long maxDelayMS;
+
+  // Queued records (guarded by this)
+  private final LinkedList<Request> queue = new LinkedList<Request>();
+  private long queuedBytes = 0;
+
+  // Statistics (guarded by this)
+  private long batchCount  = 0;
+  private long recordCount = 0;
+
+  /**
+   * Returns <code>true</code> if small records should be written through
+   * the batch writer.
+   * @return Value of the <code>cleo.uri.mydb.batch</code> property
+   */
+  public static boolean isEnabled() {
+    return MyDBUtil.getBooleanProperty("batch", false);
+  }
+
+  /**
+   * Returns the batch writer, starting its thread on first use.
+   * @return The batch writer
+   */
+  public static synchronized MyDBBatchWriter getInstance() {
+    if (instance == null) {
+      instance = new MyDBBatchWriter(MyDBUtil.getLongProperty("batch.maxrecordsize", 65536L),
+                                     (int)MyDBUtil.getLongProperty("batch.maxrecords", 100),
+                                     MyDBUtil.getLongProperty("batch.maxbytes", 4194304L),
+                                     MyDBUtil.getLongProperty("batch.maxdelay", 20L));
+      Thread thread = new Thread(instance, "MyDBBatchWriter");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return instance;
+  }
+
+  /**
+   * Creates a batch writer. The caller starts the thread.
+   *
+   * @param maxRecordSize Largest record in bytes accepted
+   * @param maxRecords    Maximum number of records per batch
+   * @param maxBytes      Maximum number of bytes per batch
+   * @param maxDelayMS    Maximum time in MS a record waits for the batch
+   */
+  private MyDBBatchWriter(long maxRecordSize, int maxRecords, long maxBytes, long maxDelayMS) {
+    this.maxRecordSize = maxRecordSize;
+    this.maxRecords    = Math.max(1, maxRecords);
+    this.maxBytes      = Math.max(1, maxBytes);
+    this.maxDelayMS    = Math.max(0, maxDelayMS);
+    LexURIFile.debug("MyDBBatchWriter> maxRecordSize=" + this.maxRecordSize
+                     + " maxRecords=" + this.maxRecords + " maxBytes=" + this.maxBytes
+                     + " maxDelayMS=" + this.maxDelayMS);
+  }
+
+  /**
+   * Returns <code>true</code> if a record of <code>length</code> bytes is
+   * small enough to be batched.
+   * @param length Number of bytes in the record
+   * @return <code>true</code> if the record should be written with
+   *         {@link #write(String, String, MyDBPayloadBuffer, long, String)}
+   */
+  public boolean accepts(long length) {
+    return length <= this.maxRecordSize;
+  }
+
+  /**
+   * Queues a record and waits until the transaction holding it has been
+   * committed.
+   *
+   * <p> If the calling thread is interrupted while the record is still
+   * queued, the record is withdrawn and an <code>IOException</code> is
+   * thrown. Once the batch thread has taken the record it is reading
+   * <code>buffer</code>, so the wait continues until the transaction ends
+   * and the interrupt status is then restored.
+   *
+   * @param tableName  Name of the database table to write to
+   * @param filename   Name of the file being written
+   * @param buffer     Encoded file contents; must not be disposed until this
+   *                   method returns
+   * @param fileLength Number of bytes in the file before encoding
+   * @param codec      Codec the contents were encoded with (see
+   *                   {@link MyDBCodec})
+   * @throws IOException if the record could not be written
+   */
+  public void write(String tableName, String filename, MyDBPayloadBuffer buffer,
+                    long fileLength, String codec) throws IOException {
+    Request request = new Request(tableName, filename, buffer, fileLength, codec);
+    synchronized (this) {
+      this.queue.add(request);
+      this.queuedBytes += request.length;
+      notifyAll();
+    }
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        request.done.await();
+        break;
+      } catch (InterruptedException ex) {
+        interrupted = true;
+        synchronized (this) {
+          if (this.queue.remove(request)) {
+            this.queuedBytes -= request.length;
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for MyDB batch write", ex);
+          }
+        }
+        // Taken by the batch thread; wait for it to finish with the buffer
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    if (request.error != null)
+      throw new IOException("MyDB batch write failed", request.error);
+  }
+
+  /**
+   * Writes batches until the JVM exits.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        writeBatch(takeBatch());
+      } catch (InterruptedException ex) {
+        LexURIFile.debug(true, "MyDBBatchWriter.run> Interrupted", ex);
+      } catch (Exception ex) {
+        LexURIFile.debug(true, "MyDBBatchWriter.run> Exception", ex);
+      }
+    }
+  }
+
+  /**
+   * Returns a description of the batches written.
+   * @return Number of batches and records written
+   */
+  @Override
+  public synchronized String toString() {
+    return "MyDBBatchWriter[batches=" + this.batchCount + ", records=" + this.recordCount
+           + ", queued=" + this.queue.size() + "]";
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Waits for the next batch to fill up or for its first record to have
+   * waited the maximum delay, and removes it from the queue.
+   * @return The records of the next batch (at least one)
+   * @throws InterruptedException
+   */
+  private synchronized List<Request> takeBatch() throws InterruptedException {
+    while (this.queue.isEmpty())
+      wait();
+
+    long deadline = this.queue.getFirst().queuedMS + this.maxDelayMS;
+    while ((this.queue.size() < this.maxRecords) && (this.queuedBytes < this.maxBytes)) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+        break;
+      wait(remaining);
+    }
+
+    List<Request> batch = new ArrayList<Request>(Math.min(this.queue.size(), this.maxRecords));
+    long batchBytes = 0;
+    while (!this.queue.isEmpty() && (batch.size() < this.maxRecords)) {
+      Request request = this.queue.getFirst();
+      if (!batch.isEmpty() && (batchBytes + request.length > this.maxBytes))
+        break;
+      this.queue.removeFirst();
+      this.queuedBytes -= request.length;
+      batchBytes += request.length;
+      batch.add(request);
+    }
+    this.batchCount++;
+    this.recordCount += batch.size();
+    return batch;
+  }
+
+  /**
+   * Inserts a batch of records in a single transaction and releases the
+   * writers waiting for them. If the batch fails, each record is retried on
+   * its own.
+   * @param batch Records to insert
+   */
+  private void writeBatch(List<Request> batch) {
+    // Group the records by table, keeping the order within each table
+    Map<String, List<Request>> byTable = new LinkedHashMap<String, List<Request>>();
+    for (Request request : batch) {
+      List<Request> tableRequests = byTable.get(request.tableName);
+      if (tableRequests == null) {
+        tableRequests = new ArrayList<Request>();
+        byTable.put(request.tableName, tableRequests);
+      }
+      tableRequests.add(request);
+    }
+
+    Connection dbConnection = null;
+    List<InputStream> streams = new ArrayList<InputStream>(batch.size());
+    Exception error = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      dbConnection.setAutoCommit(false);
+      for (Map.Entry<String, List<Request>> entry : byTable.entrySet()) {
+        for (Request request : entry.getValue()) {
+          InputStream in = request.buffer.getInputStream();
+          streams.add(in);
+          MyDBUtil.addRecordToBatch(dbConnection, request.tableName, request.filename,
+                                    in, request.length, request.fileLength, request.codec);
+        }
+        MyDBUtil.executeRecordBatch(dbConnection, entry.getKey());
+      }
+      dbConnection.commit();
+      LexURIFile.debug("MyDBBatchWriter.writeBatch> Committed " + batch.size() + " record(s)");
+    } catch (Exception ex) {
+      error = ex;
+      LexURIFile.debug(true, "MyDBBatchWriter.writeBatch> Batch of " + batch.size()
+                       + " record(s) failed", ex);
+      try {
+        if (dbConnection != null)
+          dbConnection.rollback();
+      } catch (Exception rbex) {
+        LexURIFile.debug("MyDBBatchWriter.writeBatch> rollback exception", rbex);
+      }
+    } finally {
+      for (InputStream in : streams) {
+        try {
+          in.close();
+        } catch (Exception ex) {
+        }
+      }
+      MyDBUtil.releaseDBConnection(dbConnection); // Restores autocommit
+    }
+
+    if (error == null) {
+      for (Request request : batch)
+        request.done.countDown();
+    } else if (batch.size() == 1) {
+      batch.get(0).fail(error);
+    } else {
+      for (Request request : batch)
+        writeSingle(request);
+    }
+  }
+
+  /**
+   * Inserts a single record with its own connection and releases its
+   * writer.
+   * @param request Record to insert
+   */
+  private void writeSingle(Request request) {
+    Connection dbConnection = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      MyDBUtil.writeRecord(dbConnection, request.tableName, request.filename,
+                           request.buffer.getInputStream(), request.length,
+                           request.fileLength, request.codec);
+      request.done.countDown();
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBBatchWriter.writeSingle> " + request.tableName + ":"
+                       + request.filename + " failed", ex);
+      request.fail(ex);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+  }
+
+  /**
+   * A record waiting to be written.
+   */
+  private static class Request {
+    private final String            tableName;
+    private final String            filename;
+    private final MyDBPayloadBuffer buffer;
+    private final long              length;
+    private final long              fileLength;
+    private final String            codec;
+    private final long              queuedMS = System.currentTimeMillis();
+    private final CountDownLatch    done     = new CountDownLatch(1);
+    private volatile Exception      error    = null;
+
+    private Request(String tableName, String filename, MyDBPayloadBuffer buffer,
+                    long fileLength, String codec) {
+      this.tableName  = tableName;
+      this.filename   = filename;
+      this.buffer     = buffer;
+      this.length     = buffer.getLength();
+      this.fileLength = fileLength;
+      this.codec      = codec;
+    }
+
+    private void fail(Exception ex) {
+      this.error = ex;
+      this.done.countDown();
+    }
+  }
+}
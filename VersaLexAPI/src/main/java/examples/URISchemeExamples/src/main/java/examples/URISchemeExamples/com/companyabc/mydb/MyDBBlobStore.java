@@ -0,0 +1,270 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+/**
+ * The <code>MyDBBlobStore</code> class contains the database methods for
+ * tables with deduplicated contents (the <code>dedup</code> table setting,
+ * see {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil#getTableProperty(String, String)}).
+ *
+ * <p> {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBOutputStream}
+ * computes the SHA-256 hash of the contents as they are written. The
+ * contents are stored once per hash in <i>table</i><code>_blobs</code> with
+ * a count of the records referring to them, and the record itself holds the
+ * hash in its <code>BlobHash</code> column with an empty
+ * <code>FileContents</code> column. A file that is sent again (a retry or a
+ * duplicate poll) only adds a record and increments the count; its contents
+ * are not transferred to the database a second time.
+ *
+ * <pre>
+ * {@code
+ * CREATE TABLE `mydboutbox_blobs` (
+ *   `Hash` char(64) NOT NULL,
+ *   `RefCount` bigint(20) NOT NULL,
+ *   `FileContents` longblob NOT NULL,
+ *   `Codec` varchar(16) NOT NULL,
+ *   PRIMARY KEY (`Hash`)
+ * ) ENGINE=InnoDB DEFAULT CHARSET=latin1$$
+ * }
+ * </pre>
+ *
+ * <p> The hash is taken over the contents before encoding, so the codec
+ * (see {@link MyDBCodec}) the stored contents were encoded with is kept with
+ * them. Deleting a record decrements the count in the same transaction, and
+ * the contents are deleted with the last record referring to them. Records
+ * written before <code>dedup</code> was turned on (<code>BlobHash</code>
+ * is <code>NULL</code>) are still read from their own
+ * <code>FileContents</code> column. Chunked tables are not deduplicated.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.dedup</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, identical contents are stored once in
+ *         <i>table</i><code>_blobs</code>. The table needs the
+ *         <code>BlobHash</code> column (see {@link MyDBFile})</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBBlobStore {
+  // Blob table column names
+  private static String HASH_COLNAME         = "Hash";
+  private static String REFCOUNT_COLNAME     = "RefCount";
+  private static String FILECONTENTS_COLNAME = "FileContents";
+  private static String CODEC_COLNAME        = "Codec";
+
+  // Hash algorithm of the BlobHash column
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  /**
+   * Returns <code>true</code> if the contents of the records of a table are
+   * deduplicated.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the <code>dedup</code> setting of the table
+   *         is <code>true</code> and the table is not chunked
+   */
+  public static boolean isEnabled(String tableName) {
+    return "true".equalsIgnoreCase(MyDBUtil.getTableProperty(tableName, "dedup"))
+           && !MyDBUtil.isChunked(tableName);
+  }
+
+  /**
+   * Returns the name of the blob table of a table.
+   * @param tableName Name of the table
+   * @return Name of the blob table
+   */
+  public static String getBlobTableName(String tableName) {
+    return tableName + "_blobs";
+  }
+
+  /**
+   * Returns a new digest computing the hash stored in the
+   * <code>BlobHash</code> column.
+   * @return A SHA-256 message digest
+   */
+  public static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not available", ex);
+    }
+  }
+
+  /**
+   * Returns the hash of a digest as stored in the <code>BlobHash</code>
+   * column.
+   * @param digest Digest that has been given all the contents
+   * @return The hash as 64 lowercase hex digits
+   */
+  public static String getHash(MessageDigest digest) {
+    byte[] hash = digest.digest();
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash)
+      hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+    return hex.toString();
+  }
+
+  /**
+   * Writes a record referring to the contents with <code>hash</code> in one
+   * transaction. The contents are only inserted if no other record refers
+   * to them yet.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param buffer       Encoded file contents
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @param hash         Hash of the file contents before encoding
+   * @throws Exception
+   */
+  protected static void writeRecord(Connection dbConnection, String tableName,
+                                    String filename, MyDBPayloadBuffer buffer,
+                                    long fileLength, String codec,
+                                    String hash) throws Exception {
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      boolean stored = addReference(dbConnection, tableName, hash, buffer, codec);
+      MyDBUtil.insertBlobRecord(dbConnection, tableName, filename, fileLength, hash);
+      dbConnection.commit();
+      LexURIFile.debug("MyDBBlobStore.writeRecord> " + tableName + " hash=" + hash
+                       + " length=" + fileLength + (stored ? " stored" : " deduplicated"));
+    } catch (Exception ex) {
+      rollback(dbConnection);
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Drops a reference to the contents with <code>hash</code>, deleting them
+   * if no record refers to them any more. Must be called in the transaction
+   * deleting the record.
+   *
+   * @param dbConnection Connection to the database with auto-commit off
+   * @param tableName    Name of the table
+   * @param hash         Value of the <code>BlobHash</code> column of the
+   *                     deleted record
+   * @throws Exception
+   */
+  protected static void release(Connection dbConnection, String tableName,
+                                String hash) throws Exception {
+    String blobTable = MyDBUtil.checkTableName(getBlobTableName(tableName));
+    String sql = "UPDATE " + blobTable +
+                   " SET " + REFCOUNT_COLNAME + " = " + REFCOUNT_COLNAME + " - 1" +
+                 " WHERE " + HASH_COLNAME + " = ?";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "releaseBlob", sql);
+    stmt.setString(1, hash);
+    stmt.executeUpdate();
+
+    sql = "DELETE FROM " + blobTable +
+          " WHERE " + HASH_COLNAME + " = ? AND " + REFCOUNT_COLNAME + " <= 0";
+    stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "deleteBlob", sql);
+    stmt.setString(1, hash);
+    int retVal = stmt.executeUpdate();
+    LexURIFile.debug("MyDBBlobStore.release> " + tableName + " hash=" + hash
+                     + " deleted=" + (retVal > 0));
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Adds a reference to the contents with <code>hash</code>, inserting them
+   * if they are not stored yet.
+   *
+   * @param dbConnection Connection to the database with auto-commit off
+   * @param tableName    Name of the table
+   * @param hash         Hash of the contents
+   * @param buffer       Encoded contents
+   * @param codec        Codec the contents were encoded with
+   * @return <code>true</code> if the contents were inserted
+   * @throws Exception
+   */
+  private static boolean addReference(Connection dbConnection, String tableName,
+                                      String hash, MyDBPayloadBuffer buffer,
+                                      String codec) throws Exception {
+    if (incrementReference(dbConnection, tableName, hash))
+      return false;
+
+    String sql = "INSERT INTO " + MyDBUtil.checkTableName(getBlobTableName(tableName)) +
+                   " ( " + HASH_COLNAME + ", " + REFCOUNT_COLNAME + ", " +
+                           FILECONTENTS_COLNAME + ", " + CODEC_COLNAME + ") " +
+                 "VALUES ( ?, 1, ?, ? )";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "insertBlob", sql);
+    InputStream in = buffer.getInputStream();
+    // Only the insert is undone if another writer stored the same contents
+    // first (some databases abort the whole transaction on an error)
+    Savepoint savepoint = dbConnection.setSavepoint();
+    try {
+      stmt.setString(1, hash);
+      MyDBUtil.getDialect().setBinaryStream(stmt, 2, in, buffer.getLength());
+      stmt.setString(3, codec);
+      stmt.executeUpdate();
+      return true;
+    } catch (SQLException ex) {
+      if (!MyDBUtil.getDialect().isDuplicateKey(ex))
+        throw ex;
+      LexURIFile.debug("MyDBBlobStore.addReference> " + tableName + " hash=" + hash
+                       + " inserted concurrently");
+      dbConnection.rollback(savepoint);
+      if (!incrementReference(dbConnection, tableName, hash))
+        throw ex;
+      return false;
+    } finally {
+      try {
+        stmt.clearParameters(); // Release the reference to the stream
+      } catch (Exception ex) {
+      }
+      try {
+        in.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Increments the reference count of the contents with <code>hash</code>.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param hash         Hash of the contents
+   * @return <code>false</code> if the contents are not stored
+   * @throws Exception
+   */
+  private static boolean incrementReference(Connection dbConnection, String tableName,
+                                            String hash) throws Exception {
+    String sql = "UPDATE " + MyDBUtil.checkTableName(getBlobTableName(tableName)) +
+                   " SET " + REFCOUNT_COLNAME + " = " + REFCOUNT_COLNAME + " + 1" +
+                 " WHERE " + HASH_COLNAME + " = ?";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "referenceBlob", sql);
+    stmt.setString(1, hash);
+    return stmt.executeUpdate() > 0;
+  }
+
+  /**
+   * Rolls back the current transaction, ignoring errors.
+   * @param dbConnection Connection to the database
+   */
+  private static void rollback(Connection dbConnection) {
+    try {
+      dbConnection.rollback();
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBBlobStore.rollback> rollback exception", ex);
+    }
+  }
+}
@@ -0,0 +1,616 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The <code>MyDBBulkTransfer</code> class copies or moves many records
+ * between a MyDB table and a directory concurrently, for draining a backlog
+ * or restoring a table. <code>LCOPY -DEL * </code><i>dir</i> moves records
+ * one at a time, each with its own connection and delete; this class moves
+ * up to <code>cleo.uri.mydb.bulk.threads</code> records at once.
+ *
+ * <p> {@link #exportTable(String, String, File, boolean)} lists the table a
+ * page at a time (see <code>cleo.uri.mydb.pagesize</code> in
+ * {@link MyDBUtil}) and hands the records to the workers. Each worker
+ * claims the record when <code>cleo.uri.mydb.claim</code> is
+ * <code>true</code>, streams its contents (decoded, from wherever they are
+ * stored) to a temporary file in the directory, and renames it to the
+ * record's filename. When moving, the file is forced to disk first, and the
+ * records are deleted <code>cleo.uri.mydb.bulk.deletebatch</code> at a time
+ * in one transaction each, with the same handling of chunks, deduplicated
+ * contents, external files and soft deletes as a single delete. A record
+ * is only deleted once its file is complete. A file is never overwritten:
+ * a record whose filename already exists in the directory (for example from
+ * an earlier run, or another record with the same filename) is left in the
+ * table and counted as failed.
+ *
+ * <p> When moving, a record stays in the table after its file is complete
+ * until its delete batch is committed. With <code>cleo.uri.mydb.claim</code>
+ * <code>true</code> the record stays claimed until then; otherwise another
+ * node (or a VLTrader send from the table) can pick it up and send it
+ * again in that time, so set <code>cleo.uri.mydb.bulk.deletebatch</code> to
+ * 1 when other nodes read the table without claims.
+ *
+ * <p> {@link #importDirectory(File, String, String, boolean)} writes each
+ * file of the directory matching the pattern through a
+ * {@link MyDBOutputStream}, so the records get the table's codec,
+ * deduplication, external storage, change feed and batching, and when
+ * moving deletes each file once its record has been committed.
+ *
+ * <p> Both return {@link Statistics} with the number of records and bytes
+ * transferred and the throughput. Progress is logged after every page or
+ * every <code>cleo.uri.mydb.bulk.deletebatch</code> files. The class can be
+ * run from the command line with the VLTrader and JDBC driver jars and the
+ * <code>cleo.uri.mydb.*</code> properties:
+ *
+ * <pre>
+ * java -Dcleo.uri.mydb.url=... examples.URISchemeExamples.com.companyabc.mydb.MyDBBulkTransfer
+ *      export|import <i>table</i> <i>directory</i> [<i>pattern</i>] [-DEL]
+ * </pre>
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.bulk.threads</td>
+ *     <td>4</td>
+ *     <td>Number of records transferred concurrently. The connection pool
+ *         needs one more connection than this</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.bulk.deletebatch</td>
+ *     <td>100</td>
+ *     <td>Number of exported records deleted per transaction. Without
+ *         claims, a record can be read by another node until its batch is
+ *         deleted</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBBulkTransfer {
+  // Suffix of exported files that are still being written
+  private static final String TEMP_SUFFIX = ".mydbbulk.tmp";
+
+  /**
+   * Copies (or moves) the records of a table to files in a directory.
+   *
+   * @param tableName Name of the table
+   * @param pattern   Filename wildcard or <i>[regex]</i> the records must
+   *                  match, or <code>null</code> for all records
+   * @param dir       Directory to write the files to
+   * @param delete    <code>true</code> to delete each record once its file
+   *                  has been written
+   * @return Transfer statistics
+   * @throws Exception if the table cannot be listed
+   */
+  public static Statistics exportTable(final String tableName, String pattern,
+                                       final File dir, boolean delete) throws Exception {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Unable to create " + dir.getAbsolutePath());
+    final Counters counters = new Counters();
+    final DeleteBatch deletes = delete ? new DeleteBatch(tableName, counters) : null;
+    final ConcurrentHashMap<String, Long> filenames = new ConcurrentHashMap<String, Long>();
+    final Object holder = new Object(); // Holds the claims of this transfer
+    // The database only narrows the listing down; the pattern decides
+    Pattern match = (pattern != null) ? toRegex(pattern) : null;
+    int pageSize = MyDBUtil.getPageSize();
+    LexURIFile.debug("MyDBBulkTransfer.exportTable> " + tableName + " pattern[" + pattern
+                     + "] dir[" + dir.getAbsolutePath() + "] delete=" + delete);
+    if (delete && !MyDBClaims.isEnabled() && (getDeleteBatchSize() > 1))
+      LexURIFile.debug(true, "MyDBBulkTransfer.exportTable> Claims are off; exported records"
+                             + " stay readable by other nodes until their delete batch commits");
+
+    ThreadPoolExecutor workers = createWorkers();
+    try {
+      long afterRecordID = -1;
+      MyDBItem[] page;
+      do {
+        Connection dbConnection = MyDBUtil.getDBConnection();
+        try {
+          page = MyDBUtil.getDBItemsPage(dbConnection, tableName, null/*srchFilename*/,
+                                         pattern, afterRecordID, pageSize);
+        } finally {
+          MyDBUtil.releaseDBConnection(dbConnection);
+        }
+        for (final MyDBItem item : page) {
+          afterRecordID = item.getRecordID();
+          if ((match != null) && !match.matcher(item.getFilename()).matches())
+            continue;
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              exportRecord(tableName, item, dir, holder, filenames, deletes, counters);
+            }
+          });
+        }
+        LexURIFile.debug("MyDBBulkTransfer.exportTable> " + tableName + " "
+                         + counters.snapshot());
+      } while (page.length >= pageSize);
+    } finally {
+      shutdown(workers);
+      if (deletes != null)
+        deletes.flush();
+    }
+    Statistics stats = counters.snapshot();
+    LexURIFile.debug("MyDBBulkTransfer.exportTable> " + tableName + " done " + stats);
+    return stats;
+  }
+
+  /**
+   * Copies (or moves) the files of a directory to records of a table.
+   *
+   * @param dir       Directory to read the files from
+   * @param pattern   Filename wildcard or <i>[regex]</i> the files must
+   *                  match, or <code>null</code> for all files
+   * @param tableName Name of the table
+   * @param delete    <code>true</code> to delete each file once its record
+   *                  has been committed
+   * @return Transfer statistics
+   * @throws Exception if the directory cannot be listed
+   */
+  public static Statistics importDirectory(File dir, String pattern,
+                                           final String tableName,
+                                           final boolean delete) throws Exception {
+    File[] files = dir.listFiles();
+    if (files == null)
+      throw new IOException("Unable to list " + dir.getAbsolutePath());
+    // Oldest first, so a partial run takes the files that arrived first;
+    // the workers commit concurrently, so record IDs do not follow this order
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        int cmp = Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+        return (cmp != 0) ? cmp : f1.getName().compareTo(f2.getName());
+      }
+    });
+    Pattern match = (pattern != null) ? toRegex(pattern) : null;
+    final Counters counters = new Counters();
+    int progressInterval = getDeleteBatchSize();
+    LexURIFile.debug("MyDBBulkTransfer.importDirectory> dir[" + dir.getAbsolutePath()
+                     + "] pattern[" + pattern + "] " + tableName + " delete=" + delete);
+
+    ThreadPoolExecutor workers = createWorkers();
+    try {
+      int submitted = 0;
+      for (final File file : files) {
+        if (!file.isFile() || file.getName().endsWith(TEMP_SUFFIX)
+            || ((match != null) && !match.matcher(file.getName()).matches()))
+          continue;
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            importFile(file, tableName, delete, counters);
+          }
+        });
+        if ((++submitted % progressInterval) == 0)
+          LexURIFile.debug("MyDBBulkTransfer.importDirectory> " + tableName + " "
+                           + counters.snapshot());
+      }
+    } finally {
+      shutdown(workers);
+    }
+    Statistics stats = counters.snapshot();
+    LexURIFile.debug("MyDBBulkTransfer.importDirectory> " + tableName + " done " + stats);
+    return stats;
+  }
+
+  /**
+   * Runs an export or import from the command line.
+   *
+   * @param args <code>export</code> <i>table</i> <i>directory</i>
+   *             [<i>pattern</i>] [<code>-DEL</code>] or <code>import</code>
+   *             <i>table</i> <i>directory</i> [<i>pattern</i>]
+   *             [<code>-DEL</code>]
+   */
+  public static void main(String[] args) {
+    ArrayList<String> params = new ArrayList<String>(Arrays.asList(args));
+    boolean delete = params.remove("-DEL") | params.remove("-del");
+    if ((params.size() < 3) || (params.size() > 4)
+        || !(params.get(0).equalsIgnoreCase("export") || params.get(0).equalsIgnoreCase("import"))) {
+      System.err.println("Usage: MyDBBulkTransfer export|import <table> <directory> [<pattern>] [-DEL]");
+      System.exit(2);
+    }
+    String tableName = params.get(1);
+    File   dir       = new File(params.get(2));
+    String pattern   = (params.size() > 3) ? params.get(3) : null;
+    int status = 0;
+    try {
+      Statistics stats = params.get(0).equalsIgnoreCase("export")
+              ? exportTable(tableName, pattern, dir, delete)
+              : importDirectory(dir, pattern, tableName, delete);
+      System.out.println(stats);
+      if (stats.getFailedCount() > 0)
+        status = 1;
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      status = 1;
+    } finally {
+      MyDBUtil.closeConnectionPool();
+    }
+    System.exit(status);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Writes a record to a file in the directory and queues it for deletion.
+   * Errors are logged and counted.
+   * @param tableName Name of the table
+   * @param item      Record information from the listing
+   * @param dir       Directory to write to
+   * @param holder    Holder of the claims of the transfer
+   * @param filenames Filenames written so far, with their record IDs
+   * @param deletes   Records to delete, or <code>null</code> when copying
+   * @param counters  Transfer counters
+   */
+  private static void exportRecord(String tableName, MyDBItem item, File dir, Object holder,
+                                   ConcurrentHashMap<String, Long> filenames,
+                                   DeleteBatch deletes, Counters counters) {
+    long recordID = item.getRecordID();
+    String name = item.getFilename();
+    if ((name == null) || (name.trim().length() == 0))
+      name = "MyDB_" + recordID;
+    File file = new File(dir, name);
+    File temp = new File(dir, "." + name + "." + recordID + TEMP_SUFFIX);
+    Connection dbConnection = null;
+    boolean claimed = false;
+    try {
+      if (!file.getParentFile().equals(dir))
+        throw new IOException("Filename [" + name + "] is not a plain file name");
+      Long previous = filenames.putIfAbsent(name, recordID);
+      if (previous != null)
+        throw new IOException("Filename [" + name + "] was already exported from record " + previous);
+      if (file.exists())
+        throw new IOException("File " + file.getAbsolutePath() + " already exists");
+
+      dbConnection = MyDBUtil.getDBConnection();
+      if (MyDBClaims.isEnabled()) {
+        claimed = MyDBClaims.claim(dbConnection, tableName, recordID, holder);
+        if (!claimed) {
+          counters.skipped.incrementAndGet(); // Taken by another node
+          return;
+        }
+      }
+      MyDBRecordStream in = MyDBUtil.openRecordStream(dbConnection, tableName, recordID);
+      if (in == null) {
+        counters.skipped.incrementAndGet(); // Deleted in the meantime
+        return;
+      }
+      long length = 0;
+      try {
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+          byte[] buf = new byte[MyDBUtil.COPY_BUFFER_SIZE];
+          int len;
+          while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            length += len;
+          }
+          if (deletes != null)
+            out.getFD().sync(); // The record is deleted next
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      if (file.exists())
+        throw new IOException("File " + file.getAbsolutePath() + " already exists");
+      if (!temp.renameTo(file))
+        throw new IOException("Unable to rename " + temp.getAbsolutePath());
+      file.setLastModified(item.getDateTimeMS());
+      counters.records.incrementAndGet();
+      counters.bytes.addAndGet(length);
+      MyDBUtil.releaseDBConnection(dbConnection);
+      dbConnection = null;
+      if (deletes != null)
+        deletes.add(recordID);
+      else if (claimed)
+        MyDBClaims.release(tableName, recordID);
+    } catch (Exception ex) {
+      counters.failed.incrementAndGet();
+      LexURIFile.debug(true, "MyDBBulkTransfer.exportRecord> " + tableName + " ID=" + recordID
+                       + " filename[" + name + "] exception", ex);
+      if (temp.exists() && !temp.delete())
+        LexURIFile.debug(true, "MyDBBulkTransfer.exportRecord> Unable to delete "
+                         + temp.getAbsolutePath());
+      if (claimed)
+        MyDBClaims.release(tableName, recordID); // The lease expires in the table
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+  }
+
+  /**
+   * Writes a file to a record of the table and deletes the file if asked
+   * to. Errors are logged and counted.
+   * @param file      File to import
+   * @param tableName Name of the table
+   * @param delete    <code>true</code> to delete the file once written
+   * @param counters  Transfer counters
+   */
+  private static void importFile(File file, String tableName, boolean delete, Counters counters) {
+    try {
+      long length = 0;
+      InputStream in = new BufferedInputStream(new FileInputStream(file), MyDBUtil.COPY_BUFFER_SIZE);
+      try {
+        OutputStream out = new MyDBOutputStream(new MyDBFile("mydb:" + tableName,
+                                                                file.getName()), false/*append*/);
+        try {
+          byte[] buf = new byte[MyDBUtil.COPY_BUFFER_SIZE];
+          int len;
+          while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            length += len;
+          }
+        } finally {
+          out.close(); // Writes the record
+        }
+      } finally {
+        in.close();
+      }
+      counters.records.incrementAndGet();
+      counters.bytes.addAndGet(length);
+      if (delete && !file.delete())
+        throw new IOException("Unable to delete " + file.getAbsolutePath());
+    } catch (Exception ex) {
+      counters.failed.incrementAndGet();
+      LexURIFile.debug(true, "MyDBBulkTransfer.importFile> " + tableName + " file["
+                       + file.getAbsolutePath() + "] exception", ex);
+    }
+  }
+
+  /**
+   * Returns the number of exported records deleted per transaction.
+   * @return Value of the <code>cleo.uri.mydb.bulk.deletebatch</code> property
+   */
+  private static int getDeleteBatchSize() {
+    return (int)Math.max(1, MyDBUtil.getLongProperty("bulk.deletebatch", 100));
+  }
+
+  /**
+   * Creates the worker pool. Its queue is bounded, and a full queue makes
+   * the submitting thread run the task itself, so listing never gets far
+   * ahead of the workers.
+   * @return The worker pool
+   */
+  private static ThreadPoolExecutor createWorkers() {
+    int threads = (int)Math.max(1, MyDBUtil.getLongProperty("bulk.threads", 4));
+    final AtomicInteger threadCount = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 2),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MyDBBulkTransfer-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Waits for the workers to finish the queued transfers.
+   * @param workers The worker pool
+   * @throws InterruptedException
+   */
+  private static void shutdown(ThreadPoolExecutor workers) throws InterruptedException {
+    workers.shutdown();
+    while (!workers.awaitTermination(1, TimeUnit.MINUTES))
+      LexURIFile.debug("MyDBBulkTransfer.shutdown> waiting for " + workers.getActiveCount()
+                       + " worker(s)");
+  }
+
+  /**
+   * Translates a VLTrader filename wildcard or <i>[regex]</i> into a
+   * pattern matching whole file names.
+   * @param pattern Filename wildcard or <i>[regex]</i>
+   * @return The pattern
+   */
+  private static Pattern toRegex(String pattern) {
+    if (pattern.startsWith("[") && pattern.endsWith("]") && (pattern.length() > 1))
+      return Pattern.compile(pattern.substring(1, pattern.length() - 1));
+    StringBuilder regex = new StringBuilder();
+    for (char c : pattern.toCharArray()) {
+      if (c == '*')
+        regex.append(".*");
+      else if (c == '?')
+        regex.append('.');
+      else
+        regex.append(Pattern.quote(String.valueOf(c)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * Exported records waiting to be deleted.
+   */
+  private static class DeleteBatch {
+    private final String    tableName;
+    private final Counters  counters;
+    private final int       batchSize;
+    private ArrayList<Long> recordIDs = new ArrayList<Long>(); // Guarded by this
+
+    private DeleteBatch(String tableName, Counters counters) {
+      this.tableName = tableName;
+      this.counters  = counters;
+      this.batchSize = getDeleteBatchSize();
+    }
+
+    /**
+     * Queues an exported record, deleting the queued records once there
+     * are enough of them.
+     * @param recordID Record ID
+     */
+    private void add(long recordID) {
+      List<Long> batch = null;
+      synchronized (this) {
+        this.recordIDs.add(recordID);
+        if (this.recordIDs.size() >= this.batchSize) {
+          batch = this.recordIDs;
+          this.recordIDs = new ArrayList<Long>();
+        }
+      }
+      if (batch != null)
+        delete(batch);
+    }
+
+    /**
+     * Deletes the queued records.
+     */
+    private void flush() {
+      List<Long> batch;
+      synchronized (this) {
+        batch = this.recordIDs;
+        this.recordIDs = new ArrayList<Long>();
+      }
+      if (!batch.isEmpty())
+        delete(batch);
+    }
+
+    /**
+     * Deletes records in one transaction. If the transaction fails, the
+     * records stay in the table (and their files in the directory) and are
+     * counted as failed.
+     * @param batch Record IDs
+     */
+    private void delete(List<Long> batch) {
+      List<String> externalPaths = new ArrayList<String>();
+      Connection dbConnection = null;
+      boolean autoCommit = true;
+      try {
+        dbConnection = MyDBUtil.getDBConnection();
+        autoCommit = dbConnection.getAutoCommit();
+        dbConnection.setAutoCommit(false);
+        for (long recordID : batch)
+          MyDBUtil.deleteLockedRecord(dbConnection, this.tableName, recordID, externalPaths);
+        dbConnection.commit();
+        this.counters.deleted.addAndGet(batch.size());
+      } catch (Exception ex) {
+        this.counters.failed.addAndGet(batch.size());
+        externalPaths.clear();
+        LexURIFile.debug(true, "MyDBBulkTransfer.delete> " + this.tableName + " "
+                         + batch.size() + " record(s) not deleted", ex);
+        if (dbConnection != null) {
+          try {
+            dbConnection.rollback();
+          } catch (Exception rbex) {
+            LexURIFile.debug("MyDBBulkTransfer.delete> rollback exception", rbex);
+          }
+        }
+      } finally {
+        if (dbConnection != null) {
+          try {
+            dbConnection.setAutoCommit(autoCommit);
+          } catch (Exception ex) {
+          }
+        }
+        MyDBUtil.releaseDBConnection(dbConnection);
+        for (long recordID : batch)
+          MyDBClaims.release(this.tableName, recordID);
+      }
+      MyDBExternalStore.deleteFiles(externalPaths);
+    }
+  }
+
+  /**
+   * Counters of a running transfer.
+   */
+  private static class Counters {
+    private final long       startMS = System.currentTimeMillis();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes   = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed  = new AtomicLong();
+
+    /**
+     * Returns a snapshot of the counters.
+     * @return Transfer statistics
+     */
+    private Statistics snapshot() {
+      return new Statistics(this.records.get(), this.bytes.get(), this.deleted.get(),
+                            this.skipped.get(), this.failed.get(),
+                            System.currentTimeMillis() - this.startMS);
+    }
+  }
+
+  /**
+   * A snapshot of the statistics of a transfer.
+   */
+  public static class Statistics {
+    private final long recordCount;
+    private final long byteCount;
+    private final long deletedCount;
+    private final long skippedCount;
+    private final long failedCount;
+    private final long elapsedMS;
+
+    private Statistics(long recordCount, long byteCount, long deletedCount,
+                       long skippedCount, long failedCount, long elapsedMS) {
+      this.recordCount  = recordCount;
+      this.byteCount    = byteCount;
+      this.deletedCount = deletedCount;
+      this.skippedCount = skippedCount;
+      this.failedCount  = failedCount;
+      this.elapsedMS    = elapsedMS;
+    }
+
+    /** @return Number of records transferred */
+    public long getRecordCount() { return this.recordCount; }
+    /** @return Number of bytes transferred */
+    public long getByteCount() { return this.byteCount; }
+    /** @return Number of exported records deleted from the table */
+    public long getDeletedCount() { return this.deletedCount; }
+    /** @return Number of records claimed by another node or deleted meanwhile */
+    public long getSkippedCount() { return this.skippedCount; }
+    /** @return Number of records or files that failed */
+    public long getFailedCount() { return this.failedCount; }
+    /** @return Time in MS the transfer took */
+    public long getElapsedMS() { return this.elapsedMS; }
+    /** @return Records transferred per second */
+    public double getRecordsPerSecond() { return this.recordCount * 1000.0 / Math.max(1, this.elapsedMS); }
+    /** @return Bytes transferred per second */
+    public double getBytesPerSecond() { return this.byteCount * 1000.0 / Math.max(1, this.elapsedMS); }
+
+    /**
+     * Returns a string representation of the statistics used for debugging.
+     * @return String representing the statistics
+     */
+    @Override
+    public String toString() {
+      return "records=" + this.recordCount
+              + " bytes=" + this.byteCount
+              + " deleted=" + this.deletedCount
+              + " skipped=" + this.skippedCount
+              + " failed=" + this.failedCount
+              + " elapsedMS=" + this.elapsedMS
+              + " records/s=" + Math.round(getRecordsPerSecond())
+              + " bytes/s=" + Math.round(getBytesPerSecond());
+    }
+  }
+}
@@ -0,0 +1,481 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>MyDBChangeFeed</code> class detects new records of a table from
+ * an append-only change table instead of listing the table (the
+ * <code>changefeed</code> table setting, see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil#getTableProperty(String, String)}).
+ *
+ * <p> Each new record of the table adds a row to
+ * <i>table</i><code>_changes</code> with an increasing sequence number:
+ *
+ * <pre>
+ * {@code
+ * CREATE TABLE `mydbinbox_changes` (
+ *   `Seq` bigint(20) NOT NULL AUTO_INCREMENT,
+ *   `RecordID` bigint(20) NOT NULL,
+ *   `ChangeTime` bigint(20) NOT NULL,
+ *   PRIMARY KEY (`Seq`),
+ *   KEY `ChangeTime_IDX` (`ChangeTime`)
+ * ) ENGINE=InnoDB DEFAULT CHARSET=latin1$$
+ * }
+ * </pre>
+ *
+ * With <code>changefeed</code> set to <code>true</code>, the row is added
+ * by {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBOutputStream}
+ * in the transaction writing the record (such records are not batched).
+ * With <code>trigger</code>, a trigger adds it, which also covers records
+ * inserted by other applications:
+ *
+ * <pre>
+ * {@code
+ * CREATE TRIGGER `mydbinbox_changes_ai` AFTER INSERT ON `mydbinbox`
+ *   FOR EACH ROW INSERT INTO `mydbinbox_changes` (`RecordID`, `ChangeTime`)
+ *                VALUES (NEW.`ID`, NEW.`FileTime`)$$
+ * }
+ * </pre>
+ *
+ * <p> {@link #getChangesSince(String, long, int)} returns the records added
+ * after a sequence number, so a poller only reads the rows added since its
+ * last poll, however large the table is. Sequence numbers are allocated
+ * when a row is inserted but become visible when its transaction commits,
+ * so a gap in the sequence is only passed once the row after it is older
+ * than <code>cleo.uri.mydb.changefeed.gapwait</code> MS; until then the
+ * changes stop before the gap. Listeners added with
+ * {@link #addListener(String, Listener)} are called with the new records
+ * as soon as a record is written on this node, and every
+ * <code>cleo.uri.mydb.changefeed.pollinterval</code> MS for records written
+ * elsewhere. Rows older than <code>cleo.uri.mydb.changefeed.retention</code>
+ * MS are deleted from the change table.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.changefeed</td>
+ *     <td>false</td>
+ *     <td><code>true</code> to log new records in
+ *         <i>table</i><code>_changes</code>; <code>trigger</code> if a
+ *         database trigger logs them</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.changefeed.pollinterval</td>
+ *     <td>1000</td>
+ *     <td>Time in MS between polls of the change table for listeners</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.changefeed.gapwait</td>
+ *     <td>5000</td>
+ *     <td>Time in MS to wait for the transaction of a missing sequence
+ *         number to commit</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.changefeed.retention</td>
+ *     <td>86400000</td>
+ *     <td>Time in MS change rows are kept (0 to keep them)</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBChangeFeed {
+  // Change table column names
+  private static String SEQ_COLNAME        = "Seq";
+  private static String RECORDID_COLNAME   = "RecordID";
+  private static String CHANGETIME_COLNAME = "ChangeTime";
+
+  // Time in MS between deletes of expired change rows
+  private static final long TRIM_INTERVAL_MS = 3600000L;
+
+  // Tables with listeners, keyed by lowercase name
+  private static final ConcurrentHashMap<String, Feed> feeds = new ConcurrentHashMap<String, Feed>();
+
+  // Tables whose change rows are trimmed, keyed by lowercase name
+  private static final ConcurrentHashMap<String, String> trimmed = new ConcurrentHashMap<String, String>();
+
+  private static ScheduledExecutorService timer = null;
+
+  /**
+   * Receives the records added to a table.
+   */
+  public interface Listener {
+    /**
+     * Called on the change feed thread with the records added to a table,
+     * in sequence order.
+     *
+     * @param tableName Name of the table
+     * @param changes   The new records
+     */
+    void recordsAdded(String tableName, Change[] changes);
+  }
+
+  /**
+   * Returns <code>true</code> if a table has a change table.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the <code>changefeed</code> setting of the
+   *         table is <code>true</code> or <code>trigger</code>
+   */
+  public static boolean isEnabled(String tableName) {
+    String mode = MyDBUtil.getTableProperty(tableName, "changefeed");
+    return "true".equalsIgnoreCase(mode) || "trigger".equalsIgnoreCase(mode);
+  }
+
+  /**
+   * Returns <code>true</code> if new records of a table are logged by the
+   * scheme rather than by a trigger.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the <code>changefeed</code> setting of the
+   *         table is <code>true</code>
+   */
+  public static boolean isLogging(String tableName) {
+    return "true".equalsIgnoreCase(MyDBUtil.getTableProperty(tableName, "changefeed"));
+  }
+
+  /**
+   * Returns the name of the change table of a table.
+   * @param tableName Name of the table
+   * @return Name of the change table
+   */
+  public static String getChangeTableName(String tableName) {
+    return tableName + "_changes";
+  }
+
+  /**
+   * Returns the records added to a table after a sequence number.
+   *
+   * @param tableName  Name of the table
+   * @param sequence   Sequence number of the last change already seen, or
+   *                   0 for all changes
+   * @param maxChanges Maximum number of changes to return
+   * @return The changes in sequence order. Fewer than <code>maxChanges</code>
+   *         changes may be returned while a gap in the sequence is waited for
+   * @throws Exception
+   */
+  public static Change[] getChangesSince(String tableName, long sequence, int maxChanges) throws Exception {
+    Connection dbConnection = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      return getChangesSince(dbConnection, tableName, sequence, maxChanges);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+  }
+
+  /**
+   * Returns the sequence number of the last change of a table.
+   *
+   * @param tableName Name of the table
+   * @return The last sequence number, or 0 if there are no changes
+   * @throws Exception
+   */
+  public static long getLastSequence(String tableName) throws Exception {
+    String sql = "SELECT MAX(" + SEQ_COLNAME + ")" +
+                   " FROM " + MyDBUtil.checkTableName(getChangeTableName(tableName));
+    Connection dbConnection = null;
+    ResultSet rs = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "lastSequence", sql);
+      rs = stmt.executeQuery();
+      return rs.next() ? rs.getLong(1) : 0;
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+  }
+
+  /**
+   * Adds a listener for the records added to a table from now on.
+   *
+   * @param tableName Name of the table
+   * @param listener  Listener to call
+   * @throws Exception if the change table cannot be read
+   */
+  public static void addListener(String tableName, Listener listener) throws Exception {
+    if (!isEnabled(tableName))
+      throw new Exception("Table " + tableName + " has no change feed");
+    String key = tableName.toLowerCase();
+    Feed feed = feeds.get(key);
+    if (feed == null) {
+      Feed newFeed = new Feed(tableName, getLastSequence(tableName));
+      feed = feeds.putIfAbsent(key, newFeed);
+      if (feed == null)
+        feed = newFeed;
+    }
+    feed.listeners.add(listener);
+    trimmed.put(key, tableName);
+    getTimer();
+    LexURIFile.debug("MyDBChangeFeed.addListener> " + tableName + " after Seq=" + feed.sequence);
+  }
+
+  /**
+   * Removes a listener.
+   *
+   * @param tableName Name of the table
+   * @param listener  Listener to remove
+   */
+  public static void removeListener(String tableName, Listener listener) {
+    Feed feed = feeds.get(tableName.toLowerCase());
+    if (feed != null)
+      feed.listeners.remove(listener);
+  }
+
+  /**
+   * Logs a new record in the change table, in the transaction inserting it.
+   * Does nothing unless the table logs its changes.
+   *
+   * @param dbConnection Connection the record was inserted on
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the new record
+   * @throws Exception
+   */
+  protected static void logInsert(Connection dbConnection, String tableName,
+                                  long recordID) throws Exception {
+    if (!isLogging(tableName))
+      return;
+    String sql = "INSERT INTO " + MyDBUtil.checkTableName(getChangeTableName(tableName)) +
+                   " ( " + RECORDID_COLNAME + ", " + CHANGETIME_COLNAME + ") " +
+                 "VALUES ( ?, ? )";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "logInsert", sql);
+    stmt.setLong(1, recordID);
+    stmt.setLong(2, System.currentTimeMillis());
+    stmt.executeUpdate();
+    trimmed.put(tableName.toLowerCase(), tableName);
+    getTimer();
+  }
+
+  /**
+   * Notifies the listeners of a table that records have been written on
+   * this node, without waiting for the next poll.
+   *
+   * @param tableName Name of the table
+   */
+  protected static void recordsAdded(String tableName) {
+    final Feed feed = feeds.get(tableName.toLowerCase());
+    if ((feed == null) || feed.listeners.isEmpty())
+      return;
+    getTimer().execute(new Runnable() {
+      @Override
+      public void run() {
+        poll(feed);
+      }
+    });
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the records added to a table after a sequence number, stopping
+   * at a gap in the sequence that may still be filled.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param sequence     Sequence number of the last change already seen
+   * @param maxChanges   Maximum number of changes to return
+   * @return The changes in sequence order
+   * @throws Exception
+   */
+  private static Change[] getChangesSince(Connection dbConnection, String tableName,
+                                          long sequence, int maxChanges) throws Exception {
+    // Records deleted (or soft deleted) since are returned without an item
+    String sql = "SELECT c." + SEQ_COLNAME + ", c." + RECORDID_COLNAME + ", c." + CHANGETIME_COLNAME +
+                      ", t.FileTime, t.Filename, t.FileLength" +
+                   " FROM " + MyDBUtil.checkTableName(getChangeTableName(tableName)) + " c" +
+              " LEFT JOIN " + MyDBUtil.checkTableName(tableName) + " t" +
+                     " ON t.ID = c." + RECORDID_COLNAME +
+                     (MyDBUtil.isSoftDelete(tableName) ? " AND t.DeletedTime IS NULL" : "") +
+                  " WHERE c." + SEQ_COLNAME + " > ?" +
+               " ORDER BY c." + SEQ_COLNAME + MyDBUtil.getDialect().getLimitClause("?");
+    long gapWaitMS = Math.max(0, MyDBUtil.getLongProperty("changefeed.gapwait", 5000L));
+    long now = System.currentTimeMillis();
+    List<Change> changes = new ArrayList<Change>();
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "getChanges", sql);
+      stmt.setLong(1, sequence);
+      stmt.setInt(2, maxChanges);
+      rs = stmt.executeQuery();
+      long expected = sequence + 1;
+      while (rs.next() && (changes.size() < maxChanges)) {
+        long seq = rs.getLong(1);
+        long changeTime = rs.getLong(3);
+        if ((seq != expected) && (now - changeTime < gapWaitMS))
+          break; // An earlier row may not have been committed yet
+        String filename = rs.getString(5);
+        MyDBItem item = (filename != null)
+                ? new MyDBItem(rs.getLong(2), filename, rs.getLong(4), rs.getLong(6), null)
+                : null;
+        changes.add(new Change(seq, rs.getLong(2), changeTime, item));
+        expected = seq + 1;
+      }
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+    return changes.toArray(new Change[changes.size()]);
+  }
+
+  /**
+   * Reads the changes after the last one delivered to the listeners of a
+   * table and delivers them.
+   * @param feed Feed of the table
+   */
+  private static void poll(Feed feed) {
+    synchronized (feed) {
+      if (feed.listeners.isEmpty())
+        return;
+      Connection dbConnection = null;
+      try {
+        dbConnection = MyDBUtil.getDBConnection();
+        int pageSize = MyDBUtil.getPageSize();
+        Change[] changes;
+        do {
+          changes = getChangesSince(dbConnection, feed.tableName, feed.sequence, pageSize);
+          if (changes.length == 0)
+            break;
+          feed.sequence = changes[changes.length - 1].getSequence();
+          for (Listener listener : feed.listeners) {
+            try {
+              listener.recordsAdded(feed.tableName, changes);
+            } catch (Exception ex) {
+              LexURIFile.debug(true, "MyDBChangeFeed.poll> " + feed.tableName + " listener exception", ex);
+            }
+          }
+        } while (changes.length == pageSize);
+      } catch (Exception ex) {
+        LexURIFile.debug(true, "MyDBChangeFeed.poll> " + feed.tableName + " exception", ex);
+        MyDBTableCache.invalidate(feed.tableName);
+      } finally {
+        MyDBUtil.releaseDBConnection(dbConnection);
+      }
+    }
+  }
+
+  /**
+   * Deletes the change rows that are past retention.
+   */
+  private static void trim() {
+    long retentionMS = MyDBUtil.getLongProperty("changefeed.retention", 86400000L);
+    if (retentionMS <= 0)
+      return;
+    for (String tableName : trimmed.values()) {
+      Connection dbConnection = null;
+      try {
+        String sql = "DELETE FROM " + MyDBUtil.checkTableName(getChangeTableName(tableName)) +
+                     " WHERE " + CHANGETIME_COLNAME + " < ?";
+        dbConnection = MyDBUtil.getDBConnection();
+        PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "trimChanges", sql);
+        stmt.setLong(1, System.currentTimeMillis() - retentionMS);
+        int retVal = stmt.executeUpdate();
+        LexURIFile.debug("MyDBChangeFeed.trim> " + tableName + " deleted=" + retVal);
+      } catch (Exception ex) {
+        LexURIFile.debug(true, "MyDBChangeFeed.trim> " + tableName + " exception", ex);
+      } finally {
+        MyDBUtil.releaseDBConnection(dbConnection);
+      }
+    }
+  }
+
+  /**
+   * Returns the timer polling for listeners and trimming the change
+   * tables, creating it on first use.
+   * @return The timer
+   */
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      long pollMS = Math.max(100, MyDBUtil.getLongProperty("changefeed.pollinterval", 1000L));
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBChangeFeed");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          for (Feed feed : feeds.values())
+            poll(feed);
+        }
+      }, pollMS, pollMS, TimeUnit.MILLISECONDS);
+      timer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          trim();
+        }
+      }, TRIM_INTERVAL_MS, TRIM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    return timer;
+  }
+
+  /**
+   * A record added to a table.
+   */
+  public static class Change {
+    private final long     sequence;
+    private final long     recordID;
+    private final long     changeTime;
+    private final MyDBItem item;
+
+    private Change(long sequence, long recordID, long changeTime, MyDBItem item) {
+      this.sequence   = sequence;
+      this.recordID   = recordID;
+      this.changeTime = changeTime;
+      this.item       = item;
+    }
+
+    /** @return Sequence number of the change */
+    public long getSequence() { return this.sequence; }
+    /** @return Record ID of the new record */
+    public long getRecordID() { return this.recordID; }
+    /** @return Time in MS the change was logged */
+    public long getChangeTime() { return this.changeTime; }
+    /** @return The record information without file bytes, or <code>null</code> if the record has since been deleted */
+    public MyDBItem getItem() { return this.item; }
+
+    /**
+     * Returns a string representation of the change used for debugging.
+     * @return String representing the change
+     */
+    @Override
+    public String toString() {
+      return "Seq=" + this.sequence + " ID=" + this.recordID + " item=" + this.item;
+    }
+  }
+
+  /**
+   * The listeners of a table and the last change delivered to them.
+   */
+  private static class Feed {
+    private final String tableName;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private long sequence; // Guarded by this
+
+    private Feed(String tableName, long sequence) {
+      this.tableName = tableName;
+      this.sequence  = sequence;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A <code>MyDBChunkReader</code> reads the contents of a record of a chunked
+ * table (see {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBChunkStore}).
+ *
+ * <p> The chunks following the one being read are fetched ahead of the
+ * reader on a small shared thread pool
+ * (<code>cleo.uri.mydb.chunk.threads</code>), each on a pooled connection of
+ * its own, so up to <code>prefetch</code> chunks are transferred while the
+ * current one is consumed. Reading ahead only uses connections that are
+ * free: when the pool has none, the chunk is read when it is needed on the
+ * connection the record was opened on, so a busy pool slows reading down
+ * rather than making it wait for the borrow timeout. At most
+ * <code>prefetch</code> + 1 chunks are held in memory.
+ * {@link #skip(long)} goes straight to the chunk holding the new position
+ * without reading the chunks in between.
+ */
+public class MyDBChunkReader extends InputStream {
+  private static ExecutorService executor = null;
+
+  private final Connection dbConnection;
+  private final String     tableName;
+  private final long       recordID;
+  private final long       length;
+  private final int        chunkSize;
+  private final int        prefetch;
+  private final int        chunkCount;
+
+  // Chunks being fetched, in sequence order starting at fetchSeq
+  private final LinkedList<Future<byte[]>> window = new LinkedList<Future<byte[]>>();
+  private int     fetchSeq  = 0;
+  private int     nextSeq   = 0;   // Next chunk to submit
+  private byte[]  chunk     = null;
+  private int     chunkPos  = 0;
+  private long    position  = 0;
+  private boolean closed    = false;
+
+  /**
+   * Creates a reader for the contents of a record.
+   *
+   * @param dbConnection Connection the record was opened on; used to read
+   *                     the chunks that could not be read ahead, so it must
+   *                     stay open until the reader is closed
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @param length       Length of the record
+   * @param chunkSize    Chunk size of the table
+   * @param prefetch     Number of chunks to read ahead
+   */
+  public MyDBChunkReader(Connection dbConnection, String tableName, long recordID,
+                         long length, int chunkSize, int prefetch) {
+    this.dbConnection = dbConnection;
+    this.tableName    = tableName;
+    this.recordID     = recordID;
+    this.length       = Math.max(length, 0);
+    this.chunkSize    = chunkSize;
+    this.prefetch     = Math.max(prefetch, 0);
+    this.chunkCount   = (int)((this.length + chunkSize - 1) / chunkSize);
+  }
+
+  /**
+   * Returns the number of bytes left in the current chunk.
+   * @return Number of bytes that can be read without waiting
+   */
+  @Override
+  public int available() {
+    return (this.chunk != null) ? this.chunk.length - this.chunkPos : 0;
+  }
+
+  /**
+   * Reads a byte.
+   * @return The byte read or -1 if EOF has been reached
+   * @throws IOException
+   */
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk())
+      return -1;
+    this.position++;
+    return this.chunk[this.chunkPos++] & 0xFF;
+  }
+
+  /**
+   * Reads into a section of the byte array.
+   * @param b   Byte array to store the data read
+   * @param off Offset into byte array to start storing data
+   * @param len Number of bytes to read and store
+   * @return Number of bytes read or -1 for EOF
+   * @throws IOException
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!nextChunk())
+      return -1;
+    int bytesRead = Math.min(len, this.chunk.length - this.chunkPos);
+    System.arraycopy(this.chunk, this.chunkPos, b, off, bytesRead);
+    this.chunkPos += bytesRead;
+    this.position += bytesRead;
+    return bytesRead;
+  }
+
+  /**
+   * Skips bytes. If the new position is outside the current chunk, the read
+   * ahead chunks are dropped and reading resumes at the chunk holding the
+   * new position.
+   * @param n Number of bytes to skip
+   * @return Number of bytes skipped
+   * @throws IOException
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    checkOpen();
+    n = Math.min(n, this.length - this.position);
+    if (n <= 0)
+      return 0;
+
+    if ((this.chunk != null) && (n <= this.chunk.length - this.chunkPos)) {
+      this.chunkPos += (int)n;
+    } else {
+      long target = this.position + n;
+      cancelWindow();
+      this.chunk    = null;
+      this.fetchSeq = (int)(target / this.chunkSize);
+      this.nextSeq  = this.fetchSeq;
+      this.chunkPos = (int)(target % this.chunkSize); // Applied when the chunk arrives
+    }
+    this.position += n;
+    return n;
+  }
+
+  /**
+   * Stops reading ahead and drops the chunks read.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    cancelWindow();
+    this.chunk = null;
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Makes sure the current chunk has bytes left to read, waiting for the
+   * next chunk if needed.
+   * @return <code>false</code> at the end of the record
+   * @throws IOException
+   */
+  private boolean nextChunk() throws IOException {
+    checkOpen();
+    if ((this.chunk != null) && (this.chunkPos < this.chunk.length))
+      return true;
+    if (this.position >= this.length)
+      return false;
+
+    int offset = 0;
+    if (this.chunk == null)
+      offset = this.chunkPos; // Set by skip()
+    else
+      this.fetchSeq++;
+
+    fillWindow();
+    Future<byte[]> future = this.window.removeFirst();
+    try {
+      this.chunk = future.get();
+      if (this.chunk == null) // No connection was free to read it ahead
+        this.chunk = fetchChunk(this.dbConnection, this.fetchSeq);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted reading chunk " + this.fetchSeq, ex);
+    } catch (ExecutionException ex) {
+      throw new IOException("Failed to read chunk " + this.fetchSeq + " of "
+                            + this.tableName + " ID=" + this.recordID, ex.getCause());
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException("Failed to read chunk " + this.fetchSeq + " of "
+                            + this.tableName + " ID=" + this.recordID, ex);
+    }
+    this.chunkPos = offset;
+    fillWindow(); // Keep reading ahead while this chunk is consumed
+    return this.chunkPos < this.chunk.length;
+  }
+
+  /**
+   * Submits reads until <code>prefetch</code> chunks past the current one
+   * are being fetched.
+   */
+  private void fillWindow() {
+    while ((this.nextSeq < this.chunkCount)
+           && (this.nextSeq <= this.fetchSeq + this.prefetch)) {
+      final int seq = this.nextSeq++;
+      this.window.add(getExecutor().submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return prefetchChunk(seq);
+        }
+      }));
+    }
+  }
+
+  /**
+   * Reads a chunk ahead on a pooled connection, if one is free.
+   * @param seq Chunk sequence number
+   * @return The bytes of the chunk or <code>null</code> if no connection was
+   *         free
+   * @throws Exception
+   */
+  private byte[] prefetchChunk(int seq) throws Exception {
+    Connection pooledConnection = MyDBUtil.tryGetDBConnection();
+    if (pooledConnection == null)
+      return null;
+    try {
+      return fetchChunk(pooledConnection, seq);
+    } finally {
+      MyDBUtil.releaseDBConnection(pooledConnection);
+    }
+  }
+
+  /**
+   * Reads a chunk and checks its size.
+   * @param connection Connection to read on
+   * @param seq        Chunk sequence number
+   * @return The bytes of the chunk
+   * @throws Exception
+   */
+  private byte[] fetchChunk(Connection connection, int seq) throws Exception {
+    byte[] data = MyDBChunkStore.readChunk(connection, this.tableName, this.recordID, seq);
+    long expected = Math.min(this.chunkSize, this.length - (long)seq * this.chunkSize);
+    if ((data == null) || (data.length != expected))
+      throw new IOException("Chunk " + seq + " of " + this.tableName + " ID=" + this.recordID
+                            + " has " + ((data == null) ? "no" : String.valueOf(data.length))
+                            + " bytes; expected " + expected);
+    return data;
+  }
+
+  /**
+   * Cancels the chunk reads that have not started and forgets the others.
+   */
+  private void cancelWindow() {
+    for (Future<byte[]> future : this.window)
+      future.cancel(false);
+    this.window.clear();
+  }
+
+  /**
+   * Throws an exception if the reader has been closed.
+   * @throws IOException
+   */
+  private void checkOpen() throws IOException {
+    if (this.closed)
+      throw new IOException("MyDB chunk reader is closed");
+  }
+
+  /**
+   * Returns the thread pool reading chunks, creating it on first use.
+   * @return The thread pool
+   */
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      int threads = (int)Math.max(1, MyDBUtil.getLongProperty("chunk.threads", 4));
+      LexURIFile.debug("MyDBChunkReader.getExecutor> threads=" + threads);
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBChunkReader-" + (++this.count));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+}
@@ -0,0 +1,281 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * The <code>MyDBChunkStore</code> class contains the database methods for
+ * tables with the <code>chunked</code> layout (see the
+ * <code>cleo.uri.mydb.layout</code> property in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil}).
+ *
+ * <p> The table itself holds the record information (ID, time, filename and
+ * length) with an empty <code>FileContents</code> column. The contents are
+ * stored in <i>table</i><code>_chunks</code>, keyed by record ID and chunk
+ * sequence number. Every chunk except the last of a record is exactly
+ * <code>chunksize</code> bytes, so the chunk holding any offset is known
+ * without reading the chunks before it:
+ *
+ * <pre>
+ * {@code
+ * CREATE TABLE `mydboutbox_chunks` (
+ *   `ID` bigint(20) NOT NULL,
+ *   `Seq` int(11) NOT NULL,
+ *   `Data` mediumblob NOT NULL,
+ *   PRIMARY KEY (`ID`,`Seq`)
+ * ) ENGINE=InnoDB DEFAULT CHARSET=latin1$$
+ * }
+ * </pre>
+ *
+ * <p> A record and its chunks are written in one transaction, so readers
+ * never see a partly written record.
+ */
+public class MyDBChunkStore {
+  // Chunk table column names
+  private static String ID_COLNAME   = "ID";
+  private static String SEQ_COLNAME  = "Seq";
+  private static String DATA_COLNAME = "Data";
+
+  /**
+   * Returns the name of the chunk table of a table.
+   * @param tableName Name of the table
+   * @return Name of the chunk table
+   */
+  public static String getChunkTableName(String tableName) {
+    return tableName + "_chunks";
+  }
+
+  /**
+   * Writes a record and its chunks in one transaction.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param in           File contents; closed by this method
+   * @param fileLength   Number of bytes in <code>in</code>
+   * @return The record ID of the new record
+   * @throws Exception
+   */
+  protected static long writeRecord(Connection dbConnection, String tableName,
+                                    String filename, InputStream in,
+                                    long fileLength) throws Exception {
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      long recordID = MyDBUtil.insertRecordInfo(dbConnection, tableName, filename, fileLength);
+      writeChunks(dbConnection, tableName, recordID, 0, new byte[0], in, fileLength);
+      // Logged last, so the change's sequence and time are taken just
+      // before the commit rather than before the chunks are transferred
+      MyDBChangeFeed.logInsert(dbConnection, tableName, recordID);
+      dbConnection.commit();
+      LexURIFile.debug("MyDBChunkStore.writeRecord> " + tableName + " ID=" + recordID
+                       + " length=" + fileLength);
+      return recordID;
+    } catch (Exception ex) {
+      rollback(dbConnection);
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+      try {
+        in.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Appends bytes to a record in one transaction. The last chunk is filled
+   * up first so every chunk but the last stays full size.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record to append to
+   * @param in           Bytes to append; closed by this method
+   * @param appendLength Number of bytes in <code>in</code>
+   * @return <code>false</code> if the record does not exist
+   * @throws Exception
+   */
+  protected static boolean appendRecord(Connection dbConnection, String tableName,
+                                        long recordID, InputStream in,
+                                        long appendLength) throws Exception {
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      long fileLength = MyDBUtil.lockRecordLength(dbConnection, tableName, recordID);
+      if (fileLength < 0) {
+        rollback(dbConnection);
+        return false;
+      }
+
+      int chunkSize = MyDBUtil.getChunkSize(tableName);
+      int seq = (int)(fileLength / chunkSize);
+      byte[] partialChunk = new byte[0];
+      if ((fileLength % chunkSize) != 0) {
+        // Rewrite the partial last chunk with the new bytes added to it
+        partialChunk = readChunk(dbConnection, tableName, recordID, seq);
+        if (partialChunk == null)
+          throw new IOException("Chunk " + seq + " of " + tableName + " ID=" + recordID + " is missing");
+        deleteChunk(dbConnection, tableName, recordID, seq);
+      }
+      writeChunks(dbConnection, tableName, recordID, seq, partialChunk, in, appendLength);
+      MyDBUtil.updateRecordLength(dbConnection, tableName, recordID, fileLength + appendLength);
+      dbConnection.commit();
+      LexURIFile.debug("MyDBChunkStore.appendRecord> " + tableName + " ID=" + recordID
+                       + " length=" + (fileLength + appendLength));
+      return true;
+    } catch (Exception ex) {
+      rollback(dbConnection);
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+      try {
+        in.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Reads one chunk of a record.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @param seq          Chunk sequence number
+   * @return The bytes of the chunk or <code>null</code> if it does not exist
+   * @throws Exception
+   */
+  protected static byte[] readChunk(Connection dbConnection, String tableName,
+                                    long recordID, int seq) throws Exception {
+    String sql = "SELECT " + DATA_COLNAME +
+                   " FROM " + MyDBUtil.checkTableName(getChunkTableName(tableName)) +
+                  " WHERE " + ID_COLNAME + " = ? AND " + SEQ_COLNAME + " = ?";
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "readChunk", sql);
+      stmt.setLong(1, recordID);
+      stmt.setInt(2, seq);
+      rs = stmt.executeQuery();
+      return rs.next() ? rs.getBytes(1) : null;
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Deletes all chunks of a record.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @throws Exception
+   */
+  protected static void deleteChunks(Connection dbConnection, String tableName,
+                                     long recordID) throws Exception {
+    String sql = "DELETE FROM " + MyDBUtil.checkTableName(getChunkTableName(tableName)) +
+                  " WHERE " + ID_COLNAME + " = ?";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "deleteChunks", sql);
+    stmt.setLong(1, recordID);
+    int retVal = stmt.executeUpdate();
+    LexURIFile.debug("MyDBChunkStore.deleteChunks> " + tableName + " ID=" + recordID
+                     + " chunks=" + retVal);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Deletes one chunk of a record.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @param seq          Chunk sequence number
+   * @throws Exception
+   */
+  private static void deleteChunk(Connection dbConnection, String tableName,
+                                  long recordID, int seq) throws Exception {
+    String sql = "DELETE FROM " + MyDBUtil.checkTableName(getChunkTableName(tableName)) +
+                  " WHERE " + ID_COLNAME + " = ? AND " + SEQ_COLNAME + " = ?";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "deleteChunk", sql);
+    stmt.setLong(1, recordID);
+    stmt.setInt(2, seq);
+    stmt.executeUpdate();
+  }
+
+  /**
+   * Splits bytes into chunks and inserts them.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @param seq          Sequence number of the first chunk written
+   * @param prefix       Bytes that go before <code>in</code> in the first
+   *                     chunk (shorter than a chunk)
+   * @param in           Bytes to write
+   * @param length       Number of bytes in <code>in</code>
+   * @throws Exception
+   */
+  private static void writeChunks(Connection dbConnection, String tableName,
+                                  long recordID, int seq, byte[] prefix,
+                                  InputStream in, long length) throws Exception {
+    String sql = "INSERT INTO " + MyDBUtil.checkTableName(getChunkTableName(tableName)) +
+                   " ( " + ID_COLNAME + ", " + SEQ_COLNAME + ", " + DATA_COLNAME + ") " +
+                 "VALUES ( ?, ?, ? )";
+    PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "writeChunk", sql);
+
+    int chunkSize = MyDBUtil.getChunkSize(tableName);
+    byte[] chunk = new byte[(int)Math.min(chunkSize, prefix.length + length)];
+    System.arraycopy(prefix, 0, chunk, 0, prefix.length);
+    int chunkLen = prefix.length;
+    long remaining = length;
+    try {
+      while ((remaining > 0) || (chunkLen > 0)) {
+        // Fill the chunk
+        while ((chunkLen < chunkSize) && (remaining > 0)) {
+          int len = in.read(chunk, chunkLen, (int)Math.min(chunk.length - chunkLen, remaining));
+          if (len == -1)
+            throw new IOException("Unexpected end of data writing " + tableName + " ID=" + recordID);
+          chunkLen += len;
+          remaining -= len;
+        }
+
+        byte[] data = chunk;
+        if (chunkLen < chunk.length) {
+          data = new byte[chunkLen];
+          System.arraycopy(chunk, 0, data, 0, chunkLen);
+        }
+        stmt.setLong(1, recordID);
+        stmt.setInt(2, seq++);
+        stmt.setBytes(3, data);
+        stmt.executeUpdate();
+        chunkLen = 0;
+      }
+    } finally {
+      try {
+        stmt.clearParameters();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Rolls back the current transaction, ignoring errors.
+   * @param dbConnection Connection to the database
+   */
+  private static void rollback(Connection dbConnection) {
+    try {
+      dbConnection.rollback();
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBChunkStore.rollback> rollback exception", ex);
+    }
+  }
+}
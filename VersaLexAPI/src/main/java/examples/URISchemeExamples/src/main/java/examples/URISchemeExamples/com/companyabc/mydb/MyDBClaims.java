@@ -0,0 +1,237 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>MyDBClaims</code> class hands out records of a shared table to
+ * one reader at a time when <code>cleo.uri.mydb.claim</code> is
+ * <code>true</code>, so several VLTrader nodes (and several actions on one
+ * node) can drain the same outbox table without sending a record twice.
+ *
+ * <p> A record is claimed by setting its <code>ClaimOwner</code> column to
+ * this node's owner name and its <code>ClaimExpires</code> column to the end
+ * of the lease with a single conditional <code>UPDATE</code>, which only
+ * succeeds if the record is unclaimed, its lease has expired, or it is
+ * already claimed by this node. Within the node, the claim is held by the
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBFile} that read
+ * the record, so another transfer on the same node skips it too.
+ *
+ * <p> The claim ends when the record is deleted. If the transfer fails and
+ * the record is not deleted, it becomes available again once the lease
+ * expires. The lease is renewed while the record is being read. Lease times
+ * come from each node's clock, so the lease should be much longer than the
+ * expected clock difference between nodes.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.claim</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, records are claimed before they are read
+ *         and only claimed records are deleted. The tables need the
+ *         <code>ClaimOwner</code> and <code>ClaimExpires</code> columns (see
+ *         {@link MyDBFile})</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.claim.lease</td>
+ *     <td>300000</td>
+ *     <td>Time in MS a claim lasts without being renewed</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.claim.owner</td>
+ *     <td><i>pid</i>@<i>host</i></td>
+ *     <td>Name identifying this node in the <code>ClaimOwner</code> column.
+ *         Must be unique per node; keeping it the same across restarts lets
+ *         a node take back its own claims immediately.</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBClaims {
+  // Maximum length of the ClaimOwner column
+  private static final int MAX_OWNER_LENGTH = 64;
+
+  // Number of unclaimed records fetched per attempt to claim the next record
+  private static final int CLAIM_CANDIDATES = 16;
+
+  // Claims held on this node keyed by table:ID
+  private static final ConcurrentHashMap<String, LocalClaim> localClaims =
+          new ConcurrentHashMap<String, LocalClaim>();
+
+  private static String owner = null;
+
+  /**
+   * Returns <code>true</code> if records must be claimed before they are
+   * read.
+   * @return Value of the <code>cleo.uri.mydb.claim</code> property
+   */
+  public static boolean isEnabled() {
+    return MyDBUtil.getBooleanProperty("claim", false);
+  }
+
+  /**
+   * Returns the length of a claim.
+   * @return Value of the <code>cleo.uri.mydb.claim.lease</code> property
+   */
+  public static long getLeaseMS() {
+    return Math.max(1000, MyDBUtil.getLongProperty("claim.lease", 300000L));
+  }
+
+  /**
+   * Returns the name stored in the <code>ClaimOwner</code> column for
+   * records claimed by this node.
+   * @return The owner name of this node
+   */
+  public static synchronized String getOwner() {
+    if (owner == null) {
+      String name = System.getProperty(MyDBUtil.PROPERTY_PREFIX + "claim.owner");
+      if ((name == null) || (name.trim().length() == 0))
+        name = ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+      name = name.trim();
+      if (name.length() > MAX_OWNER_LENGTH)
+        name = name.substring(0, MAX_OWNER_LENGTH);
+      owner = name;
+      LexURIFile.debug("MyDBClaims.getOwner> " + owner);
+    }
+    return owner;
+  }
+
+  /**
+   * Claims a specific record for <code>holder</code>.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID to claim
+   * @param holder       Object holding the claim on this node, typically the
+   *                     {@link MyDBFile} being read
+   * @return <code>true</code> if the record is now claimed by
+   *         <code>holder</code>; <code>false</code> if another node or
+   *         transfer holds it (or it no longer exists)
+   * @throws Exception
+   */
+  public static boolean claim(Connection dbConnection, String tableName,
+                              long recordID, Object holder) throws Exception {
+    long now = System.currentTimeMillis();
+    long expires = now + getLeaseMS();
+    String key = getKey(tableName, recordID);
+    LocalClaim claim = new LocalClaim(holder, expires);
+
+    // Claim it on this node first so that only one transfer on this node
+    // goes to the database for it
+    LocalClaim current = localClaims.putIfAbsent(key, claim);
+    if (current != null) {
+      if ((current.holder != holder) && (current.expires > now))
+        return false;
+      if (!localClaims.replace(key, current, claim))
+        return false; // Another transfer on this node just took it
+    }
+
+    boolean claimed = false;
+    try {
+      claimed = MyDBUtil.claimRecord(dbConnection, tableName, recordID, getOwner(), now, expires);
+    } finally {
+      if (!claimed)
+        localClaims.remove(key, claim);
+    }
+    LexURIFile.debug("MyDBClaims.claim> " + key + " claimed=" + claimed);
+    return claimed;
+  }
+
+  /**
+   * Claims the unclaimed record with the lowest record ID.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param holder       Object holding the claim on this node
+   * @return The record ID of the claimed record or -1 if no record could be
+   *         claimed
+   * @throws Exception
+   */
+  public static long claimNext(Connection dbConnection, String tableName,
+                               Object holder) throws Exception {
+    long[] candidates = MyDBUtil.getUnclaimedRecordIDs(dbConnection, tableName,
+                                                       System.currentTimeMillis(),
+                                                       CLAIM_CANDIDATES);
+    for (long recordID : candidates) {
+      if (claim(dbConnection, tableName, recordID, holder))
+        return recordID;
+    }
+    return -1;
+  }
+
+  /**
+   * Extends the lease of a record claimed by <code>holder</code>. A
+   * separate connection is used since the reader's connection may be busy
+   * streaming the record.
+   *
+   * @param tableName Name of the table
+   * @param recordID  Record ID of the claimed record
+   * @param holder    Object holding the claim on this node
+   * @return <code>true</code> if the lease was extended
+   */
+  public static boolean renew(String tableName, long recordID, Object holder) {
+    String key = getKey(tableName, recordID);
+    LocalClaim current = localClaims.get(key);
+    if ((current == null) || (current.holder != holder))
+      return false;
+
+    long expires = System.currentTimeMillis() + getLeaseMS();
+    Connection dbConnection = null;
+    boolean renewed = false;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      renewed = MyDBUtil.renewClaim(dbConnection, tableName, recordID, getOwner(), expires);
+      if (renewed)
+        localClaims.replace(key, current, new LocalClaim(holder, expires));
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBClaims.renew(" + key + ") exception.", ex);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+    LexURIFile.debug("MyDBClaims.renew> " + key + " renewed=" + renewed);
+    return renewed;
+  }
+
+  /**
+   * Forgets the claim on a record held on this node. Called once the record
+   * has been deleted.
+   *
+   * @param tableName Name of the table
+   * @param recordID  Record ID of the claimed record
+   */
+  public static void release(String tableName, long recordID) {
+    localClaims.remove(getKey(tableName, recordID));
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the key of a record in the local claim map.
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   * @return The key
+   */
+  private static String getKey(String tableName, long recordID) {
+    return tableName.toLowerCase() + ":" + recordID;
+  }
+
+  /**
+   * A claim held on this node.
+   */
+  private static class LocalClaim {
+    private final Object holder;
+    private final long   expires;
+
+    private LocalClaim(Object holder, long expires) {
+      this.holder  = holder;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The <code>MyDBCodec</code> class compresses record contents as they are
+ * written and decompresses them as they are read.
+ *
+ * <p> The codec is a table setting (see
+ * {@link MyDBUtil#getTableProperty(String, String)}):
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.codec</td>
+ *     <td><i>not set</i></td>
+ *     <td>Codec of new records, <code>deflate</code> or <code>none</code>
+ *         (also used when not set). <code>deflate</code> needs the table to
+ *         have a <code>Codec</code> column.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.codec.level</td>
+ *     <td>6</td>
+ *     <td>Deflate compression level from 1 (fastest) to 9 (smallest)</td>
+ *   </tr>
+ * </table>
+ *
+ * <p> Whether a table has the <code>Codec</code> column is read from the
+ * database metadata (see {@link MyDBTableCache#hasColumn(String, String)}),
+ * not from the setting. When it does, the codec of each record is stored in
+ * it and every record is decoded with its own codec, so records written
+ * with a different codec, before compression was turned on or after it was
+ * turned off can still be read.
+ *
+ * <p> <code>FileLength</code> always holds the uncompressed length, so
+ * {@link MyDBFile#length()} is not affected. Chunked tables (see
+ * {@link MyDBChunkStore}) are not compressed since their chunks must be
+ * addressable by uncompressed offset.
+ */
+public class MyDBCodec {
+  /** Contents stored as written */
+  public static final String NONE    = "none";
+  /** Contents stored with <code>java.util.zip.Deflater</code> */
+  public static final String DEFLATE = "deflate";
+
+  /**
+   * Returns <code>true</code> if records of a table have a
+   * <code>Codec</code> column.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the table has the column
+   * @throws Exception if the table columns could not be read
+   */
+  public static boolean hasCodecColumn(String tableName) throws Exception {
+    return MyDBTableCache.hasColumn(tableName, "Codec");
+  }
+
+  /**
+   * Returns the codec used to write new records to a table.
+   * @param tableName Name of the table
+   * @return {@link #DEFLATE} or {@link #NONE}
+   */
+  public static String getWriteCodec(String tableName) {
+    if (MyDBUtil.isChunked(tableName))
+      return NONE;
+    String codec = MyDBUtil.getTableProperty(tableName, "codec");
+    return DEFLATE.equalsIgnoreCase(codec) ? DEFLATE : NONE;
+  }
+
+  /**
+   * Returns a stream that encodes bytes written to it into <code>out</code>.
+   * Closing the returned stream finishes the encoding and closes
+   * <code>out</code>.
+   *
+   * @param codec     Codec name
+   * @param tableName Name of the table (for the compression level)
+   * @param out       Stream receiving the encoded bytes
+   * @return The encoding stream, or <code>out</code> for {@link #NONE}
+   * @throws IOException if the codec is not supported
+   */
+  public static OutputStream encode(String codec, String tableName, OutputStream out) throws IOException {
+    if ((codec == null) || NONE.equalsIgnoreCase(codec))
+      return out;
+    if (DEFLATE.equalsIgnoreCase(codec)) {
+      int level = (int)MyDBUtil.getLongTableProperty(tableName, "codec.level", 6);
+      return new DeflateOutputStream(out, Math.min(Math.max(level, 1), 9));
+    }
+    throw new IOException("Unsupported MyDB codec '" + codec + "'");
+  }
+
+  /**
+   * Returns a stream that decodes the bytes read from <code>in</code>.
+   * Closing the returned stream closes <code>in</code>.
+   *
+   * @param codec Codec name from the <code>Codec</code> column or
+   *              <code>null</code>
+   * @param in    Stream of encoded bytes
+   * @return The decoding stream, or <code>in</code> for {@link #NONE}
+   * @throws IOException if the codec is not supported
+   */
+  public static InputStream decode(String codec, InputStream in) throws IOException {
+    if ((codec == null) || NONE.equalsIgnoreCase(codec))
+      return in;
+    if (DEFLATE.equalsIgnoreCase(codec))
+      return new InflateInputStream(in);
+    throw new IOException("Unsupported MyDB codec '" + codec + "'");
+  }
+
+  /**
+   * DeflaterOutputStream that releases its deflater when closed.
+   */
+  private static class DeflateOutputStream extends DeflaterOutputStream {
+    private DeflateOutputStream(OutputStream out, int level) {
+      super(out, new Deflater(level), MyDBUtil.COPY_BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        this.def.end();
+      }
+    }
+  }
+
+  /**
+   * InflaterInputStream that releases its inflater when closed.
+   */
+  private static class InflateInputStream extends InflaterInputStream {
+    private InflateInputStream(InputStream in) {
+      super(in, new Inflater(), MyDBUtil.COPY_BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        this.inf.end();
+      }
+    }
+  }
+}
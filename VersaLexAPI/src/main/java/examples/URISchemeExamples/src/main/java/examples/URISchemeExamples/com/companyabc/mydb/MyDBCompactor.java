@@ -0,0 +1,312 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>MyDBCompactor</code> class purges the records of soft delete
+ * tables (the <code>softdelete</code> table setting, see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil#getTableProperty(String, String)})
+ * in the background.
+ *
+ * <p> Deleting a record of a soft delete table only sets its
+ * <code>DeletedTime</code> column (see {@link MyDBFile}), which is much
+ * cheaper than deleting a row with large contents, so the send thread is not
+ * held up after each transfer. Listing and reading skip records that have a
+ * <code>DeletedTime</code>. The compactor then deletes the marked records,
+ * with their chunks or blob references, in batches of
+ * <code>cleo.uri.mydb.compactor.batchsize</code> records, each batch in its
+ * own transaction.
+ *
+ * <p> A table is only compacted while it is quiet: no record of it has been
+ * read or written for <code>cleo.uri.mydb.compactor.quietperiod</code> MS
+ * and the connection pool has an idle connection. At most
+ * <code>cleo.uri.mydb.compactor.maxbatches</code> batches are purged per
+ * table and run, with a pause of <code>cleo.uri.mydb.compactor.pause</code>
+ * MS between batches; the rest waits for the next run. The counts of
+ * records marked deleted and purged are available from
+ * {@link #getStatistics()}.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.softdelete</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, deleted records are marked deleted and
+ *         purged in the background. The table needs the
+ *         <code>DeletedTime</code> column and should index it</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.interval</td>
+ *     <td>60000</td>
+ *     <td>Time in MS between compactor runs</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.batchsize</td>
+ *     <td>100</td>
+ *     <td>Number of records purged per transaction</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.maxbatches</td>
+ *     <td>10</td>
+ *     <td>Maximum number of batches purged per table and run</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.pause</td>
+ *     <td>100</td>
+ *     <td>Time in MS to wait between batches</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.quietperiod</td>
+ *     <td>30000</td>
+ *     <td>Time in MS a table must not have been used before it is
+ *         compacted</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.compactor.delay</td>
+ *     <td>0</td>
+ *     <td>Time in MS a record stays marked deleted before it may be
+ *         purged</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBCompactor {
+  // Tables that may have records to purge, keyed by lowercase name
+  private static final ConcurrentHashMap<String, String> pending =
+          new ConcurrentHashMap<String, String>();
+
+  // Time in MS each table was last read or written, keyed by lowercase name
+  private static final ConcurrentHashMap<String, Long> lastUsed =
+          new ConcurrentHashMap<String, Long>();
+
+  private static ScheduledExecutorService timer = null;
+
+  // Statistics
+  private static final AtomicLong recordsDeleted = new AtomicLong();
+  private static final AtomicLong recordsPurged  = new AtomicLong();
+  private static final AtomicLong batchCount     = new AtomicLong();
+  private static final AtomicLong busySkips      = new AtomicLong();
+  private static final AtomicLong failureCount   = new AtomicLong();
+  private static volatile long    lastPurgeMS    = 0;
+
+  /**
+   * Notes that a table is being read or written, which postpones its
+   * compaction. The first use of a soft delete table also schedules it for
+   * compaction, so records marked deleted before a restart are purged.
+   *
+   * @param tableName Name of the table
+   */
+  public static void touch(String tableName) {
+    String key = tableName.toLowerCase();
+    if ((lastUsed.put(key, System.currentTimeMillis()) == null)
+        && MyDBUtil.isSoftDelete(tableName))
+      schedule(tableName);
+  }
+
+  /**
+   * Notes that a record of a table has been marked deleted.
+   *
+   * @param tableName Name of the table
+   */
+  public static void recordDeleted(String tableName) {
+    recordsDeleted.incrementAndGet();
+    schedule(tableName);
+  }
+
+  /**
+   * Returns a snapshot of the compactor statistics.
+   *
+   * @return Compactor statistics
+   */
+  public static Statistics getStatistics() {
+    return new Statistics(recordsDeleted.get(), recordsPurged.get(), batchCount.get(),
+                          busySkips.get(), failureCount.get(), pending.size(), lastPurgeMS);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Adds a table to the tables to compact and starts the compactor if it is
+   * not running yet.
+   * @param tableName Name of the table
+   */
+  private static void schedule(String tableName) {
+    pending.put(tableName.toLowerCase(), tableName);
+    getTimer();
+  }
+
+  /**
+   * Compacts each pending table that is quiet.
+   */
+  private static void compact() {
+    for (String tableName : pending.values()) {
+      if (!isQuiet(tableName)) {
+        busySkips.incrementAndGet();
+        continue;
+      }
+      compactTable(tableName);
+    }
+  }
+
+  /**
+   * Purges up to <code>cleo.uri.mydb.compactor.maxbatches</code> batches of
+   * records marked deleted from a table. The table stays pending if records
+   * may be left.
+   * @param tableName Name of the table
+   */
+  private static void compactTable(String tableName) {
+    String key = tableName.toLowerCase();
+    // Removed first so that records deleted while purging schedule it again
+    pending.remove(key);
+
+    int batchSize  = (int)Math.max(1, MyDBUtil.getLongProperty("compactor.batchsize", 100));
+    long maxBatches = Math.max(1, MyDBUtil.getLongProperty("compactor.maxbatches", 10));
+    long pauseMS    = Math.max(0, MyDBUtil.getLongProperty("compactor.pause", 100));
+    long deletedBefore = System.currentTimeMillis()
+                         - Math.max(0, MyDBUtil.getLongProperty("compactor.delay", 0));
+    boolean done = false;
+    long purged = 0;
+    Connection dbConnection = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      for (long batch = 0; batch < maxBatches; batch++) {
+        int count = MyDBUtil.purgeDeletedRecords(dbConnection, tableName, deletedBefore, batchSize);
+        batchCount.incrementAndGet();
+        recordsPurged.addAndGet(count);
+        purged += count;
+        if (count < batchSize) {
+          done = true;
+          break;
+        }
+        if (!isQuiet(tableName))
+          break;
+        if (pauseMS > 0)
+          Thread.sleep(pauseMS);
+      }
+      lastPurgeMS = System.currentTimeMillis();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Exception ex) {
+      failureCount.incrementAndGet();
+      LexURIFile.debug(true, "MyDBCompactor.compactTable> " + tableName + " exception", ex);
+      MyDBTableCache.invalidate(tableName);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+    if (!done)
+      pending.putIfAbsent(key, tableName);
+    LexURIFile.debug("MyDBCompactor.compactTable> " + tableName + " purged=" + purged
+                     + " done=" + done);
+  }
+
+  /**
+   * Returns <code>true</code> if a table has not been used for the quiet
+   * period and the connection pool is not fully in use.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the table can be compacted now
+   */
+  private static boolean isQuiet(String tableName) {
+    Long used = lastUsed.get(tableName.toLowerCase());
+    long quietPeriod = Math.max(0, MyDBUtil.getLongProperty("compactor.quietperiod", 30000L));
+    if ((used != null) && (System.currentTimeMillis() - used.longValue() < quietPeriod))
+      return false;
+    try {
+      MyDBConnectionPool.Statistics stats = MyDBUtil.getPoolStatistics();
+      return stats.getBorrowedConnections() < stats.getMaxSize();
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the timer running the compactor, creating it on first use.
+   * @return The timer
+   */
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      long intervalMS = Math.max(1000, MyDBUtil.getLongProperty("compactor.interval", 60000L));
+      LexURIFile.debug("MyDBCompactor.getTimer> interval=" + intervalMS);
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBCompactor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          compact();
+        }
+      }, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+    }
+    return timer;
+  }
+
+  /**
+   * A snapshot of the compactor statistics.
+   */
+  public static class Statistics {
+    private final long recordsDeleted;
+    private final long recordsPurged;
+    private final long batchCount;
+    private final long busySkips;
+    private final long failureCount;
+    private final int  pendingTables;
+    private final long lastPurgeMS;
+
+    private Statistics(long recordsDeleted, long recordsPurged, long batchCount,
+                       long busySkips, long failureCount, int pendingTables,
+                       long lastPurgeMS) {
+      this.recordsDeleted = recordsDeleted;
+      this.recordsPurged  = recordsPurged;
+      this.batchCount     = batchCount;
+      this.busySkips      = busySkips;
+      this.failureCount   = failureCount;
+      this.pendingTables  = pendingTables;
+      this.lastPurgeMS    = lastPurgeMS;
+    }
+
+    /** @return Number of records marked deleted */
+    public long getRecordsDeleted() { return this.recordsDeleted; }
+    /** @return Number of records purged */
+    public long getRecordsPurged() { return this.recordsPurged; }
+    /** @return Number of purge transactions */
+    public long getBatchCount() { return this.batchCount; }
+    /** @return Number of times a table was not compacted because it was in use */
+    public long getBusySkips() { return this.busySkips; }
+    /** @return Number of compactions that failed */
+    public long getFailureCount() { return this.failureCount; }
+    /** @return Number of tables that may have records to purge */
+    public int getPendingTables() { return this.pendingTables; }
+    /** @return Time in MS of the last completed compaction, or 0 */
+    public long getLastPurgeMS() { return this.lastPurgeMS; }
+
+    /**
+     * Returns a string representation of the statistics used for debugging.
+     * @return String representing the statistics
+     */
+    @Override
+    public String toString() {
+      return "deleted=" + this.recordsDeleted
+              + " purged=" + this.recordsPurged
+              + " batches=" + this.batchCount
+              + " busySkips=" + this.busySkips
+              + " failures=" + this.failureCount
+              + " pendingTables=" + this.pendingTables
+              + " lastPurgeMS=" + this.lastPurgeMS;
+    }
+  }
+}
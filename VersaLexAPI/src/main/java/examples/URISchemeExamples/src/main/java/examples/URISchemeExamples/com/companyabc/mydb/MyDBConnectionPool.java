@@ -0,0 +1,552 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The <code>MyDBConnectionPool</code> class is a bounded pool of JDBC
+ * connections used by {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil}.
+ *
+ * <p> Connections are handed out with {@link #borrowConnection()} and must be
+ * handed back with {@link #returnConnection(Connection)} (or
+ * {@link #discardConnection(Connection)} if the connection is known to be
+ * broken). The pool:
+ * <ul>
+ * <li> never has more than <code>maxSize</code> connections open at once;</li>
+ * <li> validates a connection that has been idle longer than the validation
+ *      interval before handing it out;</li>
+ * <li> closes connections that have been idle longer than the idle timeout or
+ *      that are older than the maximum lifetime;</li>
+ * <li> waits up to the borrow timeout for a connection to be returned when
+ *      all connections are in use.</li>
+ * </ul>
+ *
+ * <p> Each pooled connection keeps a
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBStatementCache}
+ * so statements are prepared once per connection rather than once per use.
+ */
+public class MyDBConnectionPool {
+  // Connection information
+  private final String url;
+  private final String username;
+  private final String pw;
+
+  // Pool settings
+  private final int  maxSize;
+  private final long maxLifetimeMS;
+  private final long idleTimeoutMS;
+  private final long validationIntervalMS;
+  private final int  validationTimeoutSecs;
+  private final long borrowTimeoutMS;
+  private final int  statementCacheSize;
+
+  // Pool state (guarded by this)
+  private final LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+  private final IdentityHashMap<Connection, PooledConnection> borrowedConnections =
+          new IdentityHashMap<Connection, PooledConnection>();
+  private int     openConnections = 0;
+  private boolean closed          = false;
+
+  // Statistics (guarded by this)
+  private long borrowCount        = 0;
+  private long returnCount        = 0;
+  private long createCount        = 0;
+  private long destroyCount       = 0;
+  private long validationFailures = 0;
+  private long timeoutCount       = 0;
+  private long totalWaitMS        = 0;
+  private long maxWaitMS          = 0;
+
+  /**
+   * Creates a connection pool. No connections are opened until the first
+   * call to {@link #borrowConnection()}.
+   *
+   * @param url                   JDBC URL of the database
+   * @param username              Database user or <code>null</code>
+   * @param pw                    Database password or <code>null</code>
+   * @param maxSize               Maximum number of open connections
+   * @param maxLifetimeMS         Maximum age of a connection in MS (0 for
+   *                              no limit)
+   * @param idleTimeoutMS         Maximum time in MS a connection may sit
+   *                              unused in the pool (0 for no limit)
+   * @param validationIntervalMS  Idle time in MS after which a connection is
+   *                              validated before being handed out
+   * @param validationTimeoutSecs Timeout in seconds for the validation check
+   * @param borrowTimeoutMS       Maximum time in MS to wait for a connection
+   * @param statementCacheSize    Maximum number of prepared statements
+   *                              cached per connection
+   */
+  public MyDBConnectionPool(String url, String username, String pw,
+                            int maxSize, long maxLifetimeMS, long idleTimeoutMS,
+                            long validationIntervalMS, int validationTimeoutSecs,
+                            long borrowTimeoutMS, int statementCacheSize) {
+    this.url                   = url;
+    this.username              = username;
+    this.pw                    = pw;
+    this.maxSize               = Math.max(1, maxSize);
+    this.maxLifetimeMS         = maxLifetimeMS;
+    this.idleTimeoutMS         = idleTimeoutMS;
+    this.validationIntervalMS  = validationIntervalMS;
+    this.validationTimeoutSecs = validationTimeoutSecs;
+    this.borrowTimeoutMS       = borrowTimeoutMS;
+    this.statementCacheSize    = statementCacheSize;
+  }
+
+  /**
+   * Borrows a connection from the pool, opening a new one if none are idle
+   * and the pool is not full. If the pool is full, waits up to the borrow
+   * timeout for a connection to be returned.
+   *
+   * @return A connection to the database in auto-commit mode
+   * @throws SQLException if the pool is closed, the borrow timeout expired,
+   *                      or a new connection could not be opened
+   */
+  public Connection borrowConnection() throws SQLException {
+    return borrow(true/*wait*/);
+  }
+
+  /**
+   * Borrows a connection from the pool if one is idle or the pool is not
+   * full, without waiting for a connection to be returned.
+   *
+   * @return A connection to the database in auto-commit mode or
+   *         <code>null</code> if all connections are in use
+   * @throws SQLException if the pool is closed or a new connection could not
+   *                      be opened
+   */
+  public Connection tryBorrowConnection() throws SQLException {
+    return borrow(false/*wait*/);
+  }
+
+  /**
+   * Borrows a connection from the pool, opening a new one if none are idle
+   * and the pool is not full.
+   *
+   * @param wait <code>true</code> to wait up to the borrow timeout if the
+   *             pool is full; <code>false</code> to return <code>null</code>
+   * @return A connection to the database in auto-commit mode
+   * @throws SQLException
+   */
+  private Connection borrow(boolean wait) throws SQLException {
+    long startMS = System.currentTimeMillis();
+    long deadline = startMS + this.borrowTimeoutMS;
+
+    while (true) {
+      PooledConnection pooled = null;
+      LinkedList<PooledConnection> evicted;
+      synchronized (this) {
+        evicted = evictIdleConnections();
+      }
+      for (PooledConnection stale : evicted)
+        closeQuietly(stale);
+
+      synchronized (this) {
+        while (!this.closed && this.idleConnections.isEmpty()
+               && (this.openConnections >= this.maxSize)) {
+          if (!wait)
+            return null;
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            this.timeoutCount++;
+            throw new SQLException("Timed out after " + this.borrowTimeoutMS
+                    + "ms waiting for a MyDB connection (" + this.maxSize
+                    + " in use)");
+          }
+          try {
+            this.wait(remaining);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a MyDB connection", ie);
+          }
+        }
+        if (this.closed)
+          throw new SQLException("MyDB connection pool is closed");
+
+        if (!this.idleConnections.isEmpty())
+          pooled = this.idleConnections.removeFirst();
+        else
+          this.openConnections++; // Reserve a slot for the new connection
+      }
+
+      if (pooled == null) {
+        try {
+          pooled = new PooledConnection(openConnection(), this.statementCacheSize);
+        } catch (SQLException ex) {
+          synchronized (this) {
+            this.openConnections--;
+            this.notifyAll();
+          }
+          throw ex;
+        }
+        synchronized (this) {
+          this.createCount++;
+        }
+      } else if (!isUsable(pooled)) {
+        destroy(pooled);
+        continue;
+      }
+
+      long waitMS = System.currentTimeMillis() - startMS;
+      synchronized (this) {
+        this.borrowedConnections.put(pooled.connection, pooled);
+        this.borrowCount++;
+        this.totalWaitMS += waitMS;
+        if (waitMS > this.maxWaitMS)
+          this.maxWaitMS = waitMS;
+      }
+      return pooled.connection;
+    }
+  }
+
+  /**
+   * Returns a borrowed connection to the pool. Any open transaction is rolled
+   * back and auto-commit is restored. Connections that are closed, too old,
+   * or cannot be reset are closed rather than pooled.
+   *
+   * @param connection Connection previously returned by
+   *                   {@link #borrowConnection()}
+   */
+  public void returnConnection(Connection connection) {
+    release(connection, false);
+  }
+
+  /**
+   * Removes a borrowed connection from the pool and closes it. This should be
+   * used instead of {@link #returnConnection(Connection)} when the connection
+   * is known to be broken.
+   *
+   * @param connection Connection previously returned by
+   *                   {@link #borrowConnection()}
+   */
+  public void discardConnection(Connection connection) {
+    release(connection, true);
+  }
+
+  /**
+   * Returns <code>true</code> if a connection is currently borrowed from
+   * this pool.
+   *
+   * @param connection Connection to check
+   * @return <code>true</code> if <code>connection</code> was returned by
+   *         {@link #borrowConnection()} and has not been returned yet
+   */
+  public synchronized boolean isBorrowed(Connection connection) {
+    return this.borrowedConnections.containsKey(connection);
+  }
+
+  /**
+   * Returns the prepared statement cache of a borrowed connection.
+   *
+   * @param connection Connection previously returned by
+   *                   {@link #borrowConnection()}
+   * @return The statement cache of the connection or <code>null</code> if
+   *         the connection is not currently borrowed from this pool
+   */
+  public synchronized MyDBStatementCache getStatementCache(Connection connection) {
+    PooledConnection pooled = this.borrowedConnections.get(connection);
+    return (pooled != null) ? pooled.statementCache : null;
+  }
+
+  /**
+   * Closes all idle connections and prevents further borrowing. Connections
+   * currently borrowed are closed when they are returned.
+   */
+  public void close() {
+    LinkedList<PooledConnection> toClose;
+    synchronized (this) {
+      this.closed = true;
+      toClose = new LinkedList<PooledConnection>(this.idleConnections);
+      this.idleConnections.clear();
+      this.openConnections -= toClose.size();
+      this.notifyAll();
+    }
+    for (PooledConnection pooled : toClose)
+      closeQuietly(pooled);
+  }
+
+  /**
+   * Returns a snapshot of the pool statistics.
+   * @return Current pool statistics
+   */
+  public synchronized Statistics getStatistics() {
+    return new Statistics(this.maxSize, this.openConnections,
+                          this.idleConnections.size(),
+                          this.borrowedConnections.size(),
+                          this.borrowCount, this.returnCount,
+                          this.createCount, this.destroyCount,
+                          this.validationFailures, this.timeoutCount,
+                          this.totalWaitMS, this.maxWaitMS);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Opens a new physical connection to the database.
+   * @return A new database connection
+   * @throws SQLException
+   */
+  private Connection openConnection() throws SQLException {
+    LexURIFile.debug("MyDBConnectionPool.openConnection> url[" + this.url + "]");
+    if ((this.username != null && this.username.length() > 0) ||
+        (this.pw != null && this.pw.length() > 0))
+      return DriverManager.getConnection(this.url, this.username, this.pw);
+    else
+      return DriverManager.getConnection(this.url);
+  }
+
+  /**
+   * Returns <code>true</code> if an idle connection can be handed out.
+   * @param pooled Idle connection taken from the pool
+   * @return <code>true</code> if the connection is usable
+   */
+  private boolean isUsable(PooledConnection pooled) {
+    long now = System.currentTimeMillis();
+    if (isExpired(pooled, now))
+      return false;
+    if ((now - pooled.lastUsedMS) < this.validationIntervalMS)
+      return true;
+    try {
+      if (pooled.connection.isValid(this.validationTimeoutSecs))
+        return true;
+    } catch (SQLException ex) {
+      LexURIFile.debug("MyDBConnectionPool.isUsable> Validation exception", ex);
+    }
+    synchronized (this) {
+      this.validationFailures++;
+    }
+    return false;
+  }
+
+  /**
+   * Returns <code>true</code> if the connection is older than the maximum
+   * lifetime.
+   * @param pooled Connection to check
+   * @param now    Current time in MS
+   * @return <code>true</code> if the connection should be retired
+   */
+  private boolean isExpired(PooledConnection pooled, long now) {
+    return (this.maxLifetimeMS > 0) && ((now - pooled.createdMS) >= this.maxLifetimeMS);
+  }
+
+  /**
+   * Removes connections that have been idle longer than the idle timeout or
+   * that are past their maximum lifetime. Must be called holding the lock;
+   * the caller closes the returned connections after releasing it. Idle
+   * connections are kept most-recently-used first, so the oldest are at the
+   * end of the list.
+   *
+   * @return The connections removed from the pool
+   */
+  private LinkedList<PooledConnection> evictIdleConnections() {
+    LinkedList<PooledConnection> evicted = new LinkedList<PooledConnection>();
+    long now = System.currentTimeMillis();
+    Iterator<PooledConnection> it = this.idleConnections.descendingIterator();
+    while (it.hasNext()) {
+      PooledConnection pooled = it.next();
+      boolean idleTooLong = (this.idleTimeoutMS > 0)
+                            && ((now - pooled.lastUsedMS) >= this.idleTimeoutMS);
+      if (idleTooLong || isExpired(pooled, now)) {
+        it.remove();
+        this.openConnections--;
+        evicted.add(pooled);
+      }
+    }
+    if (!evicted.isEmpty())
+      this.notifyAll();
+    return evicted;
+  }
+
+  /**
+   * Returns or discards a borrowed connection.
+   * @param connection Connection being released
+   * @param discard    <code>true</code> to close instead of pool
+   */
+  private void release(Connection connection, boolean discard) {
+    if (connection == null)
+      return;
+
+    PooledConnection pooled;
+    synchronized (this) {
+      pooled = this.borrowedConnections.remove(connection);
+      this.returnCount++;
+    }
+    if (pooled == null) {
+      // Not one of ours; just close it
+      try {
+        connection.close();
+      } catch (Exception ex) {
+        LexURIFile.debug("MyDBConnectionPool.release> close exception", ex);
+      }
+      return;
+    }
+
+    if (!discard)
+      discard = this.closed || isExpired(pooled, System.currentTimeMillis())
+                || !reset(pooled);
+
+    if (discard) {
+      destroy(pooled);
+    } else {
+      synchronized (this) {
+        pooled.lastUsedMS = System.currentTimeMillis();
+        this.idleConnections.addFirst(pooled);
+        this.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Restores a connection to its pooled state.
+   * @param pooled Connection to reset
+   * @return <code>true</code> if the connection can be pooled again
+   */
+  private boolean reset(PooledConnection pooled) {
+    try {
+      Connection connection = pooled.connection;
+      if (connection.isClosed())
+        return false;
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      return true;
+    } catch (SQLException ex) {
+      LexURIFile.debug("MyDBConnectionPool.reset> Exception resetting connection", ex);
+      return false;
+    }
+  }
+
+  /**
+   * Closes a connection and frees its slot in the pool.
+   * @param pooled Connection to close
+   */
+  private void destroy(PooledConnection pooled) {
+    synchronized (this) {
+      this.openConnections--;
+      this.notifyAll();
+    }
+    closeQuietly(pooled);
+  }
+
+  /**
+   * Closes the physical connection. The caller is responsible for having
+   * released its slot in <code>openConnections</code>.
+   * @param pooled Connection to close
+   */
+  private void closeQuietly(PooledConnection pooled) {
+    synchronized (this) {
+      this.destroyCount++;
+    }
+    pooled.statementCache.close();
+    try {
+      pooled.connection.close();
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBConnectionPool.closeQuietly> close exception", ex);
+    }
+  }
+
+  /**
+   * A physical connection and its pool bookkeeping.
+   */
+  private static class PooledConnection {
+    private final Connection         connection;
+    private final MyDBStatementCache statementCache;
+    private final long               createdMS;
+    private long                     lastUsedMS;
+
+    private PooledConnection(Connection connection, int statementCacheSize) {
+      this.connection     = connection;
+      this.statementCache = new MyDBStatementCache(connection, statementCacheSize);
+      this.createdMS      = System.currentTimeMillis();
+      this.lastUsedMS     = this.createdMS;
+    }
+  }
+
+  /**
+   * Snapshot of the connection pool statistics.
+   */
+  public static class Statistics {
+    private final int  maxSize;
+    private final int  openConnections;
+    private final int  idleConnections;
+    private final int  borrowedConnections;
+    private final long borrowCount;
+    private final long returnCount;
+    private final long createCount;
+    private final long destroyCount;
+    private final long validationFailures;
+    private final long timeoutCount;
+    private final long totalWaitMS;
+    private final long maxWaitMS;
+
+    private Statistics(int maxSize, int openConnections, int idleConnections,
+                       int borrowedConnections, long borrowCount,
+                       long returnCount, long createCount, long destroyCount,
+                       long validationFailures, long timeoutCount,
+                       long totalWaitMS, long maxWaitMS) {
+      this.maxSize             = maxSize;
+      this.openConnections     = openConnections;
+      this.idleConnections     = idleConnections;
+      this.borrowedConnections = borrowedConnections;
+      this.borrowCount         = borrowCount;
+      this.returnCount         = returnCount;
+      this.createCount         = createCount;
+      this.destroyCount        = destroyCount;
+      this.validationFailures  = validationFailures;
+      this.timeoutCount        = timeoutCount;
+      this.totalWaitMS         = totalWaitMS;
+      this.maxWaitMS           = maxWaitMS;
+    }
+
+    /** @return Maximum number of open connections */
+    public int getMaxSize() { return this.maxSize; }
+    /** @return Number of open connections (idle + borrowed) */
+    public int getOpenConnections() { return this.openConnections; }
+    /** @return Number of idle connections */
+    public int getIdleConnections() { return this.idleConnections; }
+    /** @return Number of borrowed connections */
+    public int getBorrowedConnections() { return this.borrowedConnections; }
+    /** @return Total number of successful borrows */
+    public long getBorrowCount() { return this.borrowCount; }
+    /** @return Total number of returns and discards */
+    public long getReturnCount() { return this.returnCount; }
+    /** @return Total number of physical connections opened */
+    public long getCreateCount() { return this.createCount; }
+    /** @return Total number of physical connections closed */
+    public long getDestroyCount() { return this.destroyCount; }
+    /** @return Number of idle connections that failed validation */
+    public long getValidationFailures() { return this.validationFailures; }
+    /** @return Number of borrows that timed out */
+    public long getTimeoutCount() { return this.timeoutCount; }
+    /** @return Total time in MS spent waiting in {@link MyDBConnectionPool#borrowConnection()} */
+    public long getTotalWaitMS() { return this.totalWaitMS; }
+    /** @return Longest time in MS spent in a single borrow */
+    public long getMaxWaitMS() { return this.maxWaitMS; }
+
+    /**
+     * Returns a string representation of the statistics used for debugging.
+     * @return String representing the statistics
+     */
+    @Override
+    public String toString() {
+      return "max=" + this.maxSize
+              + " open=" + this.openConnections
+              + " idle=" + this.idleConnections
+              + " borrowed=" + this.borrowedConnections
+              + " borrows=" + this.borrowCount
+              + " returns=" + this.returnCount
+              + " created=" + this.createCount
+              + " destroyed=" + this.destroyCount
+              + " validationFailures=" + this.validationFailures
+              + " timeouts=" + this.timeoutCount
+              + " totalWaitMS=" + this.totalWaitMS
+              + " maxWaitMS=" + this.maxWaitMS;
+    }
+  }
+}
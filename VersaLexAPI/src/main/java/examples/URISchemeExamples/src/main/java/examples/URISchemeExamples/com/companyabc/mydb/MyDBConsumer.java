@@ -0,0 +1,267 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>MyDBConsumer</code> class reads and deletes a record in a single
+ * transaction when <code>cleo.uri.mydb.consume</code> is <code>true</code>,
+ * which is meant for outbox tables sent with <code>PUT -DEL</code>.
+ *
+ * <p> In consume mode a
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBInputStream}
+ * turns off auto-commit and locks the record (with
+ * <code>SELECT ... FOR UPDATE</code>, or with the claim when
+ * <code>cleo.uri.mydb.claim</code> is <code>true</code>) before reading it.
+ * When the stream is closed, its connection and open transaction are kept
+ * here instead of going back to the pool. When VLTrader then deletes the
+ * file after a successful send, the record is deleted on that connection
+ * and the transaction is committed. Each record sent therefore uses one
+ * connection and one commit, and the record deleted is the one that was
+ * read rather than the last one read from the table.
+ *
+ * <p> If the file is not deleted within
+ * <code>cleo.uri.mydb.consume.timeout</code> MS (for example because the
+ * send failed), the transaction is rolled back, which leaves the record in
+ * the table, and the connection goes back to the pool. The record stays
+ * locked until then, so consume mode should not be used for tables that
+ * are sent without <code>-DEL</code>.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.consume</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, a record is read and deleted in one
+ *         transaction</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.consume.timeout</td>
+ *     <td>60000</td>
+ *     <td>Time in MS a read record waits to be deleted before its
+ *         transaction is rolled back</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBConsumer {
+  // Records read and waiting to be deleted, keyed by table:ID
+  private static final ConcurrentHashMap<String, Pending> pending =
+          new ConcurrentHashMap<String, Pending>();
+
+  private static ScheduledExecutorService timer = null;
+
+  /**
+   * Returns <code>true</code> if records are read and deleted in one
+   * transaction.
+   * @return Value of the <code>cleo.uri.mydb.consume</code> property
+   */
+  public static boolean isEnabled() {
+    return MyDBUtil.getBooleanProperty("consume", false);
+  }
+
+  /**
+   * Keeps the connection of a record that has been read until it is
+   * deleted or the consume timeout expires.
+   *
+   * @param myDBFile     File the record was read for
+   * @param dbConnection Connection holding the record locked in an open
+   *                     transaction
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record read
+   */
+  public static void park(MyDBFile myDBFile, Connection dbConnection,
+                          String tableName, long recordID) {
+    final Pending p = new Pending(myDBFile, dbConnection, tableName, recordID);
+    Pending previous = pending.put(p.key, p);
+    if (previous != null)
+      rollback(previous, "replaced"); // Read again before being deleted
+    LexURIFile.debug("MyDBConsumer.park> " + p.key);
+    ScheduledFuture<?> timeout = getTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        abandon(p, "timed out");
+      }
+    }, getTimeoutMS(), TimeUnit.MILLISECONDS);
+    synchronized (p) {
+      if (p.done)
+        timeout.cancel(false);
+      else
+        p.timeout = timeout;
+    }
+  }
+
+  /**
+   * Deletes the record read for a file, if there is one waiting.
+   *
+   * @param myDBFile File being deleted
+   * @return <code>false</code> if no record read for <code>myDBFile</code>
+   *         is waiting
+   * @throws Exception if the record could not be deleted
+   */
+  public static boolean complete(MyDBFile myDBFile) throws Exception {
+    for (Pending p : pending.values()) {
+      if (p.myDBFile == myDBFile)
+        return finish(p);
+    }
+    return false;
+  }
+
+  /**
+   * Deletes a record if it has been read and is waiting.
+   *
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   * @return <code>false</code> if the record is not waiting
+   * @throws Exception if the record could not be deleted
+   */
+  public static boolean complete(String tableName, long recordID) throws Exception {
+    Pending p = pending.get(getKey(tableName, recordID));
+    return (p != null) && finish(p);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Deletes a waiting record and commits its transaction.
+   * @param p Waiting record
+   * @return <code>false</code> if the record was no longer waiting
+   * @throws Exception if the record could not be deleted
+   */
+  private static boolean finish(Pending p) throws Exception {
+    if (!pending.remove(p.key, p) || !take(p))
+      return false;
+    boolean deleted = false;
+    List<String> externalPaths = new ArrayList<String>();
+    try {
+      deleted = MyDBUtil.deleteLockedRecord(p.dbConnection, p.tableName, p.recordID, externalPaths);
+      p.dbConnection.commit();
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBConsumer.finish> " + p.key + " delete failed", ex);
+      MyDBUtil.discardDBConnection(p.dbConnection);
+      throw ex;
+    }
+    MyDBExternalStore.deleteFiles(externalPaths);
+    MyDBUtil.releaseDBConnection(p.dbConnection);
+    MyDBClaims.release(p.tableName, p.recordID);
+    LexURIFile.debug("MyDBConsumer.finish> " + p.key + " deleted=" + deleted);
+    return true;
+  }
+
+  /**
+   * Rolls back the transaction of a record that is still waiting to be
+   * deleted. Does nothing if the record has been deleted or rolled back in
+   * the meantime.
+   * @param p      Waiting record
+   * @param reason Reason for the debug log
+   */
+  private static void abandon(Pending p, String reason) {
+    if (!pending.remove(p.key, p))
+      return; // Deleted, replaced or already rolled back
+    rollback(p, reason);
+  }
+
+  /**
+   * Rolls back the transaction of a record that was not deleted and
+   * returns its connection to the pool. The record must already have been
+   * removed from the waiting records.
+   * @param p      Waiting record
+   * @param reason Reason for the debug log
+   */
+  private static void rollback(Pending p, String reason) {
+    if (!take(p))
+      return;
+    if (pending.get(p.key) == null)
+      MyDBClaims.release(p.tableName, p.recordID);
+    LexURIFile.debug("MyDBConsumer.abandon> " + p.key + " " + reason);
+    MyDBUtil.releaseDBConnection(p.dbConnection); // Rolls back
+  }
+
+  /**
+   * Takes over a waiting record for deleting or rolling it back, and
+   * cancels its timeout. Only the first caller gets it, so its connection
+   * is released exactly once.
+   * @param p Waiting record
+   * @return <code>false</code> if the record was already taken
+   */
+  private static boolean take(Pending p) {
+    synchronized (p) {
+      if (p.done)
+        return false;
+      p.done = true;
+      if (p.timeout != null)
+        p.timeout.cancel(false);
+      return true;
+    }
+  }
+
+  /**
+   * Returns the time a read record waits to be deleted.
+   * @return Value of the <code>cleo.uri.mydb.consume.timeout</code> property
+   */
+  private static long getTimeoutMS() {
+    return Math.max(1000, MyDBUtil.getLongProperty("consume.timeout", 60000L));
+  }
+
+  /**
+   * Returns the key of a record.
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   * @return The key
+   */
+  private static String getKey(String tableName, long recordID) {
+    return tableName.toLowerCase() + ":" + recordID;
+  }
+
+  /**
+   * Returns the timer rolling back records that are not deleted, creating
+   * it on first use.
+   * @return The timer
+   */
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBConsumer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /**
+   * A record read and waiting to be deleted.
+   */
+  private static class Pending {
+    private final MyDBFile     myDBFile;
+    private final Connection   dbConnection;
+    private final String       tableName;
+    private final long         recordID;
+    private final String       key;
+    private boolean            done    = false; // Guarded by this
+    private ScheduledFuture<?> timeout = null;  // Guarded by this
+
+    private Pending(MyDBFile myDBFile, Connection dbConnection, String tableName, long recordID) {
+      this.myDBFile     = myDBFile;
+      this.dbConnection = dbConnection;
+      this.tableName    = tableName;
+      this.recordID     = recordID;
+      this.key          = getKey(tableName, recordID);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+/**
+ * SQL dialect for Apache Derby (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBDialect}).
+ *
+ * <p> The embedded driver is used unless the URL names a network server
+ * (<code>jdbc:derby://</code>...), and the default URL is an in-memory
+ * database. Derby cannot match regular expressions, so <i>[regex]</i>
+ * filename patterns are matched by VLTrader. Wildcards are matched with
+ * <code>LOWER(Filename) LIKE ?</code>, which Derby cannot index, so a
+ * pattern listing reads the whole table.
+ */
+public class MyDBDerbyDialect extends MyDBDialect {
+  @Override
+  public String getName() {
+    return "derby";
+  }
+
+  @Override
+  public String getDriverClass(String url) {
+    if ((url != null) && url.startsWith("jdbc:derby://"))
+      return "org.apache.derby.jdbc.ClientDriver";
+    return "org.apache.derby.jdbc.EmbeddedDriver";
+  }
+
+  @Override
+  public String getDefaultURL() {
+    return "jdbc:derby:memory:mysqlvltrader;create=true";
+  }
+
+  /**
+   * Holds the update locks until the end of the transaction.
+   * @return The locking clause
+   */
+  @Override
+  public String getForUpdateClause() {
+    return " FOR UPDATE WITH RS";
+  }
+}
@@ -0,0 +1,250 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A <code>MyDBDialect</code> holds the parts of the SQL used by
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil} that
+ * differ between databases. The dialect is chosen with the
+ * <code>cleo.uri.mydb.dialect</code> property:
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.dialect</td>
+ *     <td><i>from</i> cleo.uri.mydb.url</td>
+ *     <td><code>mysql</code>, <code>postgresql</code>, <code>h2</code>,
+ *         <code>derby</code> or the class name of a
+ *         <code>MyDBDialect</code> subclass with a public no-argument
+ *         constructor. When not set, the dialect is taken from the JDBC URL
+ *         (<code>jdbc:</code><i>dialect</i><code>:</code>...), and is
+ *         <code>mysql</code> if there is no URL either</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.driver</td>
+ *     <td><i>from the dialect</i></td>
+ *     <td>JDBC driver class to load</td>
+ *   </tr>
+ * </table>
+ *
+ * <p> The default implementations use standard SQL and JDBC;
+ * {@link MyDBMySQLDialect}, {@link MyDBPostgreSQLDialect},
+ * {@link MyDBH2Dialect} and {@link MyDBDerbyDialect} override them with the
+ * faster or required forms of each database. The claim and reference count
+ * updates are plain conditional <code>UPDATE</code>s and batched inserts
+ * use JDBC batches, which every dialect supports. The table definitions in
+ * {@link MyDBFile} are for MySQL; other databases use their own types for
+ * the columns (for example <code>bytea</code> for PostgreSQL and
+ * <code>BLOB</code> for H2 and Derby, and an identity column for
+ * <code>ID</code>).
+ */
+public abstract class MyDBDialect {
+  /**
+   * Returns the name of the dialect.
+   * @return The dialect name used in <code>cleo.uri.mydb.dialect</code>
+   */
+  public abstract String getName();
+
+  /**
+   * Returns the JDBC driver class for a URL.
+   * @param url JDBC URL of the database
+   * @return Driver class name
+   */
+  public abstract String getDriverClass(String url);
+
+  /**
+   * Returns the JDBC URL used when <code>cleo.uri.mydb.url</code> is not set.
+   * @return Default JDBC URL
+   */
+  public abstract String getDefaultURL();
+
+  /**
+   * Returns the clause that limits an ordered query to <code>count</code>
+   * rows. It is appended after the <code>ORDER BY</code> clause.
+   * @param count Number of rows, either a number or <code>?</code>
+   * @return The limit clause with a leading space
+   */
+  public String getLimitClause(String count) {
+    return " FETCH FIRST " + count + " ROWS ONLY";
+  }
+
+  /**
+   * Returns the clause that locks the rows selected by a single table query
+   * until the end of the transaction.
+   * @return The locking clause with a leading space
+   */
+  public String getForUpdateClause() {
+    return " FOR UPDATE";
+  }
+
+  /**
+   * Returns a predicate matching a column against a <code>LIKE</code>
+   * pattern parameter, ignoring case. The parameter is already in lower
+   * case and uses <code>!</code> as its escape character. A plain index on
+   * the column does not help <code>LOWER(</code><i>column</i><code>)</code>,
+   * so a dialect whose database can index the match should say how.
+   * @param column Column name
+   * @return The predicate with one parameter
+   */
+  public String getLikePredicate(String column) {
+    return "LOWER(" + column + ") LIKE ? ESCAPE '!'";
+  }
+
+  /**
+   * Returns a predicate matching a column against a regular expression
+   * parameter. The parameter only uses the subset of the syntax accepted by
+   * {@link MyDBUtil#getFilenameMatch(String)}, and the predicate must match
+   * at least every value the Java regular expression would (ignoring case or
+   * not anchoring the match is fine).
+   * @param column Column name
+   * @return The predicate with one parameter, or <code>null</code> if the
+   *         database cannot match regular expressions
+   */
+  public String getRegexpPredicate(String column) {
+    return null;
+  }
+
+  /**
+   * Configures a statement reading a record so that the contents are
+   * streamed rather than read into memory by the driver.
+   * @param stmt Statement to configure
+   * @throws SQLException
+   */
+  public void setStreamingFetch(Statement stmt) throws SQLException {
+    // Drivers stream BLOBs by default
+  }
+
+  /**
+   * Returns the names of the generated key columns to ask the driver for
+   * after an <code>INSERT</code>.
+   * @return The column names, or <code>null</code> to use
+   *         <code>Statement.RETURN_GENERATED_KEYS</code>
+   */
+  public String[] getGeneratedKeyColumns() {
+    return null;
+  }
+
+  /**
+   * Sets a parameter from a stream of record contents.
+   * @param stmt   Statement to set the parameter of
+   * @param index  Parameter index
+   * @param in     Contents
+   * @param length Number of bytes in <code>in</code>
+   * @throws SQLException
+   */
+  public void setBinaryStream(PreparedStatement stmt, int index,
+                              InputStream in, long length) throws SQLException {
+    stmt.setBinaryStream(index, in, length);
+  }
+
+  /**
+   * Returns <code>true</code> if a <code>DELETE</code> can return columns of
+   * the deleted row with a <code>RETURNING</code> clause.
+   * @return <code>false</code> unless the database supports
+   *         <code>DELETE ... RETURNING</code>
+   */
+  public boolean supportsDeleteReturning() {
+    return false;
+  }
+
+  /**
+   * Returns a query listing the partitions of a table (see
+   * {@link MyDBPartitionManager}). The query has the table name as its one
+   * parameter and returns the partition names in its first column.
+   * @return The query, or <code>null</code> if the dialect does not support
+   *         partitioned tables
+   */
+  public String getListPartitionsSQL() {
+    return null;
+  }
+
+  /**
+   * Returns the statement adding a partition holding the records with a
+   * <code>FileTime</code> from <code>fromMS</code> up to but not including
+   * <code>toMS</code>. Partitions are added in time order.
+   * @param tableName Name of the partitioned table
+   * @param partition Name of the new partition
+   * @param fromMS    Lower bound of the partition
+   * @param toMS      Upper bound of the partition
+   * @return The statement
+   * @throws SQLException if the dialect does not support partitioned tables
+   */
+  public String getAddPartitionSQL(String tableName, String partition,
+                                   long fromMS, long toMS) throws SQLException {
+    throw new SQLException("Partitioned tables are not supported by the " + getName() + " dialect");
+  }
+
+  /**
+   * Returns the statement dropping a partition with all its records.
+   * @param tableName Name of the partitioned table
+   * @param partition Name of the partition
+   * @return The statement
+   * @throws SQLException if the dialect does not support partitioned tables
+   */
+  public String getDropPartitionSQL(String tableName, String partition) throws SQLException {
+    throw new SQLException("Partitioned tables are not supported by the " + getName() + " dialect");
+  }
+
+  /**
+   * Returns <code>true</code> if an exception was caused by a duplicate
+   * primary or unique key.
+   * @param ex Exception thrown by an <code>INSERT</code>
+   * @return <code>true</code> for an integrity constraint violation
+   */
+  public boolean isDuplicateKey(SQLException ex) {
+    String state = ex.getSQLState();
+    return (state != null) && state.startsWith("23");
+  }
+
+  /**
+   * Returns the name of the dialect.
+   * @return The dialect name
+   */
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+  /**
+   * Returns the dialect for the <code>cleo.uri.mydb.dialect</code> setting.
+   *
+   * @param name Dialect name or class name, or <code>null</code> to use the
+   *             URL
+   * @param url  JDBC URL, or <code>null</code> if not set
+   * @return The dialect
+   * @throws Exception if the dialect class cannot be created
+   */
+  public static MyDBDialect forName(String name, String url) throws Exception {
+    if (((name == null) || (name.trim().length() == 0)) && (url != null)) {
+      // jdbc:<name>:...
+      String[] parts = url.split(":", 3);
+      if ((parts.length > 2) && parts[0].equalsIgnoreCase("jdbc"))
+        name = parts[1];
+    }
+    name = (name == null) ? "" : name.trim();
+
+    MyDBDialect dialect;
+    if ((name.length() == 0) || name.equalsIgnoreCase("mysql") || name.equalsIgnoreCase("mariadb"))
+      dialect = new MyDBMySQLDialect();
+    else if (name.equalsIgnoreCase("postgresql") || name.equalsIgnoreCase("postgres"))
+      dialect = new MyDBPostgreSQLDialect();
+    else if (name.equalsIgnoreCase("h2"))
+      dialect = new MyDBH2Dialect();
+    else if (name.equalsIgnoreCase("derby"))
+      dialect = new MyDBDerbyDialect();
+    else if (name.indexOf('.') > 0)
+      dialect = (MyDBDialect)Class.forName(name).getDeclaredConstructor().newInstance();
+    else
+      throw new Exception("Unknown MyDB dialect '" + name + "'");
+    LexURIFile.debug("MyDBDialect.forName> " + dialect.getName() + " url=" + url);
+    return dialect;
+  }
+}
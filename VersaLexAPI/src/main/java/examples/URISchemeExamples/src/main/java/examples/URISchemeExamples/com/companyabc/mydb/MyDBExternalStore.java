@@ -0,0 +1,408 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * The <code>MyDBExternalStore</code> class keeps the contents of large
+ * records in files instead of the database, for tables with the
+ * <code>external.threshold</code> table setting (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil#getTableProperty(String, String)}).
+ *
+ * <p> {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBOutputStream}
+ * computes the SHA-256 checksum of the contents as they are stored (after
+ * encoding, see {@link MyDBCodec}). If more than
+ * <code>external.threshold</code> bytes are to be stored, the contents are
+ * written to a file under <code>cleo.uri.mydb.external.dir</code>, which may
+ * be a shared directory when several nodes use the table, and the record
+ * holds the path of the file relative to that directory in its
+ * <code>ExternalPath</code> column and the checksum in its
+ * <code>Checksum</code> column, with an empty <code>FileContents</code>
+ * column. Smaller contents stay in the record. Large contents therefore do
+ * not pass through the database and do not take up its buffer pool.
+ *
+ * <p> The file is written under a temporary name, forced to disk and
+ * renamed before the record is inserted, so a record never refers to a
+ * partial file. A spilled payload buffer is moved rather than copied when it
+ * is on the same file system. Files are read through a
+ * <code>FileChannel</code>, and the checksum is verified when the whole file
+ * has been read. A file is deleted after the transaction deleting its record
+ * has been committed.
+ *
+ * <pre>
+ * {@code
+ *   `ExternalPath` varchar(255) DEFAULT NULL,
+ *   `Checksum` char(64) DEFAULT NULL,
+ * }
+ * </pre>
+ *
+ * <p> Records are read from their own <code>FileContents</code> column when
+ * <code>ExternalPath</code> is <code>NULL</code>. Whenever the table has the
+ * columns, <code>ExternalPath</code> is read and the file of a deleted
+ * record is deleted, even if the threshold has been removed or the table
+ * has since been chunked or deduplicated, so records already stored in
+ * files can still be read. Chunked and deduplicated tables do not store new
+ * contents in files.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.external.threshold</td>
+ *     <td>0</td>
+ *     <td>Number of stored bytes above which the contents of a record are
+ *         written to a file. 0 keeps all contents in the database. The
+ *         table needs the <code>ExternalPath</code> and
+ *         <code>Checksum</code> columns (see {@link MyDBFile})</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.external.dir</td>
+ *     <td><i>none</i></td>
+ *     <td>Directory the files are written to, in a subdirectory per table
+ *         and day. Required when a threshold is set</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBExternalStore {
+  // Suffix of files that are still being written
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Returns <code>true</code> if the contents of large records of a table
+   * are stored in files.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the table has a threshold and is neither
+   *         chunked nor deduplicated
+   */
+  public static boolean isEnabled(String tableName) {
+    return (getThreshold(tableName) > 0)
+           && !MyDBUtil.isChunked(tableName)
+           && !MyDBBlobStore.isEnabled(tableName);
+  }
+
+  /**
+   * Returns <code>true</code> if records of a table can refer to files,
+   * whether or not new contents are stored in files.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the table has the <code>ExternalPath</code>
+   *         and <code>Checksum</code> columns
+   * @throws Exception if the table columns could not be read
+   */
+  public static boolean hasColumns(String tableName) throws Exception {
+    return MyDBTableCache.hasColumn(tableName, "ExternalPath")
+           && MyDBTableCache.hasColumn(tableName, "Checksum");
+  }
+
+  /**
+   * Returns <code>true</code> if contents of a given stored length are to
+   * be written to a file.
+   * @param tableName    Name of the table
+   * @param storedLength Number of bytes to be stored
+   * @return <code>true</code> if the length is above the threshold
+   */
+  public static boolean accepts(String tableName, long storedLength) {
+    return isEnabled(tableName) && (storedLength > getThreshold(tableName));
+  }
+
+  /**
+   * Returns a new digest computing the checksum stored in the
+   * <code>Checksum</code> column.
+   * @return A SHA-256 message digest
+   */
+  public static MessageDigest createDigest() {
+    return MyDBBlobStore.createDigest();
+  }
+
+  /**
+   * Writes the contents of a record to a new file and inserts the record
+   * referring to it. The file is deleted again if the record cannot be
+   * inserted.
+   *
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param buffer       Encoded file contents
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @param checksum     Checksum of the encoded contents
+   * @throws Exception
+   */
+  protected static void writeRecord(Connection dbConnection, String tableName,
+                                    String filename, MyDBPayloadBuffer buffer,
+                                    long fileLength, String codec,
+                                    String checksum) throws Exception {
+    String path = newPath(tableName);
+    store(buffer, path);
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      MyDBUtil.insertExternalRecord(dbConnection, tableName, filename, fileLength,
+                                    codec, path, checksum);
+      dbConnection.commit();
+      LexURIFile.debug("MyDBExternalStore.writeRecord> " + tableName + " path[" + path
+                       + "] length=" + fileLength + " stored=" + buffer.getLength());
+    } catch (Exception ex) {
+      try {
+        dbConnection.rollback();
+      } catch (Exception rbex) {
+        LexURIFile.debug("MyDBExternalStore.writeRecord> rollback exception", rbex);
+      }
+      deleteFile(path);
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Opens the file holding the contents of a record.
+   *
+   * @param path     Value of the <code>ExternalPath</code> column
+   * @param checksum Value of the <code>Checksum</code> column, or
+   *                 <code>null</code> to skip verification
+   * @return A stream over the stored (encoded) contents
+   * @throws IOException if the file cannot be opened
+   */
+  protected static InputStream open(String path, String checksum) throws IOException {
+    File file = resolve(path);
+    LexURIFile.debug("MyDBExternalStore.open> path[" + path + "] length=" + file.length());
+    return new ExternalInputStream(new FileInputStream(file).getChannel(), path, checksum);
+  }
+
+  /**
+   * Deletes the files of records whose deletion has been committed.
+   * Failures are logged; an undeleted file is only wasted space.
+   *
+   * @param paths Values of the <code>ExternalPath</code> column of the
+   *              deleted records; may be <code>null</code>
+   */
+  protected static void deleteFiles(List<String> paths) {
+    if (paths == null)
+      return;
+    for (String path : paths)
+      deleteFile(path);
+  }
+
+  /**
+   * Deletes the file of a record whose deletion has been committed.
+   * Failures are logged; an undeleted file is only wasted space.
+   *
+   * @param path Value of the <code>ExternalPath</code> column of the deleted
+   *             record
+   */
+  protected static void deleteFile(String path) {
+    try {
+      File file = resolve(path);
+      if (file.exists() && !file.delete())
+        LexURIFile.debug(true, "MyDBExternalStore.deleteFile> Unable to delete "
+                         + file.getAbsolutePath());
+      else
+        LexURIFile.debug("MyDBExternalStore.deleteFile> path[" + path + "]");
+    } catch (IOException ex) {
+      LexURIFile.debug(true, "MyDBExternalStore.deleteFile> path[" + path + "] exception", ex);
+    }
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the threshold of a table.
+   * @param tableName Name of the table
+   * @return The <code>external.threshold</code> table setting
+   */
+  private static long getThreshold(String tableName) {
+    return MyDBUtil.getLongTableProperty(tableName, "external.threshold", 0);
+  }
+
+  /**
+   * Returns the directory the files are written to.
+   * @return The <code>cleo.uri.mydb.external.dir</code> directory
+   * @throws IOException if the property is not set
+   */
+  private static File getDirectory() throws IOException {
+    String dir = System.getProperty(MyDBUtil.PROPERTY_PREFIX + "external.dir");
+    if ((dir == null) || (dir.trim().length() == 0))
+      throw new IOException(MyDBUtil.PROPERTY_PREFIX + "external.dir is not set");
+    return new File(dir.trim());
+  }
+
+  /**
+   * Returns a new unique path, relative to the directory, for a file of a
+   * table.
+   * @param tableName Name of the table
+   * @return <i>table</i><code>/</code><i>yyyyMMdd</i><code>/</code><i>uuid</i>
+   */
+  private static String newPath(String tableName) {
+    SimpleDateFormat day = new SimpleDateFormat("yyyyMMdd");
+    day.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return tableName.toLowerCase() + "/" + day.format(new Date()) + "/" + UUID.randomUUID();
+  }
+
+  /**
+   * Returns the file for a path, making sure it is inside the directory.
+   * @param path Path relative to the directory
+   * @return The file
+   * @throws IOException if the path leads outside the directory
+   */
+  private static File resolve(String path) throws IOException {
+    File dir  = getDirectory().getCanonicalFile();
+    File file = new File(dir, path).getCanonicalFile();
+    if (!file.getPath().startsWith(dir.getPath() + File.separator))
+      throw new IOException("External path [" + path + "] is outside " + dir.getPath());
+    return file;
+  }
+
+  /**
+   * Writes the contents of a payload buffer to the file for a path. The
+   * contents are written under a temporary name, forced to disk, and then
+   * renamed.
+   * @param buffer Encoded contents
+   * @param path   Path relative to the directory
+   * @throws IOException
+   */
+  private static void store(MyDBPayloadBuffer buffer, String path) throws IOException {
+    File file = resolve(path);
+    File dir  = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Unable to create " + dir.getAbsolutePath());
+    File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+    try {
+      buffer.close();
+      if (!buffer.isSpilled() || !buffer.getSpillFile().renameTo(temp)) {
+        InputStream in = buffer.getInputStream();
+        try {
+          copy(in, temp);
+        } finally {
+          in.close();
+        }
+      }
+      RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+      try {
+        raf.getChannel().force(true);
+      } finally {
+        raf.close();
+      }
+      if (!temp.renameTo(file))
+        throw new IOException("Unable to rename " + temp.getAbsolutePath());
+    } catch (IOException ex) {
+      if (temp.exists() && !temp.delete())
+        LexURIFile.debug(true, "MyDBExternalStore.store> Unable to delete "
+                         + temp.getAbsolutePath());
+      throw ex;
+    }
+  }
+
+  /**
+   * Copies a stream to a file through the channel of the file.
+   * @param in   Stream to copy
+   * @param file File to write
+   * @throws IOException
+   */
+  private static void copy(InputStream in, File file) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      FileChannel channel = out.getChannel();
+      byte[] buf = new byte[MyDBUtil.COPY_BUFFER_SIZE];
+      int len;
+      while ((len = in.read(buf)) != -1) {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining())
+          channel.write(bb);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * A stream over a file read through its <code>FileChannel</code> that
+   * verifies the checksum when the end of the file is reached.
+   */
+  private static class ExternalInputStream extends InputStream {
+    private final FileChannel   channel;
+    private final String        path;
+    private final String        checksum;
+    private       MessageDigest digest;
+    private final byte[]        single = new byte[1];
+
+    private ExternalInputStream(FileChannel channel, String path, String checksum) {
+      this.channel  = channel;
+      this.path     = path;
+      this.checksum = checksum;
+      this.digest   = (checksum != null) ? createDigest() : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int len = read(this.single, 0, 1);
+      return (len <= 0) ? -1 : (this.single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      int count = this.channel.read(ByteBuffer.wrap(b, off, len));
+      if (count < 0)
+        verify();
+      else if (this.digest != null)
+        this.digest.update(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0)
+        return 0;
+      // The skipped bytes are not hashed, so the checksum cannot be verified
+      this.digest = null;
+      long position = this.channel.position();
+      long skipped  = Math.min(n, Math.max(this.channel.size() - position, 0));
+      this.channel.position(position + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(Math.max(this.channel.size() - this.channel.position(), 0),
+                           Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.channel.close();
+    }
+
+    /**
+     * Compares the checksum of the bytes read with the stored checksum.
+     * @throws IOException if they differ
+     */
+    private void verify() throws IOException {
+      if (this.digest == null)
+        return;
+      String actual = MyDBBlobStore.getHash(this.digest);
+      this.digest = null;
+      if (!actual.equalsIgnoreCase(this.checksum))
+        throw new IOException("Checksum mismatch for external file [" + this.path
+                              + "]: expected " + this.checksum + " but read " + actual);
+    }
+  }
+}
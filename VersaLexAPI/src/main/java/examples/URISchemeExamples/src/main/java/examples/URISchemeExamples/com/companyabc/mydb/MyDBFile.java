@@ -6,6 +6,8 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 import com.cleo.lexicom.beans.LexFileType;
@@ -62,6 +64,12 @@ import com.cleo.lexicom.beans.LexWildcardInfo;
  * <li> dateTime=<i>fileTime</i>
  *      <ul> <li> This is the timestamp of the DB record. The format of
  *                recordTime will be YYYYMMDD-HHMMSS-SSS. </li> </ul>
+ * <li> match=<i>wildcard</i>
+ *      <ul> <li> This is added to the table URI returned by
+ *                {@link #getLexWildcardInfo()} so that listing the table
+ *                only returns records whose filename may match the wildcard
+ *                or regular expression. The URI still denotes the table.
+ *                </li> </ul>
  * </ul>
  *
  * <p> Four system properties are used to configure this scheme. The
@@ -109,8 +117,17 @@ import com.cleo.lexicom.beans.LexWildcardInfo;
  *   `Filename` varchar(255) NOT NULL,
  *   `FileLength` bigint(20) NOT NULL,
  *   `FileContents` longblob NOT NULL,
+ *   `ClaimOwner` varchar(64) DEFAULT NULL,
+ *   `ClaimExpires` bigint(20) DEFAULT NULL,
+ *   `Codec` varchar(16) DEFAULT NULL,
+ *   `BlobHash` char(64) DEFAULT NULL,
+ *   `DeletedTime` bigint(20) DEFAULT NULL,
+ *   `ExternalPath` varchar(255) DEFAULT NULL,
+ *   `Checksum` char(64) DEFAULT NULL,
  *   PRIMARY KEY (`ID`),
- *   UNIQUE KEY `idDBTestInboxTable_UNIQUE` (`ID`)
+ *   UNIQUE KEY `idDBTestInboxTable_UNIQUE` (`ID`),
+ *   KEY `Filename_IDX` (`Filename`),
+ *   KEY `DeletedTime_IDX` (`DeletedTime`)
  * ) ENGINE=InnoDB AUTO_INCREMENT=32 DEFAULT CHARSET=latin1$$
  * CREATE TABLE `mydboutbox` (
  *   `ID` bigint(20) NOT NULL AUTO_INCREMENT,
@@ -118,8 +135,17 @@ import com.cleo.lexicom.beans.LexWildcardInfo;
  *   `Filename` varchar(255) NOT NULL,
  *   `FileLength` bigint(20) NOT NULL,
  *   `FileContents` longblob NOT NULL,
+ *   `ClaimOwner` varchar(64) DEFAULT NULL,
+ *   `ClaimExpires` bigint(20) DEFAULT NULL,
+ *   `Codec` varchar(16) DEFAULT NULL,
+ *   `BlobHash` char(64) DEFAULT NULL,
+ *   `DeletedTime` bigint(20) DEFAULT NULL,
+ *   `ExternalPath` varchar(255) DEFAULT NULL,
+ *   `Checksum` char(64) DEFAULT NULL,
  *   PRIMARY KEY (`ID`),
- *   UNIQUE KEY `ID_UNIQUE` (`ID`)
+ *   UNIQUE KEY `ID_UNIQUE` (`ID`),
+ *   KEY `Filename_IDX` (`Filename`),
+ *   KEY `DeletedTime_IDX` (`DeletedTime`)
  * ) ENGINE=InnoDB AUTO_INCREMENT=106 DEFAULT CHARSET=latin1$$
  * }
  * </pre>
@@ -134,6 +160,45 @@ import com.cleo.lexicom.beans.LexWildcardInfo;
  * <li>USERNAME: root</li>
  * <li>PW: mysqlroot</li>
  * </ul>
+ * These and the connection pool settings can be overridden with the
+ * <code>cleo.uri.mydb.*</code> system properties described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil}. The
+ * tables can also be kept in PostgreSQL, H2 or Derby by selecting the SQL
+ * dialect (see {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBDialect}).
+ *
+ * <p> The <code>ClaimOwner</code> and <code>ClaimExpires</code> columns are
+ * only used when <code>cleo.uri.mydb.claim</code> is <code>true</code>, which
+ * lets several VLTrader nodes send from the same outbox table (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBClaims}).
+ *
+ * <p> A table with the <code>chunked</code> layout keeps
+ * <code>FileContents</code> empty and stores the contents in a second table,
+ * described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBChunkStore}.
+ *
+ * <p> The <code>Codec</code> column is optional; when a table has it, the
+ * codec of each record is stored and used to read it back (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBCodec}).
+ *
+ * <p> The <code>BlobHash</code> column is only used when
+ * <code>cleo.uri.mydb.dedup</code> is <code>true</code>; identical contents
+ * are then stored once in a second table, described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBBlobStore}.
+ *
+ * <p> The <code>ExternalPath</code> and <code>Checksum</code> columns are
+ * only used when <code>cleo.uri.mydb.external.threshold</code> is set;
+ * larger contents are then stored in files, as described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBExternalStore}.
+ *
+ * <p> The <code>DeletedTime</code> column is only used when
+ * <code>cleo.uri.mydb.softdelete</code> is <code>true</code>; deleted
+ * records are then marked and purged later, as described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBCompactor}.
+ *
+ * <p> An inbox table that only keeps recent records can be partitioned by
+ * <code>FileTime</code> so that old records are dropped a day or a month at
+ * a time (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPartitionManager}).
  *
  * Sample Usages:
  * <br> If the host-level Inbox/Outbox are specified as MyDB tables:
@@ -217,19 +282,29 @@ public class MyDBFile extends LexURIFile {
   private final static String PARAM_ID       = "ID";
   private final static String PARAM_DATETIME = "dateTime";
   private final static String PARAM_LENGTH   = "length";
+  private final static String PARAM_MATCH    = "match";
 
   // Attributes
   private String  originalURI   = null;
   private String  tableName     = null;
   private String  filename      = null;
+  private String  matchPattern  = null;
   private long    recordID      = -1;
   private boolean exists        = false;
   private long    length        = -1;
   private long    fileDateTime  = 0;
   private long    objCreateTime = System.currentTimeMillis();
+  private boolean infoChecked   = false;
   private URISyntaxException uriSyntaxException = null;
 
-  SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+  // SimpleDateFormat is not thread-safe, so keep one per thread rather than
+  // creating one for every MyDBFile
+  private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+    }
+  };
 
 //==============================================================================
 // Object Constructors
@@ -265,6 +340,41 @@ public class MyDBFile extends LexURIFile {
     parseURI(originalURI);
   }
 
+  /**
+   * Constructor for a record found in a listing of the <code>parent</code>
+   * table. The record information is taken from <code>dbItem</code>, so
+   * the URI does not have to be parsed and the record is already known to
+   * exist.
+   *
+   * @param parent MyDBFile representing the table that was listed
+   * @param dbItem Record information from the listing
+   */
+  private MyDBFile(MyDBFile parent, MyDBItem dbItem) {
+    this(parent.tableName, dbItem, buildURIString(parent.tableName, dbItem));
+    this.matchPattern = parent.matchPattern; // Selects the record read ahead
+  }
+
+  /**
+   * Constructor for a record whose URI has already been built from
+   * <code>dbItem</code>.
+   *
+   * @param tableName Name of the table containing the record
+   * @param dbItem    Record information
+   * @param uri       URI built by {@link #buildURIString(String, MyDBItem)}
+   */
+  private MyDBFile(String tableName, MyDBItem dbItem, String uri) {
+    super(uri);
+    this.originalURI  = uri;
+    this.tableName    = tableName;
+    String fn = dbItem.getFilename();
+    this.filename     = ((fn != null) && (fn.trim().length() > 0)) ? fn.trim() : null;
+    this.recordID     = dbItem.getRecordID();
+    this.length       = dbItem.getFileLength();
+    this.fileDateTime = dbItem.getDateTimeMS();
+    this.exists       = true;
+    this.infoChecked  = true;
+  }
+
 //==============================================================================
 // File methods that MUST be overriden
 //==============================================================================
@@ -355,7 +465,9 @@ public class MyDBFile extends LexURIFile {
   }
 
   /**
-   * Checks if the specified <code>MyDBFile</code> URI exists.
+   * Checks if the specified <code>MyDBFile</code> URI exists. For a record,
+   * this also fills in the length and time so that {@link #length()} and
+   * {@link #lastModified()} do not need another query.
    * @return <code>true</code> if the <code>MyDBFile</code> exists
    */
   @Override
@@ -364,7 +476,7 @@ public class MyDBFile extends LexURIFile {
       throw new SecurityException(this.uriSyntaxException);
     if (!this.exists) {
       if ((this.filename != null) || (this.recordID >= 0))
-        readSpecificRecord(this.filename, this.recordID);
+        readRecordInfo();
       else
         this.exists = this.tableExists();
     }
@@ -567,13 +679,18 @@ public class MyDBFile extends LexURIFile {
   /**
    * Returns the last modified time of the file. The Date/Time representing
    * the last modified time of the file is stored in the database record.
+   * If the time is not already known, the record information is queried
+   * once (without the file contents).
    * @return Last modified time of the file.
    */
   @Override
   public long lastModified() {
     if (this.uriSyntaxException != null)
       throw new SecurityException(this.uriSyntaxException);
-    else if (this.fileDateTime != 0)
+    else if ((this.fileDateTime == 0) && !this.exists && !this.infoChecked)
+      readRecordInfo();
+
+    if (this.fileDateTime != 0)
       return this.fileDateTime;
     else
       return objCreateTime;
@@ -588,12 +705,8 @@ public class MyDBFile extends LexURIFile {
   public long length() {
     if (this.uriSyntaxException != null)
       throw new SecurityException(this.uriSyntaxException);
-    else if (!this.exists) {
-      if ((this.filename != null) || (this.recordID >= 0))
-        readSpecificRecord(this.filename, this.recordID);
-      else
-        readNextRecordData();
-    }
+    else if (!this.exists)
+      readRecordInfo();
 
     return (this.length < 0) ? 0 : this.length;
   }
@@ -637,6 +750,7 @@ public class MyDBFile extends LexURIFile {
     // Get a list of all items in the table
     MyDBItem[] dbItemData = getDBTableItemList(null/*dbTestInputStream*/,
                                                null/*srchFilename*/,
+                                               this.matchPattern,
                                                -1/*srchRecordID*/);
     if (dbItemData == null)
       return null;
@@ -645,7 +759,7 @@ public class MyDBFile extends LexURIFile {
     // array.
     String[] fileList = new String[dbItemData.length];
     for (int ii = 0; ii < dbItemData.length; ii++)
-      fileList[ii] = buildURIString(dbItemData[ii]);
+      fileList[ii] = buildURIString(this.tableName, dbItemData[ii]);
 
     return fileList;
   }
@@ -672,33 +786,17 @@ public class MyDBFile extends LexURIFile {
     if (this.uriSyntaxException != null)
       throw new SecurityException(this.uriSyntaxException);
 
-    // Call this.list() to get an array of URIs representing the records
-    // in the database table.
-    String[] uriFileList = this.list();
-    if (uriFileList == null)
-      return null;
-
-    // Convert the list into MyDBFiles
-    ArrayList<MyDBFile> fileList = new ArrayList<MyDBFile>();
-    for (int ii = 0; ii < uriFileList.length; ii++) {
-      try {
-        MyDBFile dbTestFile = new MyDBFile(uriFileList[ii]);
-        fileList.add(dbTestFile);
-      } catch (Exception ex) {
-        LexURIFile.debug(true, "MyDBFile.listFiles() exception. "
-                         + "uriFileList[" + ii + " of " + uriFileList.length
-                         + "]='" + uriFileList[ii] + "'", ex);
-      }
-    }
-
-    // Return the array of MyDBFiles
-    return fileList.toArray(new MyDBFile[fileList.size()]);
+    return listFiles(null);
   }
 
   /**
    * Returns an array of <code>MyDBFile</code> objects filtered by the
    * LexURIFileFilter.
    *
+   * <p> The <code>MyDBFile</code> objects are built directly from the
+   * listing query, so no URI is re-parsed and no further query is needed
+   * for {@link #exists()}, {@link #length()} or {@link #lastModified()}.
+   *
    * @param filter A LexURIFileFilter implemented with VLTrader. The
    *               <code>MyDBFile</code> implementation should call
    *               filter.accept(lexURIFile) method to determine if this
@@ -711,24 +809,28 @@ public class MyDBFile extends LexURIFile {
     if (this.uriSyntaxException != null)
       throw new SecurityException(this.uriSyntaxException);
 
-    // Get a list of all files in the directory (database table)
-    String[] uriFileList = this.list();
-    if (uriFileList == null)
+    // Get a list of all items in the directory (database table)
+    MyDBItem[] dbItemData = getDBTableItemList(null/*dbTestInputStream*/,
+                                               null/*srchFilename*/,
+                                               this.matchPattern,
+                                               -1/*srchRecordID*/);
+    if (dbItemData == null)
       return null;
 
-    // Loop through the list of files
-    ArrayList<MyDBFile> fileList = new ArrayList<MyDBFile>();
-    for (int ii = 0; ii < uriFileList.length; ii++) {
+    // Loop through the list of items
+    ArrayList<MyDBFile> fileList = new ArrayList<MyDBFile>(dbItemData.length);
+    for (int ii = 0; ii < dbItemData.length; ii++) {
       try {
-        // Create a MyDBFile
-        MyDBFile myDBFile = new MyDBFile(uriFileList[ii]);
+        // Create a MyDBFile directly from the item; it already knows its
+        // length and time and that it exists
+        MyDBFile myDBFile = new MyDBFile(this, dbItemData[ii]);
         // If the filter exists and accepts the file, then add it to the list
         if ((filter == null) || (filter.accept(myDBFile)))
           fileList.add(myDBFile);
       } catch (Exception ex) {
         LexURIFile.debug(true, "MyDBFile.listFiles(LexURIFileFilter) exception. "
-                         + "uriFileList[" + ii + " of " + uriFileList.length
-                         + "]='" + uriFileList[ii] + "'", ex);
+                         + "dbItemData[" + ii + " of " + dbItemData.length
+                         + "]='" + dbItemData[ii] + "'", ex);
       }
     }
 
@@ -908,12 +1010,19 @@ public Exception getURIException() {
    * <br> This would return a <code>null</code> object as there is no wildcard.
    * <p>
    * <li> MyDB:MyDBOutbox?filename=*.edi
-   * <br> This would return a new LexWildcardInfo( "MyDB:MyDBOutbox", "*.edi" ) object.
+   * <br> This would return a new LexWildcardInfo( "MyDB:MyDBOutbox?match=*.edi", "*.edi" ) object.
    * <p>
    * <li> MyDB:MyDBOutbox?filename=[test.edi]
-   * <br> This would return a new LexWildcardInfo( "MyDB:MyDBOutbox", "[test.edi]" ) object.
+   * <br> This would return a new LexWildcardInfo( "MyDB:MyDBOutbox?match=[test.edi]", "[test.edi]" ) object.
    * </ul>
    *
+   * <p> The <code>match</code> parameter lets the table listing VLTrader
+   * performs for the wildcard filter the records in the database (see
+   * {@link MyDBUtil#getFilenameMatch(String)}) rather than returning every
+   * record in the table. VLTrader still applies the wildcard to the
+   * listing. It is left off if the wildcard contains a <code>&amp;</code>,
+   * which cannot be carried in a parameter value.
+   *
    * @return Returns a <code>com.cleo.lexicom.beans.LexWildcardInfo</code>
    *         object if a wildcard is present or <code>null</code> otherwise.
    */
@@ -949,11 +1058,53 @@ public Exception getURIException() {
     if (hasWildcard) {
       String wildString = this.filename;
       String path = this.getParent();
+      if (wildString.indexOf('&') < 0)
+        path = buildURIString(path, PARAM_MATCH + "=" + wildString);
       return new LexWildcardInfo(path, wildString);
     } else
       return null;
   }
 
+//==============================================================================
+// Additional MyDB methods
+//==============================================================================
+  /**
+   * Returns a lazy iterator over the <code>MyDBFile</code> objects in the
+   * directory (database table) denoted by this <code>MyDBFile</code>.
+   *
+   * @return An iterator over the records of the table in record ID order
+   * @see #listFilesIterator(LexURIFileFilter)
+   */
+  public Iterator<MyDBFile> listFilesIterator() {
+    return listFilesIterator(null);
+  }
+
+  /**
+   * Returns a lazy iterator over the <code>MyDBFile</code> objects in the
+   * directory (database table) denoted by this <code>MyDBFile</code>,
+   * filtered by the LexURIFileFilter.
+   *
+   * <p> Unlike {@link #listFiles(LexURIFileFilter)}, the table is read one
+   * page at a time (see the <code>cleo.uri.mydb.pagesize</code> property in
+   * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil}) using
+   * the last record ID of the previous page as the starting key. The first
+   * record can therefore be processed before the last page has been read,
+   * and memory use does not grow with the size of the table. A pooled
+   * connection is only held while a page is being read.
+   *
+   * <p> Errors reading a page are thrown from <code>hasNext()</code> as a
+   * <code>SecurityException</code>, like the other <code>MyDBFile</code>
+   * methods.
+   *
+   * @param filter Filter to apply or <code>null</code> for all records
+   * @return An iterator over the matching records in record ID order
+   */
+  public Iterator<MyDBFile> listFilesIterator(LexURIFileFilter filter) {
+    if (this.uriSyntaxException != null)
+      throw new SecurityException(this.uriSyntaxException);
+    return new MyDBFileIterator(filter, MyDBUtil.getPageSize());
+  }
+
 //==============================================================================
 // Helper methods
 //==============================================================================
@@ -981,6 +1132,15 @@ public Exception getURIException() {
     return this.recordID;
   }
 
+  /**
+   * Returns the filename pattern of the listing this record came from.
+   * @return The <code>match</code> parameter of the table URI, or
+   *         <code>null</code> if none
+   */
+  protected String getMatchPattern() {
+    return this.matchPattern;
+  }
+
   /**
    * Parses the URI string.
    * @param uri URI string to parse
@@ -1051,8 +1211,7 @@ public Exception getURIException() {
           //------- PARAM_DBID (Record ID converted to a string) -------
           } else if (param.equalsIgnoreCase(PARAM_ID)) {
             try {
-              int recID = Integer.valueOf(val);
-              this.recordID = recID;
+              this.recordID = Long.parseLong(val);
             } catch (NumberFormatException nfe) {
               this.uriSyntaxException = new URISyntaxException(uri, "Value for parameter '" + param + "' is not a number");
               LexURIFile.debug(true, "MyDBFile.parseURI(" + uri + ") exception.", this.uriSyntaxException);
@@ -1062,7 +1221,7 @@ public Exception getURIException() {
           //------- PARAM_DATETIME (YYYYMMDD-HHMMSS-SSS) -------
           } else if (param.equalsIgnoreCase(PARAM_DATETIME)) {
             try {
-              Date dateVal = sdf.parse(val);
+              Date dateVal = DATE_FORMAT.get().parse(val);
               this.fileDateTime = dateVal.getTime();
             } catch (ParseException pe) {
               this.uriSyntaxException = new URISyntaxException(uri, "Parameter '" + param + "' does not have the correct format (YYYYMMDD-HHMMSS)");
@@ -1070,11 +1229,14 @@ public Exception getURIException() {
               return;
             }
 
+          //------- PARAM_MATCH (Filename wildcard for table listings) -------
+          } else if (param.equalsIgnoreCase(PARAM_MATCH)) {
+            this.matchPattern = val;
+
           //------- PARAM_LENGTH (# of bytes) -------
           } else if (param.equalsIgnoreCase(PARAM_LENGTH)) {
             try {
-              int lenVal = Integer.valueOf(val);
-              this.length = lenVal;
+              this.length = Long.parseLong(val);
             } catch (NumberFormatException nfe) {
               this.uriSyntaxException = new URISyntaxException(uri, "Value for parameter '" + param + "' is not a number");
               LexURIFile.debug(true, "MyDBFile.parseURI(" + uri + ") exception.", this.uriSyntaxException);
@@ -1142,13 +1304,14 @@ public Exception getURIException() {
    * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem} object that
    * contains the ID, file size, and file date/time.
    *
-   * @param dbItem Item to be converted to a URI
+   * @param tableName Name of the table containing the item
+   * @param dbItem    Item to be converted to a URI
    * @return A URI string representing the
    *         {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem} object
    */
-  private String buildURIString(MyDBItem dbItem) {
+  private static String buildURIString(String tableName, MyDBItem dbItem) {
     StringBuilder uri = new StringBuilder(MYDB_SCHEME);
-    uri.append(this.tableName);
+    uri.append(tableName);
 
     String fn = dbItem.getFilename();
     if ((fn != null) && (fn.trim().length() > 0))
@@ -1158,7 +1321,7 @@ public Exception getURIException() {
       addParameter(uri, PARAM_LENGTH + "=" + String.valueOf(dbItem.getFileLength()));
     if (dbItem.getDateTimeMS() > 0) {
       // Time format: YYYYMMDD-HHMMSS-SSS
-      String dateTimeStr = sdf.format(new Date(dbItem.getDateTimeMS()));
+      String dateTimeStr = DATE_FORMAT.get().format(new Date(dbItem.getDateTimeMS()));
       addParameter(uri, PARAM_DATETIME + "=" + dateTimeStr);
     }
 
@@ -1195,6 +1358,8 @@ public Exception getURIException() {
     MyDBInputStream dbTestInputStream = null;
     boolean retVal = false;
     try {
+      if (MyDBConsumer.complete(this))
+        return true; // Deleted in the transaction that read it
       dbTestInputStream = new MyDBInputStream(this);
       dbTestInputStream.deleteRecord(recordID);
       retVal = true;
@@ -1213,7 +1378,19 @@ public Exception getURIException() {
   }
 
   /**
-   * Reads the next record out of the database table
+   * Fills in the existence, length and time of the record from a single
+   * query of the record information (the file contents are not read).
+   */
+  private void readRecordInfo() {
+    this.infoChecked = true;
+    if ((this.filename != null) || (this.recordID >= 0))
+      readSpecificRecord(this.filename, this.recordID);
+    else
+      readNextRecordData();
+  }
+
+  /**
+   * Reads the information of the next record out of the database table
    */
   private void readNextRecordData() {
     MyDBInputStream dbTestInputStream = null;
@@ -1222,7 +1399,9 @@ public Exception getURIException() {
 
     try {
       dbTestInputStream = new MyDBInputStream(this);
-      this.length = dbTestInputStream.getNextRecordLen();
+      MyDBItem recordInfo = dbTestInputStream.getNextRecordInfo();
+      this.length       = recordInfo.getFileLength();
+      this.fileDateTime = recordInfo.getDateTimeMS();
       this.exists = true;
     } catch (Exception ex) {
       // Do nothing as we are just checking if a message exists
@@ -1234,7 +1413,7 @@ public Exception getURIException() {
       }
     }
     LexURIFile.debug("MyDBFile.readNextRecordData> exists=" + this.exists
-                     + " length=" + this.length);
+                     + " length=" + this.length + " dateTime=" + this.fileDateTime);
   }
 
   /**
@@ -1266,7 +1445,8 @@ public Exception getURIException() {
                      + " srchFilename=" + srchFilename
                      + " srchRecordID=" + srchRecordID);
     if ((srchFilename != null) || (srchRecordID >= 0)) {
-      MyDBItem[] dbItemData = getDBTableItemList(myDBInputStream, srchFilename, srchRecordID);
+      MyDBItem[] dbItemData = getDBTableItemList(myDBInputStream, srchFilename,
+                                                 null/*srchPattern*/, srchRecordID);
       if ((dbItemData != null) && (dbItemData.length > 0)) {
         LexURIFile.debug("MyDBFile.readSpecificRecordData> FOUND-->" + dbItemData[0].toString());
         // Get data for first matching item
@@ -1289,29 +1469,33 @@ public Exception getURIException() {
    *
    * @param dbTestInputStream MyDBInputStream to use when search the records
    * @param srchFilename    Filename to search for or <code>null</code> if none
+   * @param srchPattern     Filename wildcard or <i>[regex]</i> to search for
+   *                        or <code>null</code> if none
    * @param srchRecordID    DB table record ID to search for or -1 if none
    * @return An array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
    *        objects that match the search parameters or <code>null</code> if
    *        there was an exception.
    */
   private MyDBItem[] getDBTableItemList(MyDBInputStream dbTestInputStream,
-                                        String srchFilename, long srchRecordID) {
+                                        String srchFilename, String srchPattern,
+                                        long srchRecordID) {
     MyDBItem[] dbItemList = null;
     boolean closeInputStream = false;
 
     LexURIFile.debug("MyDBFile.getDBTableItemList> srchLabel=" + srchFilename +
-                     " srchIdStr=" + srchRecordID);
+                     " srchPattern=" + srchPattern + " srchIdStr=" + srchRecordID);
     try {
       if (dbTestInputStream == null) {
         dbTestInputStream  = new MyDBInputStream(this);
         closeInputStream = true;
       }
-      dbItemList = dbTestInputStream.listRecordItems(srchFilename, srchRecordID);
+      dbItemList = dbTestInputStream.listRecordItems(srchFilename, srchPattern, srchRecordID);
     } catch (Exception ex) {
       dbItemList = null;
       LexURIFile.debug(true, "MyDBFile.getDBTableItemList(dbTestInputStream," + srchFilename
                        + "," + srchRecordID + ") exception. MyDBFile path["
                        + this.getPath() + "]", ex);
+      MyDBTableCache.invalidate(this.tableName);
     } finally {
       try {
         if (closeInputStream && (dbTestInputStream != null))
@@ -1332,4 +1516,79 @@ public Exception getURIException() {
   private boolean tableExists() {
     return MyDBUtil.dbTableExists(this.getTableName());
   }
+
+  /**
+   * Iterator that reads the table one keyset page at a time.
+   */
+  private class MyDBFileIterator implements Iterator<MyDBFile> {
+    private final LexURIFileFilter filter;
+    private final int              pageSize;
+    private MyDBItem[] page       = new MyDBItem[0];
+    private int        pageIdx    = 0;
+    private long       lastID     = -1;
+    private boolean    lastPage   = false;
+    private MyDBFile   nextFile   = null;
+
+    private MyDBFileIterator(LexURIFileFilter filter, int pageSize) {
+      this.filter   = filter;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (this.nextFile == null) {
+        if (this.pageIdx >= this.page.length) {
+          if (this.lastPage)
+            return false;
+          readPage();
+          continue;
+        }
+        MyDBFile myDBFile = new MyDBFile(MyDBFile.this, this.page[this.pageIdx++]);
+        if ((this.filter == null) || this.filter.accept(myDBFile))
+          this.nextFile = myDBFile;
+      }
+      return true;
+    }
+
+    @Override
+    public MyDBFile next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      MyDBFile myDBFile = this.nextFile;
+      this.nextFile = null;
+      return myDBFile;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("MyDBFile iterator does not support remove()");
+    }
+
+    /**
+     * Reads the page of records following the last record ID returned.
+     */
+    private void readPage() {
+      MyDBInputStream myDBInputStream = null;
+      try {
+        myDBInputStream = new MyDBInputStream(MyDBFile.this);
+        this.page = myDBInputStream.listRecordItemsPage(null/*srchFilename*/,
+                                                        MyDBFile.this.matchPattern,
+                                                        this.lastID, this.pageSize);
+      } catch (Exception ex) {
+        LexURIFile.debug(true, "MyDBFile.MyDBFileIterator.readPage(" + this.lastID
+                         + ") exception. MyDBFile path[" + getPath() + "]", ex);
+        throw new SecurityException(ex);
+      } finally {
+        try {
+          if (myDBInputStream != null)
+            myDBInputStream.close();
+        } catch (Exception ex) {
+        }
+      }
+      this.pageIdx  = 0;
+      this.lastPage = (this.page.length < this.pageSize);
+      if (this.page.length > 0)
+        this.lastID = this.page[this.page.length - 1].getRecordID();
+    }
+  }
 }
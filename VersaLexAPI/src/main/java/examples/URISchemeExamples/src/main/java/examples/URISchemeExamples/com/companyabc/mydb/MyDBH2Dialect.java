@@ -0,0 +1,45 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+/**
+ * SQL dialect for the H2 database (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBDialect}).
+ *
+ * <p> The default URL is an in-memory database, which lets the
+ * <i>MyDB:</i> scheme run inside the JVM without a database server, for
+ * example for testing.
+ *
+ * <p> Filename patterns are matched with <code>ILIKE</code>, which cannot
+ * use an index on the filename column, so a pattern listing reads the
+ * whole table.
+ */
+public class MyDBH2Dialect extends MyDBDialect {
+  @Override
+  public String getName() {
+    return "h2";
+  }
+
+  @Override
+  public String getDriverClass(String url) {
+    return "org.h2.Driver";
+  }
+
+  @Override
+  public String getDefaultURL() {
+    return "jdbc:h2:mem:mysqlvltrader;DB_CLOSE_DELAY=-1";
+  }
+
+  @Override
+  public String getLimitClause(String count) {
+    return " LIMIT " + count;
+  }
+
+  @Override
+  public String getLikePredicate(String column) {
+    return column + " ILIKE ? ESCAPE '!'";
+  }
+
+  @Override
+  public String getRegexpPredicate(String column) {
+    return column + " REGEXP ?";
+  }
+}
@@ -3,7 +3,7 @@ package examples.URISchemeExamples.com.companyabc.mydb;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.cleo.lexicom.beans.LexURIFile;
 
@@ -18,22 +18,64 @@ import com.cleo.lexicom.beans.LexURIFile;
  *         <a href="http://docs.oracle.com/javase/6/docs/api/java/io/InputStream.html">java.io.InputStream</a>.
  * </li></ul>
  *
- * This class will read the database record and save the bytes internally.
- * As <code>read(...)</code> operations are called, it returns data from the
- * internal byte array. The record is read from the database on the first
+ * By default (see the <code>cleo.uri.mydb.streamingreads</code> property in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil}), this
+ * class reads the record contents directly from the open database result
+ * set, so memory use does not grow with the size of the record. The
+ * statement and connection stay open until {@link #close()}. In this mode
+ * <code>mark</code>/<code>reset</code> are not supported.
+ *
+ * <p> Otherwise this class will read the database record and save the bytes
+ * internally. As <code>read(...)</code> operations are called, it returns
+ * data from the internal byte array.
+ *
+ * <p> In both modes the record is read from the database on the first
  * call to {@link #available()}, {@link #read()}, {@link #read(byte[])}, or
  * {@link #read(byte[], int, int)}.
+ *
+ * <p> When <code>cleo.uri.mydb.claim</code> is <code>true</code>, the record
+ * is claimed for the {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBFile}
+ * before it is read (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBClaims}), so a
+ * record claimed by another node or transfer is never returned.
+ *
+ * <p> When <code>cleo.uri.mydb.prefetch</code> is <code>true</code>, the
+ * record following the one being read is read in the background (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPrefetcher}),
+ * and a record that has been prefetched is read from the prefetched copy.
+ *
+ * <p> When <code>cleo.uri.mydb.payloadcache.maxsize</code> is set, a record
+ * that was read before, for example by a send that is being retried, is
+ * read from a local file (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPayloadCache}).
+ *
+ * <p> When <code>cleo.uri.mydb.consume</code> is <code>true</code>, the
+ * record is locked in a transaction before it is read, and {@link #close()}
+ * hands the connection to
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBConsumer} so
+ * that deleting the file deletes the record in the same transaction.
  */
 public class MyDBInputStream extends InputStream {
   // Private attributes
   private MyDBFile   myDBFile      = null;
   private Connection dbConnection  = null;
   private boolean    openAttempted = false;
+  private Connection replicaConnection = null;
   private MyDBItem   myDBItem      = null;
   private byte[]     fileBytes     = new byte[0];
   private int        nextBytePos   = 0;
   private int        markPos       = 0;
-  private static HashMap<String, Long> lastRecordIDs = new HashMap<String, Long>();
+  private boolean    streaming     = MyDBUtil.isStreamingReads();
+  private MyDBRecordStream recordStream = null;
+  private long       streamPos     = 0;
+  private long       claimedRecordID = -1;
+  private long       claimRenewTime  = 0;
+  private boolean    consuming       = false;
+  private static ConcurrentHashMap<String, Long> lastRecordIDs = new ConcurrentHashMap<String, Long>();
+
+  // Number of times the first record is looked up again in consume mode
+  // when another reader deletes it first
+  private static final int LOCK_ATTEMPTS = 3;
 
   /**
    * Creates a MyDBInputStream class using the <code>LexURIFile</code>
@@ -61,6 +103,9 @@ public class MyDBInputStream extends InputStream {
     checkDBOpen();
     if (this.myDBItem == null)
       readRecord(false/*existsCheck*/);
+    if (this.streaming)
+      return (int)Math.min(Math.max(this.myDBItem.getFileLength() - this.streamPos, 0),
+                           Integer.MAX_VALUE);
     return fileBytes.length - nextBytePos;
   }
 
@@ -70,17 +115,24 @@ public class MyDBInputStream extends InputStream {
    */
   @Override
   public void close() throws IOException {
+    if (this.recordStream != null) {
+      this.recordStream.close();
+      this.recordStream = null;
+    }
     if (this.dbConnection != null) {
       this.fileBytes = new byte[0];
-      try {
-        this.dbConnection.close();
-      } catch (Exception ex) {
-        LexURIFile.debug(true, "MyDBInputStream.close> Exception closing. MyDBFile path["
-                         + this.myDBFile.getPath() + "]", ex);
-        throw new IOException(ex);
-      }
+      if (this.consuming && (this.myDBItem != null))
+        // Keep the record locked until the file is deleted
+        MyDBConsumer.park(this.myDBFile, this.dbConnection,
+                          this.myDBFile.getTableName(), this.myDBItem.getRecordID());
+      else
+        MyDBUtil.releaseDBConnection(this.dbConnection);
       this.dbConnection = null;
     }
+    if (this.replicaConnection != null) {
+      MyDBUtil.releaseDBConnection(this.replicaConnection);
+      this.replicaConnection = null;
+    }
   }
 
   /**
@@ -94,12 +146,13 @@ public class MyDBInputStream extends InputStream {
   }
 
   /**
-   * Returns <code>true</code> as <code>mark</code> is supported (partially).
-   * @return <code>true</code>
+   * Returns <code>true</code> as <code>mark</code> is supported (partially)
+   * unless the record is being streamed.
+   * @return <code>false</code> when streaming; <code>true</code> otherwise
    */
   @Override
   public boolean markSupported() {
-    return true;
+    return !this.streaming;
   }
 
   /**
@@ -114,9 +167,17 @@ public class MyDBInputStream extends InputStream {
     if (this.myDBItem == null)
       readRecord(false/*existsCheck*/);
 
+    if (this.streaming) {
+      checkClaimLease();
+      int c = this.recordStream.read();
+      if (c != -1)
+        this.streamPos++;
+      return c;
+    }
+
     if (nextBytePos >= fileBytes.length)
       return -1;
-    return fileBytes[nextBytePos++];
+    return fileBytes[nextBytePos++] & 0xFF;
   }
 
   /**
@@ -129,22 +190,7 @@ public class MyDBInputStream extends InputStream {
    */
   @Override
   public int read(byte[] b) throws IOException {
-    checkDBOpen();
-    if (this.myDBItem == null)
-      readRecord(false/*existsCheck*/);
-
-    if (nextBytePos >= fileBytes.length)
-      return -1;
-
-    int retLen = 0;
-    int bytesToRead = b.length;
-    int msgLen = fileBytes.length;
-    for (int ii = 0; ii < bytesToRead; ii++) {
-      if (nextBytePos >= msgLen)
-        break;
-      b[retLen++] = fileBytes[nextBytePos++];
-    }
-    return retLen;
+    return read(b, 0, b.length);
   }
 
   /**
@@ -162,16 +208,20 @@ public class MyDBInputStream extends InputStream {
     if (this.myDBItem == null)
       readRecord(false/*existsCheck*/);
 
+    if (this.streaming) {
+      checkClaimLease();
+      int bytesRead = this.recordStream.read(b, off, len);
+      if (bytesRead > 0)
+        this.streamPos += bytesRead;
+      return bytesRead;
+    }
+
     if (nextBytePos >= fileBytes.length)
       return -1;
 
-    int bytesRead = 0;
-    int msgLen = fileBytes.length;
-    for (int ii = 0; ii < len; ii++) {
-      if (nextBytePos >= msgLen)
-        break;
-      b[off + bytesRead++] = fileBytes[nextBytePos++];
-    }
+    int bytesRead = Math.min(len, fileBytes.length - nextBytePos);
+    System.arraycopy(fileBytes, nextBytePos, b, off, bytesRead);
+    nextBytePos += bytesRead;
     return bytesRead;
   }
 
@@ -185,6 +235,8 @@ public class MyDBInputStream extends InputStream {
   public void reset() throws IOException {
     if (this.dbConnection == null)
       throw new IOException("DB connection is not open");
+    if (this.streaming)
+      throw new IOException("mark/reset not supported while streaming");
 
     nextBytePos = markPos;
   }
@@ -202,17 +254,17 @@ public class MyDBInputStream extends InputStream {
     if (this.myDBItem == null)
       readRecord(false/*existsCheck*/);
 
-    long skipLen = 0;
     if (n <= 0)
-      return skipLen;
+      return 0;
 
-    int msgLen = fileBytes.length;
-    for (int ii = 0; ii < n; ii++) {
-      if (nextBytePos >= msgLen)
-        return skipLen;
-      else
-        nextBytePos++;
+    if (this.streaming) {
+      long skipLen = this.recordStream.skip(n);
+      this.streamPos += skipLen;
+      return skipLen;
     }
+
+    long skipLen = Math.min(n, fileBytes.length - nextBytePos);
+    nextBytePos += (int)skipLen;
     return skipLen;
   }
 
@@ -234,7 +286,7 @@ public class MyDBInputStream extends InputStream {
 
 
   /**
-   * Opens the database connection.
+   * Borrows a database connection from the connection pool.
    *
    * @throws IOException
    */
@@ -242,6 +294,8 @@ public class MyDBInputStream extends InputStream {
     this.openAttempted = true;
 
     String tableName = myDBFile.getTableName();
+    MyDBCompactor.touch(tableName);
+    MyDBPartitionManager.checkTable(tableName);
     try {
       this.dbConnection = MyDBUtil.getDBConnection();
     } catch (Exception ex) {
@@ -252,17 +306,108 @@ public class MyDBInputStream extends InputStream {
     }
   }
 
+  /**
+   * Returns a connection for listing records or checking that a record
+   * exists: the primary connection if it is already open, otherwise one
+   * from {@link MyDBUtil#getReadDBConnection(String)}, which may be a
+   * replica connection.
+   *
+   * @return Connection to read record information with
+   * @throws IOException
+   */
+  private Connection getReadConnection() throws IOException {
+    if (this.dbConnection != null)
+      return this.dbConnection;
+    if (this.replicaConnection != null)
+      return this.replicaConnection;
+    if (this.openAttempted)
+      throw new IOException("DB connection is not open");
+
+    String tableName = myDBFile.getTableName();
+    MyDBCompactor.touch(tableName);
+    MyDBPartitionManager.checkTable(tableName);
+    Connection connection;
+    try {
+      connection = MyDBUtil.getReadDBConnection(tableName);
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBInputStream.getReadConnection> Exception "
+              + "retrieving database connection for MyDBFile path["
+                       + this.myDBFile.getPath() + "]", ex);
+      throw new IOException("Failed to open MyDB:" + tableName, ex);
+    }
+    if (MyDBUtil.isReplicaConnection(connection)) {
+      this.replicaConnection = connection;
+    } else {
+      this.openAttempted = true;
+      this.dbConnection  = connection;
+    }
+    return connection;
+  }
+
+  /**
+   * Returns <code>true</code> if a read for a specific record found nothing
+   * on the replica and must be repeated on the primary, which may have
+   * newer records. The primary connection is opened if so. Reads that are
+   * not for a specific record, such as polling for the next record, accept
+   * the replica's answer.
+   *
+   * @param connection Connection the read was made with
+   * @param found      <code>true</code> if the read found a record, or was
+   *                   not for a specific record
+   * @return <code>true</code> if the read should be repeated on
+   *         <code>this.dbConnection</code>
+   * @throws IOException
+   */
+  private boolean retryOnPrimary(Connection connection, boolean found) throws IOException {
+    if (found || (connection != this.replicaConnection))
+      return false;
+    LexURIFile.debug("MyDBInputStream.retryOnPrimary> Not found on the replica. MyDBFile path["
+                     + this.myDBFile.getPath() + "]");
+    checkDBOpen();
+    return true;
+  }
+
   /**
    * Returns the record length of the next DB record or the current DB record
    * if one has already been read.
    * @return Number of bytes in the next (or current) DB record.
    * @throws IOException
    */
-  protected int getNextRecordLen() throws IOException {
-    checkDBOpen();
-    if (this.myDBItem == null)
-      readRecord(true/*existsCheck*/);
-    return this.fileBytes.length;
+  protected long getNextRecordLen() throws IOException {
+    return getNextRecordInfo().getFileLength();
+  }
+
+  /**
+   * Returns the ID, time, filename and length of the next DB record or the
+   * current DB record if one has already been read. Only the record
+   * information is queried; the contents are not transferred.
+   * @return Information for the next (or current) DB record without the
+   *         file bytes.
+   * @throws IOException
+   */
+  protected MyDBItem getNextRecordInfo() throws IOException {
+    if (this.myDBItem != null)
+      return this.myDBItem;
+
+    MyDBItem recordInfo;
+    try {
+      Connection connection = getReadConnection();
+      recordInfo = MyDBUtil.readRecordInfo(connection, this.myDBFile.getTableName(),
+                                           this.myDBFile.getRecordID());
+      boolean specific = (this.myDBFile.getRecordID() >= 0) || (this.myDBFile.getFilename() != null);
+      if (retryOnPrimary(connection, (recordInfo != null) || !specific))
+        recordInfo = MyDBUtil.readRecordInfo(this.dbConnection, this.myDBFile.getTableName(),
+                                             this.myDBFile.getRecordID());
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBInputStream.getNextRecordInfo> exception. MyDBFile path["
+                       + this.myDBFile.getPath() + "]", ex);
+      throw new IOException(ex);
+    }
+    if (recordInfo == null)
+      throw new IOException("No record found in table " + this.myDBFile.getTableName());
+    return recordInfo;
   }
 
   /**
@@ -279,6 +424,11 @@ public class MyDBInputStream extends InputStream {
     this.nextBytePos = 0;
     this.myDBItem  = null;
     this.fileBytes   = null;
+    this.streamPos   = 0;
+    if (this.recordStream != null) {
+      this.recordStream.close();
+      this.recordStream = null;
+    }
 
     try {
       // If we have a filename but no ID yet, call readSpecificRecordData()
@@ -287,19 +437,169 @@ public class MyDBInputStream extends InputStream {
           (this.myDBFile.getRecordID() < 0))
         this.myDBFile.readSpecificRecord(this, this.myDBFile.getFilename(), -1);
 
-      this.myDBItem  = MyDBUtil.readRecord(this.dbConnection, this.myDBFile.getTableName(), this.myDBFile.getRecordID());
-      this.fileBytes = this.myDBItem.getFileBytes();
+      // In consume mode the record stays locked until it is deleted (see
+      // MyDBConsumer); the claim locks it when claims are on
+      this.consuming = !existsCheck && MyDBConsumer.isEnabled();
+      if (this.consuming)
+        this.dbConnection.setAutoCommit(false);
+
+      long recordID = this.myDBFile.getRecordID();
+      if (!existsCheck && MyDBClaims.isEnabled())
+        recordID = claimRecord(recordID);
+      else if (this.consuming)
+        recordID = lockRecord(recordID);
+
+      // A record read before (a retry or a resend) comes from the payload
+      // cache, and a prefetched record from its buffer
+      boolean caching = !existsCheck && MyDBPayloadCache.isEnabled();
+      MyDBRecordStream prefetched = null;
+      if (caching && (recordID >= 0))
+        prefetched = MyDBPayloadCache.open(this.dbConnection, this.myDBFile.getTableName(), recordID);
+      if (prefetched != null)
+        caching = false; // Already cached
+      else if (!existsCheck && MyDBPrefetcher.isEnabled())
+        prefetched = MyDBPrefetcher.take(this.myDBFile.getTableName(), recordID);
+      if ((prefetched != null) && caching)
+        prefetched = MyDBPayloadCache.fill(this.myDBFile.getTableName(), prefetched);
+
+      if (prefetched != null) {
+        this.myDBItem = prefetched.getItem();
+        if (this.streaming) {
+          this.recordStream = prefetched;
+          this.fileBytes    = new byte[0];
+        } else {
+          this.fileBytes = readFully(prefetched, this.myDBItem.getFileLength());
+        }
+      } else if (this.streaming) {
+        this.recordStream = MyDBUtil.openRecordStream(this.dbConnection, this.myDBFile.getTableName(), recordID);
+        if (this.recordStream == null)
+          throw new Exception("Record not found in table " + this.myDBFile.getTableName());
+        if (caching)
+          this.recordStream = MyDBPayloadCache.fill(this.myDBFile.getTableName(), this.recordStream);
+        this.myDBItem  = this.recordStream.getItem();
+        this.fileBytes = new byte[0];
+      } else {
+        this.myDBItem  = MyDBUtil.readRecord(this.dbConnection, this.myDBFile.getTableName(), recordID);
+        this.fileBytes = this.myDBItem.getFileBytes();
+        if (caching)
+          MyDBPayloadCache.put(this.myDBFile.getTableName(), this.myDBItem);
+      }
 
-      if (!existsCheck)
+      if (!existsCheck) {
         saveRecordID(); // Save last record ID read for this table
+        // Read the next record while this one is being sent
+        MyDBPrefetcher.prefetchAfter(this.myDBFile.getTableName(),
+                                     this.myDBItem.getRecordID(),
+                                     this.myDBFile.getMatchPattern());
+      }
     } catch (Exception ex) {
       LexURIFile.debug(true, "MyDBInputStream.readRecord(" + existsCheck
                        + ")> Read/Peek exception. MyDBFile path["
                        + this.myDBFile.getPath() + "]", ex);
+      MyDBTableCache.invalidate(this.myDBFile.getTableName());
+      this.consuming = false; // The connection is rolled back on close
       throw new IOException(ex);
     }
   }
 
+  /**
+   * Reads the whole contents of a prefetched record and closes it.
+   *
+   * @param in     Stream over the record contents
+   * @param length Length of the record
+   * @return The bytes of the record
+   * @throws IOException
+   */
+  private static byte[] readFully(InputStream in, long length) throws IOException {
+    try {
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("Record of " + length + " bytes is too large to buffer");
+      byte[] bytes = new byte[(int)length];
+      int pos = 0;
+      while (pos < bytes.length) {
+        int len = in.read(bytes, pos, bytes.length - pos);
+        if (len == -1)
+          throw new IOException("Prefetched record has " + pos + " of " + length + " bytes");
+        pos += len;
+      }
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Claims the record to be read for the
+   * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBFile}.
+   *
+   * @param recordID Record ID to claim or -1 to claim the first unclaimed
+   *                 record
+   * @return The record ID of the claimed record
+   * @throws Exception if the record (or, for -1, any record) cannot be
+   *                   claimed
+   */
+  private long claimRecord(long recordID) throws Exception {
+    String tableName = this.myDBFile.getTableName();
+    if (recordID >= 0) {
+      if (!MyDBClaims.claim(this.dbConnection, tableName, recordID, this.myDBFile))
+        throw new Exception("Record " + recordID + " in table " + tableName
+                            + " is claimed by another node or transfer");
+    } else {
+      recordID = MyDBClaims.claimNext(this.dbConnection, tableName, this.myDBFile);
+      if (recordID < 0)
+        throw new Exception("No unclaimed record found in table " + tableName);
+    }
+    this.claimedRecordID = recordID;
+    this.claimRenewTime  = System.currentTimeMillis() + MyDBClaims.getLeaseMS() / 2;
+    return recordID;
+  }
+
+  /**
+   * Locks the record to be read until the current transaction ends.
+   *
+   * @param recordID Record ID to lock or -1 to lock the first record
+   * @return The record ID of the locked record
+   * @throws Exception if the record (or, for -1, any record) no longer
+   *                   exists
+   */
+  private long lockRecord(long recordID) throws Exception {
+    String tableName = this.myDBFile.getTableName();
+    for (int attempt = 0; attempt < LOCK_ATTEMPTS; attempt++) {
+      long lockID = recordID;
+      if (lockID < 0) {
+        MyDBItem first = MyDBUtil.readRecordInfo(this.dbConnection, tableName, -1);
+        if (first == null)
+          break;
+        lockID = first.getRecordID();
+      }
+      if (MyDBUtil.lockRecordLength(this.dbConnection, tableName, lockID) >= 0)
+        return lockID;
+      if (recordID >= 0)
+        break;
+      // Deleted by another reader after it was found; look again with a
+      // new snapshot
+      this.dbConnection.rollback();
+    }
+    throw new Exception("Record not found in table " + tableName);
+  }
+
+  /**
+   * Renews the claim on the record being read once half of the lease has
+   * passed, so long transfers do not lose the record to another node. In
+   * consume mode the claim is not committed and the record is locked until
+   * it is deleted, so there is nothing to renew (renewing on another
+   * connection would wait for that lock).
+   */
+  private void checkClaimLease() {
+    if ((this.claimedRecordID < 0) || this.consuming
+        || (System.currentTimeMillis() < this.claimRenewTime))
+      return;
+    if (MyDBClaims.renew(this.myDBFile.getTableName(), this.claimedRecordID, this.myDBFile))
+      this.claimRenewTime = System.currentTimeMillis() + MyDBClaims.getLeaseMS() / 2;
+    else
+      this.claimRenewTime = Long.MAX_VALUE; // Lost; the delete will report it
+  }
+
   /**
    * Saves record ID for the table specified in
    * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBFile}.
@@ -332,23 +632,37 @@ public class MyDBInputStream extends InputStream {
     if ((recIdToDelete != null) && (recIdToDelete.longValue() >= 0)) {
       LexURIFile.debug("MyDBInputStream.deleteRecord> Record ID to delete=" + recIdToDelete.longValue());
 
+      boolean claimLost = false;
       try {
+        if (MyDBConsumer.complete(tableName, recIdToDelete)) {
+          // Deleted in the transaction that read it
+          lastRecordIDs.remove(tableName, recIdToDelete);
+          return;
+        }
         checkDBOpen();
-        MyDBUtil.deleteRecord(this.dbConnection, this.myDBFile.getTableName(), recIdToDelete);
+        if (MyDBClaims.isEnabled()) {
+          // Only delete the record if this node still holds the claim
+          claimLost = !MyDBUtil.deleteClaimedRecord(this.dbConnection, tableName,
+                                                    recIdToDelete, MyDBClaims.getOwner());
+          MyDBClaims.release(tableName, recIdToDelete);
+        } else
+          MyDBUtil.deleteRecord(this.dbConnection, tableName, recIdToDelete);
 
         // Delete last saved record ID for this table if it matches what
         // was just deleted.
-        Long lastRecId = lastRecordIDs.get(tableName);
+        lastRecordIDs.remove(tableName, recIdToDelete);
         LexURIFile.debug("MyDBInputStream.deleteRecord> last Record ID="
-                         + lastRecId);
-        if ((lastRecId != null) && (lastRecId.longValue() == recordID))
-          lastRecordIDs.remove(tableName);
+                         + lastRecordIDs.get(tableName));
       } catch (Exception ex) {
         LexURIFile.debug(true, "MyDBInputStream.deleteRecord> Exception removing recordId '"
                          + recIdToDelete + "'. MyDBFile path["
                          + this.myDBFile.getPath() + "]", ex);
         throw new IOException("Failed to delete DB record from table", ex);
       }
+      if (claimLost)
+        throw new IOException("Record " + recIdToDelete + " in table " + tableName
+                              + " was not deleted; it is no longer claimed by "
+                              + MyDBClaims.getOwner());
     }
   }
 
@@ -363,22 +677,74 @@ public class MyDBInputStream extends InputStream {
    * @throws IOException
    */
   public MyDBItem[] listRecordItems(String srchFilename, long srchRecordID) throws IOException {
-    if (!this.openAttempted)
-      openDBConnection();
-
-    if (this.dbConnection == null)
-      throw new IOException("DB connection is not open");
+    return listRecordItems(srchFilename, null/*srchPattern*/, srchRecordID);
+  }
 
+  /**
+   * Returns an array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   * which contains the records matching the search criteria.
+   *
+   * @param srchFilename Filename to search for
+   * @param srchPattern  Filename wildcard or <i>[regex]</i> to search for
+   * @param srchRecordID Record ID to search for
+   * @return An array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   *         matching the search criteria.
+   * @throws IOException
+   */
+  public MyDBItem[] listRecordItems(String srchFilename, String srchPattern,
+                                    long srchRecordID) throws IOException {
     MyDBItem[] myDBItems = null;
     try {
-      myDBItems = MyDBUtil.getDBItems(this.dbConnection, this.myDBFile.getTableName(), srchFilename, srchRecordID);
+      Connection connection = getReadConnection();
+      myDBItems = MyDBUtil.getDBItems(connection, this.myDBFile.getTableName(),
+                                      srchFilename, srchPattern, srchRecordID);
+      boolean specific = (srchRecordID >= 0) || (srchFilename != null);
+      if (retryOnPrimary(connection, ((myDBItems != null) && (myDBItems.length > 0)) || !specific))
+        myDBItems = MyDBUtil.getDBItems(this.dbConnection, this.myDBFile.getTableName(),
+                                        srchFilename, srchPattern, srchRecordID);
+    } catch (IOException ex) {
+      throw ex;
     } catch (Exception ex) {
       LexURIFile.debug(true, "MyDBInputStream.listRecordItems> MyDBUtil.getDBItems("
-              + srchFilename + "," + srchRecordID + ") exception. "
+              + srchFilename + "," + srchPattern + "," + srchRecordID + ") exception. "
               + "MyDBFile path[" + this.myDBFile.getPath() + "]", ex);
       throw new IOException("Failed to list DB items", ex);
     }
     return myDBItems;
   }
 
+  /**
+   * Returns one page of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   * objects matching the search criteria with a record ID greater than
+   * <code>afterRecordID</code>.
+   *
+   * @param srchFilename  Filename to search for
+   * @param srchPattern   Filename wildcard or <i>[regex]</i> to search for
+   * @param afterRecordID Only records with a larger ID are returned
+   * @param pageSize      Maximum number of records to return
+   * @return An array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   *         matching the search criteria.
+   * @throws IOException
+   */
+  public MyDBItem[] listRecordItemsPage(String srchFilename, String srchPattern,
+                                        long afterRecordID, int pageSize) throws IOException {
+    try {
+      Connection connection = getReadConnection();
+      MyDBItem[] page = MyDBUtil.getDBItemsPage(connection, this.myDBFile.getTableName(),
+                                                srchFilename, srchPattern, afterRecordID, pageSize);
+      boolean specific = (srchFilename != null);
+      if (retryOnPrimary(connection, ((page != null) && (page.length > 0)) || !specific))
+        page = MyDBUtil.getDBItemsPage(this.dbConnection, this.myDBFile.getTableName(),
+                                       srchFilename, srchPattern, afterRecordID, pageSize);
+      return page;
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBInputStream.listRecordItemsPage> MyDBUtil.getDBItemsPage("
+              + srchFilename + "," + srchPattern + "," + afterRecordID + "," + pageSize + ") exception. "
+              + "MyDBFile path[" + this.myDBFile.getPath() + "]", ex);
+      throw new IOException("Failed to list DB items", ex);
+    }
+  }
+
 }
@@ -0,0 +1,651 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The <code>MyDBMetrics</code> class records how long the database
+ * operations of {@link MyDBUtil} take, per table and operation:
+ *
+ * <ul>
+ * <li> <code>list</code> - listing records or looking them up by filename
+ *      or record ID</li>
+ * <li> <code>readRecord</code> - reading a record or opening it for
+ *      streaming</li>
+ * <li> <code>writeRecord</code> - inserting a record or a batch of
+ *      records</li>
+ * <li> <code>deleteRecord</code> - deleting a record or marking it
+ *      deleted</li>
+ * <li> <code>tableExists</code> - looking a table up in the database
+ *      metadata (tables remembered by {@link MyDBTableCache} are not
+ *      counted)</li>
+ * </ul>
+ *
+ * <p> For each it keeps the number of operations and failures, a latency
+ * histogram, the number of rows and bytes read or written (bytes are not
+ * counted for batched inserts or for contents stored in the blob table or
+ * in files), and the time spent waiting for the connection pool. The time
+ * of a borrow is charged to the first operation run on the connection by
+ * the same thread. An operation called from within another one (for
+ * example the listing a streamed read of a chunked record does) is counted
+ * as part of the outer one only. Purges by {@link MyDBCompactor} are
+ * counted in its own statistics.
+ *
+ * <p> The counters are available from {@link #getStatistics()} and, unless
+ * <code>cleo.uri.mydb.metrics.jmx</code> is <code>false</code>, as MBeans
+ * in the platform MBean server named
+ * <code>examples.URISchemeExamples.mydb:type=Operation,table=</code><i>table</i><code>,operation=</code><i>operation</i>,
+ * together with an MBean per connection pool named
+ * <code>examples.URISchemeExamples.mydb:type=Pool,name=primary</code> (or
+ * <code>replica</code>) with the pool statistics and a histogram of the
+ * borrow waits.
+ *
+ * <p> An operation that takes at least
+ * <code>cleo.uri.mydb.metrics.slowms</code> is logged with its rows, bytes
+ * and pool wait, and with the SQL of each statement it ran and how long
+ * into the operation the statement was prepared.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.metrics</td>
+ *     <td>true</td>
+ *     <td>Set to <code>false</code> to stop recording operations</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.metrics.jmx</td>
+ *     <td>true</td>
+ *     <td>Register the metrics as MBeans</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.metrics.slowms</td>
+ *     <td>1000</td>
+ *     <td>Operations taking at least this many MS are logged with their
+ *         SQL. 0 turns the slow query log off</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBMetrics {
+  /** Listing records or looking them up */
+  public static final String LIST         = "list";
+  /** Reading a record */
+  public static final String READ         = "readRecord";
+  /** Inserting records */
+  public static final String WRITE        = "writeRecord";
+  /** Deleting a record */
+  public static final String DELETE       = "deleteRecord";
+  /** Looking up a table */
+  public static final String TABLE_EXISTS = "tableExists";
+
+  // Upper bounds in MS of the latency histogram buckets; the last bucket
+  // counts everything slower
+  private static final long[] BUCKET_LIMITS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500,
+                                                  1000, 2500, 5000, 10000};
+  // Statements kept for the slow query log of an operation
+  private static final int MAX_STATEMENTS = 10;
+  private static final String DOMAIN = "examples.URISchemeExamples.mydb";
+
+  private static final ConcurrentHashMap<String, Operation> operations =
+          new ConcurrentHashMap<String, Operation>();
+  private static final Pool primaryPool = new Pool(false/*replica*/);
+  private static final Pool replicaPool = new Pool(true/*replica*/);
+
+  // The operation running on the current thread
+  private static final ThreadLocal<Timer> activeTimer = new ThreadLocal<Timer>();
+  // Wait in NS of the last borrow, not yet charged to an operation
+  private static final ThreadLocal<Long> pendingWaitNS = new ThreadLocal<Long>();
+
+  // Used for nested operations and when metrics are turned off
+  private static final Timer NOT_TIMED = new Timer(null, 0, 0);
+
+  /**
+   * Returns snapshots of the statistics of all operations run so far,
+   * ordered by table and operation.
+   *
+   * @return Operation statistics
+   */
+  public static List<Statistics> getStatistics() {
+    ArrayList<Statistics> stats = new ArrayList<Statistics>();
+    for (Operation operation : operations.values())
+      stats.add(operation.snapshot());
+    Collections.sort(stats, new Comparator<Statistics>() {
+      @Override
+      public int compare(Statistics s1, Statistics s2) {
+        int cmp = s1.getTableName().compareTo(s2.getTableName());
+        return (cmp != 0) ? cmp : s1.getOperation().compareTo(s2.getOperation());
+      }
+    });
+    return stats;
+  }
+
+  /**
+   * Clears the statistics of all operations.
+   */
+  public static void reset() {
+    for (Operation operation : operations.values())
+      operation.reset();
+    primaryPool.reset();
+    replicaPool.reset();
+  }
+
+  /**
+   * Starts timing an operation. The caller must call
+   * {@link Timer#stop()} in a <code>finally</code> block, after
+   * {@link Timer#succeeded(long, long)} if the operation succeeded.
+   *
+   * @param tableName Name of the table
+   * @param operation One of {@link #LIST}, {@link #READ}, {@link #WRITE},
+   *                  {@link #DELETE} or {@link #TABLE_EXISTS}
+   * @return The timer of the operation
+   */
+  protected static Timer start(String tableName, String operation) {
+    if ((activeTimer.get() != null) || !MyDBUtil.getBooleanProperty("metrics", true))
+      return NOT_TIMED;
+    Long waitNS = pendingWaitNS.get();
+    pendingWaitNS.remove();
+    Timer timer = new Timer(getOperation(tableName, operation), System.nanoTime(),
+                            (waitNS != null) ? waitNS.longValue() : 0);
+    activeTimer.set(timer);
+    return timer;
+  }
+
+  /**
+   * Notes a statement used by the operation running on the current thread,
+   * for the slow query log. Called by {@link MyDBStatementCache}.
+   *
+   * @param sql SQL of the statement
+   */
+  protected static void statementUsed(String sql) {
+    Timer timer = activeTimer.get();
+    if (timer != null)
+      timer.addStatement(sql);
+  }
+
+  /**
+   * Records the time spent borrowing a connection. It is charged to the
+   * next operation started on the current thread.
+   *
+   * @param replica <code>true</code> for the replica pool
+   * @param waitNS  Time in NS the borrow took
+   */
+  protected static void connectionBorrowed(boolean replica, long waitNS) {
+    if (!MyDBUtil.getBooleanProperty("metrics", true))
+      return;
+    (replica ? replicaPool : primaryPool).record(waitNS);
+    pendingWaitNS.set(waitNS);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the counters of an operation on a table, creating and
+   * registering them on first use.
+   *
+   * @param tableName Name of the table
+   * @param operation Name of the operation
+   * @return The operation counters
+   */
+  private static Operation getOperation(String tableName, String operation) {
+    String table = tableName.toLowerCase();
+    String key = table + ":" + operation;
+    Operation op = operations.get(key);
+    if (op == null) {
+      Operation created = new Operation(table, operation);
+      op = operations.putIfAbsent(key, created);
+      if (op == null) {
+        op = created;
+        register("type=Operation,table=" + ObjectName.quote(table) + ",operation=" + operation,
+                 new StandardMBean(op, OperationMBean.class, false));
+      }
+    }
+    return op;
+  }
+
+  /**
+   * Registers an MBean in the platform MBean server, replacing one
+   * registered under the same name (for example by an earlier instance of
+   * this class). Errors are logged.
+   *
+   * @param properties Key properties of the object name
+   * @param mbean      The MBean
+   */
+  private static void register(String properties, Object mbean) {
+    if (!MyDBUtil.getBooleanProperty("metrics.jmx", true))
+      return;
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+      server.registerMBean(mbean, name);
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBMetrics.register> Unable to register " + properties, ex);
+    }
+  }
+
+  /**
+   * Returns the bucket of the latency histogram for a time.
+   * @param ns Time in NS
+   * @return Bucket index
+   */
+  private static int getBucket(long ns) {
+    long ms = ns / 1000000L;
+    int bucket = 0;
+    while ((bucket < BUCKET_LIMITS_MS.length) && (ms > BUCKET_LIMITS_MS[bucket]))
+      bucket++;
+    return bucket;
+  }
+
+  /**
+   * Formats the non-empty buckets of a latency histogram.
+   * @param counts Bucket counts
+   * @return For example <code>&lt;=1ms:12 &lt;=5ms:3 &gt;10000ms:1</code>
+   */
+  private static String formatHistogram(long[] counts) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0)
+        continue;
+      if (sb.length() > 0)
+        sb.append(' ');
+      if (i < BUCKET_LIMITS_MS.length)
+        sb.append("<=").append(BUCKET_LIMITS_MS[i]);
+      else
+        sb.append('>').append(BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1]);
+      sb.append("ms:").append(counts[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The MBean interface of the counters of an operation on a table.
+   */
+  public interface OperationMBean {
+    /** @return Name of the table (lowercase) */
+    String getTableName();
+    /** @return Name of the operation */
+    String getOperation();
+    /** @return Number of operations */
+    long getCount();
+    /** @return Number of operations that failed */
+    long getErrorCount();
+    /** @return Number of operations logged as slow */
+    long getSlowCount();
+    /** @return Total time in MS of the operations */
+    long getTotalMS();
+    /** @return Time in MS of the slowest operation */
+    long getMaxMS();
+    /** @return Average time in MS of an operation */
+    double getMeanMS();
+    /** @return Number of rows listed, read, written or deleted */
+    long getRowCount();
+    /** @return Number of bytes of the records read or written */
+    long getByteCount();
+    /** @return Total time in MS spent waiting for pooled connections */
+    long getPoolWaitMS();
+    /** @return Upper bounds in MS of the latency histogram buckets */
+    long[] getLatencyBucketLimitsMS();
+    /** @return Number of operations per latency bucket; the last bucket counts the slower ones */
+    long[] getLatencyCounts();
+    /** @return Non-empty latency buckets as text */
+    String getLatencyHistogram();
+    /** Clears the counters */
+    void reset();
+  }
+
+  /**
+   * The MBean interface of a connection pool.
+   */
+  public interface PoolMBean {
+    /** @return <code>true</code> if the pool has been created */
+    boolean isOpen();
+    /** @return Maximum number of open connections */
+    int getMaxSize();
+    /** @return Number of open connections (idle + borrowed) */
+    int getOpenConnections();
+    /** @return Number of idle connections */
+    int getIdleConnections();
+    /** @return Number of borrowed connections */
+    int getBorrowedConnections();
+    /** @return Total number of successful borrows */
+    long getBorrowCount();
+    /** @return Number of borrows that timed out */
+    long getTimeoutCount();
+    /** @return Total time in MS spent waiting for connections */
+    long getTotalWaitMS();
+    /** @return Longest time in MS spent in a single borrow */
+    long getMaxWaitMS();
+    /** @return Number of borrows per wait bucket as text */
+    String getWaitHistogram();
+    /** Clears the wait histogram */
+    void reset();
+  }
+
+  /**
+   * The counters of an operation on a table.
+   */
+  private static class Operation implements OperationMBean {
+    private final String tableName;
+    private final String operation;
+    // Guarded by this
+    private long   count       = 0;
+    private long   errorCount  = 0;
+    private long   slowCount   = 0;
+    private long   totalNS     = 0;
+    private long   maxNS       = 0;
+    private long   rowCount    = 0;
+    private long   byteCount   = 0;
+    private long   poolWaitNS  = 0;
+    private long[] latencies   = new long[BUCKET_LIMITS_MS.length + 1];
+
+    private Operation(String tableName, String operation) {
+      this.tableName = tableName;
+      this.operation = operation;
+    }
+
+    /**
+     * Adds a finished operation.
+     * @param elapsedNS  Time in NS the operation took
+     * @param succeeded  <code>false</code> if it failed
+     * @param slow       <code>true</code> if it was logged as slow
+     * @param rows       Rows listed, read, written or deleted
+     * @param bytes      Bytes read or written
+     * @param poolWaitNS Time in NS spent borrowing the connection
+     */
+    private synchronized void record(long elapsedNS, boolean succeeded, boolean slow,
+                                     long rows, long bytes, long poolWaitNS) {
+      this.count++;
+      if (!succeeded)
+        this.errorCount++;
+      if (slow)
+        this.slowCount++;
+      this.totalNS += elapsedNS;
+      if (elapsedNS > this.maxNS)
+        this.maxNS = elapsedNS;
+      this.rowCount   += rows;
+      this.byteCount  += bytes;
+      this.poolWaitNS += poolWaitNS;
+      this.latencies[getBucket(elapsedNS)]++;
+    }
+
+    /**
+     * Returns a snapshot of the counters.
+     * @return Operation statistics
+     */
+    private synchronized Statistics snapshot() {
+      return new Statistics(this.tableName, this.operation, this.count, this.errorCount,
+                            this.slowCount, this.totalNS / 1000000L, this.maxNS / 1000000L,
+                            this.rowCount, this.byteCount, this.poolWaitNS / 1000000L,
+                            this.latencies.clone());
+    }
+
+    @Override
+    public String getTableName() { return this.tableName; }
+    @Override
+    public String getOperation() { return this.operation; }
+    @Override
+    public synchronized long getCount() { return this.count; }
+    @Override
+    public synchronized long getErrorCount() { return this.errorCount; }
+    @Override
+    public synchronized long getSlowCount() { return this.slowCount; }
+    @Override
+    public synchronized long getTotalMS() { return this.totalNS / 1000000L; }
+    @Override
+    public synchronized long getMaxMS() { return this.maxNS / 1000000L; }
+    @Override
+    public synchronized double getMeanMS() {
+      return (this.count > 0) ? this.totalNS / 1000000.0 / this.count : 0;
+    }
+    @Override
+    public synchronized long getRowCount() { return this.rowCount; }
+    @Override
+    public synchronized long getByteCount() { return this.byteCount; }
+    @Override
+    public synchronized long getPoolWaitMS() { return this.poolWaitNS / 1000000L; }
+    @Override
+    public long[] getLatencyBucketLimitsMS() { return BUCKET_LIMITS_MS.clone(); }
+    @Override
+    public synchronized long[] getLatencyCounts() { return this.latencies.clone(); }
+    @Override
+    public synchronized String getLatencyHistogram() { return formatHistogram(this.latencies); }
+
+    @Override
+    public synchronized void reset() {
+      this.count      = 0;
+      this.errorCount = 0;
+      this.slowCount  = 0;
+      this.totalNS    = 0;
+      this.maxNS      = 0;
+      this.rowCount   = 0;
+      this.byteCount  = 0;
+      this.poolWaitNS = 0;
+      this.latencies  = new long[BUCKET_LIMITS_MS.length + 1];
+    }
+  }
+
+  /**
+   * The MBean of a connection pool. The pool statistics are read from
+   * {@link MyDBUtil} when asked for, so the MBean survives the pool being
+   * closed and created again.
+   */
+  private static class Pool implements PoolMBean {
+    private final boolean replica;
+    private boolean registered = false;                     // Guarded by this
+    private long[]  waits      = new long[BUCKET_LIMITS_MS.length + 1]; // Guarded by this
+
+    private Pool(boolean replica) {
+      this.replica = replica;
+    }
+
+    /**
+     * Adds a borrow, registering the MBean on the first one.
+     * @param waitNS Time in NS the borrow took
+     */
+    private void record(long waitNS) {
+      boolean register;
+      synchronized (this) {
+        this.waits[getBucket(waitNS)]++;
+        register = !this.registered;
+        this.registered = true;
+      }
+      if (register)
+        MyDBMetrics.register("type=Pool,name=" + (this.replica ? "replica" : "primary"),
+                             new StandardMBean(this, PoolMBean.class, false));
+    }
+
+    /**
+     * Returns the current pool statistics.
+     * @return Pool statistics or <code>null</code> if there is no pool
+     */
+    private MyDBConnectionPool.Statistics getPool() {
+      return MyDBUtil.getCurrentPoolStatistics(this.replica);
+    }
+
+    @Override
+    public boolean isOpen() { return getPool() != null; }
+    @Override
+    public int getMaxSize() { return (getPool() != null) ? getPool().getMaxSize() : 0; }
+    @Override
+    public int getOpenConnections() { return (getPool() != null) ? getPool().getOpenConnections() : 0; }
+    @Override
+    public int getIdleConnections() { return (getPool() != null) ? getPool().getIdleConnections() : 0; }
+    @Override
+    public int getBorrowedConnections() { return (getPool() != null) ? getPool().getBorrowedConnections() : 0; }
+    @Override
+    public long getBorrowCount() { return (getPool() != null) ? getPool().getBorrowCount() : 0; }
+    @Override
+    public long getTimeoutCount() { return (getPool() != null) ? getPool().getTimeoutCount() : 0; }
+    @Override
+    public long getTotalWaitMS() { return (getPool() != null) ? getPool().getTotalWaitMS() : 0; }
+    @Override
+    public long getMaxWaitMS() { return (getPool() != null) ? getPool().getMaxWaitMS() : 0; }
+    @Override
+    public synchronized String getWaitHistogram() { return formatHistogram(this.waits); }
+
+    @Override
+    public synchronized void reset() {
+      this.waits = new long[BUCKET_LIMITS_MS.length + 1];
+    }
+  }
+
+  /**
+   * Times one operation. Created by {@link MyDBMetrics#start(String, String)}.
+   */
+  protected static class Timer {
+    private final Operation operation; // null if not timed
+    private final long      startNS;
+    private final long      poolWaitNS;
+    private ArrayList<String> statements = null;
+    private boolean succeeded = false;
+    private boolean stopped   = false;
+    private long    rows      = 0;
+    private long    bytes     = 0;
+
+    private Timer(Operation operation, long startNS, long poolWaitNS) {
+      this.operation  = operation;
+      this.startNS    = startNS;
+      this.poolWaitNS = poolWaitNS;
+    }
+
+    /**
+     * Marks the operation successful.
+     * @param rows  Rows listed, read, written or deleted
+     * @param bytes Bytes of the records read or written
+     */
+    protected void succeeded(long rows, long bytes) {
+      if (this.operation == null)
+        return;
+      this.succeeded = true;
+      this.rows      = rows;
+      this.bytes     = bytes;
+    }
+
+    /**
+     * Ends the operation, counting it as failed unless
+     * {@link #succeeded(long, long)} was called, and logs it if it was slow.
+     */
+    protected void stop() {
+      if ((this.operation == null) || this.stopped)
+        return;
+      this.stopped = true;
+      activeTimer.remove();
+      long elapsedNS = System.nanoTime() - this.startNS;
+      long slowMS = MyDBUtil.getLongProperty("metrics.slowms", 1000);
+      boolean slow = (slowMS > 0) && (elapsedNS / 1000000L >= slowMS);
+      this.operation.record(elapsedNS, this.succeeded, slow, this.rows, this.bytes, this.poolWaitNS);
+      if (slow) {
+        StringBuilder sb = new StringBuilder("MyDBMetrics> Slow ");
+        sb.append(this.operation.getOperation()).append(" on ").append(this.operation.getTableName())
+          .append(": ").append(elapsedNS / 1000000L).append("ms")
+          .append(this.succeeded ? "" : " (failed)")
+          .append(" rows=").append(this.rows)
+          .append(" bytes=").append(this.bytes)
+          .append(" poolWaitMS=").append(this.poolWaitNS / 1000000L);
+        if (this.statements != null) {
+          for (String statement : this.statements)
+            sb.append("\n  ").append(statement);
+        }
+        LexURIFile.debug(true, sb.toString());
+      }
+    }
+
+    /**
+     * Notes a statement used by the operation.
+     * @param sql SQL of the statement
+     */
+    private void addStatement(String sql) {
+      if (this.statements == null)
+        this.statements = new ArrayList<String>();
+      if (this.statements.size() < MAX_STATEMENTS)
+        this.statements.add("+" + (System.nanoTime() - this.startNS) / 1000000L + "ms sql[" + sql + "]");
+    }
+  }
+
+  /**
+   * A snapshot of the statistics of an operation on a table.
+   */
+  public static class Statistics {
+    private final String tableName;
+    private final String operation;
+    private final long   count;
+    private final long   errorCount;
+    private final long   slowCount;
+    private final long   totalMS;
+    private final long   maxMS;
+    private final long   rowCount;
+    private final long   byteCount;
+    private final long   poolWaitMS;
+    private final long[] latencyCounts;
+
+    private Statistics(String tableName, String operation, long count, long errorCount,
+                       long slowCount, long totalMS, long maxMS, long rowCount,
+                       long byteCount, long poolWaitMS, long[] latencyCounts) {
+      this.tableName     = tableName;
+      this.operation     = operation;
+      this.count         = count;
+      this.errorCount    = errorCount;
+      this.slowCount     = slowCount;
+      this.totalMS       = totalMS;
+      this.maxMS         = maxMS;
+      this.rowCount      = rowCount;
+      this.byteCount     = byteCount;
+      this.poolWaitMS    = poolWaitMS;
+      this.latencyCounts = latencyCounts;
+    }
+
+    /** @return Name of the table (lowercase) */
+    public String getTableName() { return this.tableName; }
+    /** @return Name of the operation */
+    public String getOperation() { return this.operation; }
+    /** @return Number of operations */
+    public long getCount() { return this.count; }
+    /** @return Number of operations that failed */
+    public long getErrorCount() { return this.errorCount; }
+    /** @return Number of operations logged as slow */
+    public long getSlowCount() { return this.slowCount; }
+    /** @return Total time in MS of the operations */
+    public long getTotalMS() { return this.totalMS; }
+    /** @return Time in MS of the slowest operation */
+    public long getMaxMS() { return this.maxMS; }
+    /** @return Number of rows listed, read, written or deleted */
+    public long getRowCount() { return this.rowCount; }
+    /** @return Number of bytes of the records read or written */
+    public long getByteCount() { return this.byteCount; }
+    /** @return Total time in MS spent waiting for pooled connections */
+    public long getPoolWaitMS() { return this.poolWaitMS; }
+    /** @return Number of operations per latency bucket (see {@link OperationMBean#getLatencyBucketLimitsMS()}) */
+    public long[] getLatencyCounts() { return this.latencyCounts.clone(); }
+
+    /**
+     * Returns a string representation of the statistics used for debugging.
+     * @return String representing the statistics
+     */
+    @Override
+    public String toString() {
+      return this.tableName + ":" + this.operation
+              + " count=" + this.count
+              + " errors=" + this.errorCount
+              + " slow=" + this.slowCount
+              + " totalMS=" + this.totalMS
+              + " maxMS=" + this.maxMS
+              + " rows=" + this.rowCount
+              + " bytes=" + this.byteCount
+              + " poolWaitMS=" + this.poolWaitMS
+              + " latency[" + formatHistogram(this.latencyCounts) + "]";
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQL dialect for MySQL and MariaDB (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBDialect}).
+ *
+ * <p> Record contents are streamed by asking Connector/J for a streaming
+ * result set. Adding <code>rewriteBatchedStatements=true</code> to
+ * <code>cleo.uri.mydb.url</code> sends batched inserts as multi-row
+ * inserts.
+ *
+ * <p> Filename patterns use a plain <code>LIKE</code>, which can use
+ * <code>Filename_IDX</code> for a pattern with a fixed prefix (such as
+ * <code>INV*</code>). It ignores case because the column has the default
+ * case-insensitive (<code>_ci</code>) collation; a table whose
+ * <code>Filename</code> has a binary or <code>_cs</code> collation would
+ * miss rows that VLTrader matches.
+ */
+public class MyDBMySQLDialect extends MyDBDialect {
+  @Override
+  public String getName() {
+    return "mysql";
+  }
+
+  @Override
+  public String getDriverClass(String url) {
+    return "com.mysql.jdbc.Driver";
+  }
+
+  @Override
+  public String getDefaultURL() {
+    return "jdbc:mysql://localhost:3306/mysqlvltrader";
+  }
+
+  @Override
+  public String getLimitClause(String count) {
+    return " LIMIT " + count;
+  }
+
+  @Override
+  public String getLikePredicate(String column) {
+    return column + " LIKE ? ESCAPE '!'";
+  }
+
+  @Override
+  public String getRegexpPredicate(String column) {
+    return column + " REGEXP ?";
+  }
+
+  /**
+   * Asks Connector/J to stream result set rows instead of buffering the
+   * whole result in memory. It only does this for forward-only, read-only
+   * statements with a fetch size of <code>Integer.MIN_VALUE</code>.
+   * @param stmt Statement to configure
+   * @throws SQLException
+   */
+  @Override
+  public void setStreamingFetch(Statement stmt) throws SQLException {
+    stmt.setFetchSize(Integer.MIN_VALUE);
+  }
+
+  @Override
+  public String getListPartitionsSQL() {
+    return "SELECT PARTITION_NAME FROM INFORMATION_SCHEMA.PARTITIONS"
+           + " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?"
+           + " AND PARTITION_NAME IS NOT NULL";
+  }
+
+  /**
+   * The table is partitioned by <code>RANGE (FileTime)</code> without a
+   * <code>MAXVALUE</code> partition, so a partition can be added after the
+   * last one.
+   */
+  @Override
+  public String getAddPartitionSQL(String tableName, String partition,
+                                   long fromMS, long toMS) {
+    return "ALTER TABLE " + tableName + " ADD PARTITION (PARTITION " + partition
+           + " VALUES LESS THAN (" + toMS + "))";
+  }
+
+  @Override
+  public String getDropPartitionSQL(String tableName, String partition) {
+    return "ALTER TABLE " + tableName + " DROP PARTITION " + partition;
+  }
+
+  @Override
+  public boolean isDuplicateKey(SQLException ex) {
+    return (ex.getErrorCode() == 1062) || super.isDuplicateKey(ex); // ER_DUP_ENTRY
+  }
+}
@@ -3,8 +3,9 @@ package examples.URISchemeExamples.com.companyabc.mydb;
 import com.cleo.lexicom.beans.LexURIFile;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
-import java.util.ArrayList;
 
 /**
  * MyDBOutputStream is a VLTrader URI custom scheme used as an OutputStream
@@ -17,16 +18,55 @@ import java.util.ArrayList;
  *      <a href="http://docs.oracle.com/javase/6/docs/api/java/io/OutputStream.html">java.io.OutputStream</a>.
  * </li></ul>
  * 
- * <p> This class saves all the bytes written and writes the database
- * record on the {@link #close()} call. However, the database connection
- * is opened on the first <code>write</code>.
+ * <p> This class collects the bytes written in a
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPayloadBuffer},
+ * which keeps small records in memory and spills larger ones to a temporary
+ * file, and writes the database record on the {@link #close()} call. The
+ * database connection is borrowed from the pool only for the
+ * {@link #close()} call, so it is not held while the data is being received.
+ *
+ * <p> When <code>cleo.uri.mydb.batch</code> is <code>true</code>, small
+ * records are handed to the
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBBatchWriter}
+ * instead, which inserts them together with other concurrently written
+ * records. {@link #close()} still returns only once the record has been
+ * committed.
+ *
+ * <p> If the table has a codec (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBCodec}), the
+ * bytes are compressed as they are written, so only the compressed bytes
+ * are buffered and stored. <code>FileLength</code> still holds the number of
+ * bytes written.
+ *
+ * <p> If the table is deduplicated (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBBlobStore}),
+ * the SHA-256 hash of the bytes is computed as they are written, and on
+ * {@link #close()} the contents are only stored if no record with the same
+ * contents exists yet.
+ *
+ * <p> If the table stores large contents in files (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBExternalStore}),
+ * the SHA-256 checksum of the stored bytes is computed as they are written,
+ * and on {@link #close()} contents above the threshold are written to a
+ * file instead of the record.
+ *
+ * <p> Appending is supported for tables with the <code>chunked</code>
+ * layout (see {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBChunkStore}).
+ * The bytes are added to the record with the ID (or else the first record
+ * with the filename) in the URI; if there is no such record, a new record is
+ * written.
  */
 public class MyDBOutputStream extends OutputStream {
   // Private attributes
-  private MyDBFile   myDBFile      = null;
-  private Connection dbConnection  = null;
-  private boolean    openAttempted = false;
-  private ArrayList<byte[]> outputByteArray = new ArrayList<byte[]>();
+  private MyDBFile          myDBFile      = null;
+  private MyDBPayloadBuffer payloadBuffer = null;
+  private boolean           closed        = false;
+  private boolean           append        = false;
+  private OutputStream      out           = null;
+  private String            codec         = MyDBCodec.NONE;
+  private long              fileLength    = 0;
+  private MessageDigest     digest        = null;
+  private MessageDigest     checksum      = null;
 
   /**
    * Creates a MyDBOutputStream class using the <code>LexURIFile</code>
@@ -37,68 +77,102 @@ public class MyDBOutputStream extends OutputStream {
    * @param lexURIFile <code>LexURIFile</code> representing the database table
    *                   and record information to be written
    * @param append If appending to the <code>LexURIFile</code> is desired.
-   *               (NOTE: This is not supported).
+   *               (NOTE: This is only supported for chunked tables).
    * @throws Exception
    */
   public MyDBOutputStream(LexURIFile lexURIFile, boolean append) throws Exception {
     this.myDBFile = (MyDBFile)lexURIFile;
     LexURIFile.debug("MyDBOutputStream(" + this.myDBFile.getPath() + "," + append + ")");
-    if (append)
-      throw new Exception("Appending to an MyDB record is not supported");
+    if (append && !MyDBUtil.isChunked(this.myDBFile.getTableName()))
+      throw new Exception("Appending to an MyDB record is only supported for chunked tables");
+    this.append = append;
   }
 
   /**
-   * Writes the record to the DB and closes the connection.
+   * Writes the record to the DB using a pooled connection.
    * 
    * @throws IOException 
    */
   @Override
   public void close() throws IOException {
-    if (this.dbConnection != null) {
-      try {
-        // Count total number of bytes received
-        int numBytes = 0;
-        for (int ii = 0; ii < this.outputByteArray.size(); ii++)
-          numBytes += this.outputByteArray.get(ii).length;
-        
-        // Allocate memory for entire message
-        byte[] fileBytes = new byte[numBytes];
-        // Copy all the byte arrays into a single byte array
-        int byteCtr = 0;
-        for (int obaIdx = 0; obaIdx < this.outputByteArray.size(); obaIdx++) {
-          byte[] tmpBytes = this.outputByteArray.get(obaIdx);
-          int tbLen = tmpBytes.length;
-          for (int tbIdx = 0; tbIdx < tbLen; tbIdx++)
-            fileBytes[byteCtr++] = tmpBytes[tbIdx];
-          this.outputByteArray.set(obaIdx, null); // Release the old memory
-        }
-        this.outputByteArray.clear();
+    if (this.closed)
+      return;
+    this.closed = true;
+    if (this.payloadBuffer == null)
+      return; // Nothing was written
+    MyDBCompactor.touch(this.myDBFile.getTableName());
+    MyDBPartitionManager.checkTable(this.myDBFile.getTableName());
+
+    Connection dbConnection = null;
+    try {
+      // Finish encoding the contents
+      this.out.close();
+
+      // Get the filename to store in the record
+      String filename = myDBFile.getFilename();
+      if ((filename == null) || (filename.trim().length() == 0))
+        filename = "MyDB_" + System.currentTimeMillis();
+
+      // Add the bytes to the existing record when appending
+      if (this.append) {
+        dbConnection = MyDBUtil.getDBConnection();
+        if (appendRecord(dbConnection, filename))
+          return;
+      }
+
+      // Large contents are stored in a file the record refers to
+      if ((this.checksum != null)
+          && MyDBExternalStore.accepts(this.myDBFile.getTableName(), this.payloadBuffer.getLength())) {
+        dbConnection = MyDBUtil.getDBConnection();
+        MyDBExternalStore.writeRecord(dbConnection, this.myDBFile.getTableName(), filename,
+                                      this.payloadBuffer, this.fileLength, this.codec,
+                                      MyDBBlobStore.getHash(this.checksum));
+        MyDBChangeFeed.recordsAdded(this.myDBFile.getTableName());
+        return;
+      }
 
-        // Get the filename to store in the record
-        String filename = myDBFile.getFilename();
-        if ((filename == null) || (filename.trim().length() == 0))
-          filename = "MyDB_" + System.currentTimeMillis();
+      // Deduplicated records refer to the contents stored under their hash
+      if (this.digest != null) {
+        dbConnection = MyDBUtil.getDBConnection();
+        MyDBBlobStore.writeRecord(dbConnection, this.myDBFile.getTableName(), filename,
+                                  this.payloadBuffer, this.fileLength, this.codec,
+                                  MyDBBlobStore.getHash(this.digest));
+        MyDBChangeFeed.recordsAdded(this.myDBFile.getTableName());
+        return;
+      }
 
-        // Write the record to the database
-        MyDBUtil.writeRecord(this.dbConnection, this.myDBFile.getTableName(),
-                             filename, fileBytes);
-      } catch (Exception ex) {
-        LexURIFile.debug(true, "MyDBOutputStream.close> Exception during "
-                + "MyDBUtil.writeRecord. MyDBFile path['"
-                + this.myDBFile.getPath() + "]", ex);
-        throw new IOException(ex);
-      } finally {
-        if (this.dbConnection != null) {
-          try {
-            this.dbConnection.close();
-          } catch (Exception ex) {
-            LexURIFile.debug(true, "MyDBOutputStream.close> Exception during "
-                    + "dbConnection.close(). MyDBFile path['"
-                    + this.myDBFile.getPath() + "]", ex);
-          }
+      // Small records are written together with other records if batching
+      // is enabled (chunked and change feed tables are always written
+      // directly)
+      if ((dbConnection == null) && MyDBBatchWriter.isEnabled()
+          && !MyDBUtil.isChunked(this.myDBFile.getTableName())
+          && !MyDBChangeFeed.isLogging(this.myDBFile.getTableName())) {
+        MyDBBatchWriter batchWriter = MyDBBatchWriter.getInstance();
+        if (batchWriter.accepts(this.payloadBuffer.getLength())) {
+          batchWriter.write(this.myDBFile.getTableName(), filename, this.payloadBuffer,
+                            this.fileLength, this.codec);
+          return;
         }
       }
-      this.dbConnection = null;
+
+      // Write the record to the database
+      if (dbConnection == null)
+        dbConnection = MyDBUtil.getDBConnection();
+      MyDBUtil.writeRecord(dbConnection, this.myDBFile.getTableName(),
+                           filename, this.payloadBuffer.getInputStream(),
+                           this.payloadBuffer.getLength(), this.fileLength, this.codec);
+      MyDBChangeFeed.recordsAdded(this.myDBFile.getTableName());
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBOutputStream.close> Exception during "
+              + "MyDBUtil.writeRecord. MyDBFile path['"
+              + this.myDBFile.getPath() + "]", ex);
+      MyDBTableCache.invalidate(this.myDBFile.getTableName());
+      throw new IOException(ex);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+      this.payloadBuffer.dispose();
+      this.payloadBuffer = null;
+      this.out = null;
     }
   }
   
@@ -116,9 +190,6 @@ public class MyDBOutputStream extends OutputStream {
   /**
    * Writes byte array <code>b[]</code> to the output stream.
    * 
-   * Since we are not streaming to the database, we save the bytes into the
-   * <code>outputByteArray</code>.
-   * 
    * @param b Byte array to be written.
    * @throws IOException 
    */
@@ -128,24 +199,15 @@ public class MyDBOutputStream extends OutputStream {
     if (b == null)
       throw new NullPointerException();
 
-    // Check if database is open
-    checkDBOpen();
-
-    // Save the bytes in outputByteArray
-    if ((b != null) && (b.length > 0)) {
-      byte[] byteCopy = new byte[b.length];
-      System.arraycopy(b, 0, byteCopy, 0, b.length);
-      this.outputByteArray.add(byteCopy);
-    }
+    checkOpen();
+    this.out.write(b, 0, b.length);
+    this.fileLength += b.length;
   }
   
   /**
    * Writes byte array <code>b[]</code> starting at <code>off</code> for
    * a total of <code>len</code> bytes to the output stream.
    * 
-   * Since we are not streaming to the database, we save the bytes into the
-   * <code>outputByteArray</code>.
-   * 
    * @param b   Byte array to be partially written
    * @param off Offset into <code>b[]</code> of where to start writing
    * @param len Number of bytes to write
@@ -159,71 +221,74 @@ public class MyDBOutputStream extends OutputStream {
     else if ((off < 0) || (off >= b.length))
       throw new IOException("Invalid 'off' parameter");
     
-    // Check if database is open
-    checkDBOpen();
-
-    // Save the bytes in outputByteArray
-    if (len > 0) {
-      byte[] byteCopy = new byte[len];
-      if (byteCopy.length > 0) {
-        System.arraycopy(b, off, byteCopy, 0, len);
-        this.outputByteArray.add(byteCopy);
-      }
-    }
+    checkOpen();
+    this.out.write(b, off, len);
+    this.fileLength += len;
   }
   
   /**
    * Writes a byte, <code>b</code>, to the output stream.
    * 
-   * Since we are not streaming to the database, we save the byte into the
-   * <code>outputByteArray</code>.
-   * 
    * @param b Byte to be written
    * @throws IOException 
    */
   @Override
   public void write(int b) throws IOException {
-    // Check if database is open
-    checkDBOpen();
-
-    // Save the byte in outputByteArray
-    byte[] byteCopy = new byte[1];
-    byteCopy[0] = (byte)b;
-    this.outputByteArray.add(byteCopy);
+    checkOpen();
+    this.out.write(b);
+    this.fileLength++;
   }
   
 //------------------------------------------------------------------------------
 // Helper functions
 //------------------------------------------------------------------------------
   /**
-   * Opens the database if it has not been attempted previously.
+   * Appends the bytes written to the record denoted by the URI.
    * 
-   * @throws IOException 
+   * @param dbConnection Connection to the database
+   * @param filename     Filename of the record
+   * @return <code>false</code> if there is no record to append to
+   * @throws Exception 
    */
-  private void checkDBOpen() throws IOException {
-    if (!this.openAttempted)
-      openDBConnection();
-
-    if (this.dbConnection == null)
-      throw new IOException("DB Connection is not open");
+  private boolean appendRecord(Connection dbConnection, String filename) throws Exception {
+    String tableName = this.myDBFile.getTableName();
+    long recordID = this.myDBFile.getRecordID();
+    if (recordID < 0) {
+      MyDBItem[] items = MyDBUtil.getDBItems(dbConnection, tableName, filename, -1/*srchRecordID*/);
+      if (items.length == 0)
+        return false;
+      recordID = items[0].getRecordID();
+    }
+    return MyDBChunkStore.appendRecord(dbConnection, tableName, recordID,
+                                       this.payloadBuffer.getInputStream(),
+                                       this.payloadBuffer.getLength());
   }
 
   /**
-   * Opens the database connection.
+   * Creates the payload buffer, and the encoder writing to it, on the first
+   * write.
    * 
    * @throws IOException 
    */
-  private void openDBConnection() throws IOException {
-    this.openAttempted = true;
-    
-    try {
-      this.dbConnection = MyDBUtil.getDBConnection();
-    } catch (Exception ex) {
-      LexURIFile.debug(true, "MyDBOutputStream.openDBConnection> Exception "
-              + "opening Database. MyDBFile path[" + this.myDBFile.getPath()
-                       + "]", ex);
-      throw new IOException("Failed to open '" + this.myDBFile.getPath()
-              + "'", ex);
+  private void checkOpen() throws IOException {
+    if (this.closed)
+      throw new IOException("MyDB output stream is closed");
+    if (this.payloadBuffer == null) {
+      String tableName = this.myDBFile.getTableName();
+      this.payloadBuffer = MyDBUtil.createPayloadBuffer();
+      this.codec = this.append ? MyDBCodec.NONE : MyDBCodec.getWriteCodec(tableName);
+      OutputStream stored = this.payloadBuffer;
+      if (!this.append && MyDBExternalStore.isEnabled(tableName)) {
+        // Checksum the bytes as stored, in case they go to a file
+        this.checksum = MyDBExternalStore.createDigest();
+        stored = new DigestOutputStream(stored, this.checksum);
+      }
+      this.out   = MyDBCodec.encode(this.codec, tableName, stored);
+      if (!this.append && MyDBBlobStore.isEnabled(tableName)) {
+        // Hash the bytes before they are encoded
+        this.digest = MyDBBlobStore.createDigest();
+        this.out    = new DigestOutputStream(this.out, this.digest);
+      }
     }
   }
 
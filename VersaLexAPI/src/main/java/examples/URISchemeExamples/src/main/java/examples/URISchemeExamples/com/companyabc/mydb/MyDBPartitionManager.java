@@ -0,0 +1,347 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>MyDBPartitionManager</code> class maintains the partitions of
+ * tables partitioned by <code>FileTime</code> (the <code>partition</code>
+ * table setting, see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBUtil#getTableProperty(String, String)}),
+ * so that old records can be removed by dropping a whole partition instead
+ * of deleting them row by row.
+ *
+ * <p> The table is created partitioned by range of <code>FileTime</code>,
+ * with one partition per day (<code>daily</code>) or per month
+ * (<code>monthly</code>) in UTC. Partitions are named
+ * <i>table</i><code>_p</code><i>yyyyMMdd</i> or
+ * <i>table</i><code>_p</code><i>yyyyMM</i> in lowercase after the first day
+ * they hold. With MySQL the primary key must include <code>FileTime</code>,
+ * and there must be no <code>MAXVALUE</code> partition:
+ *
+ * <pre>
+ * {@code
+ * CREATE TABLE `mydbinbox` (
+ *   `ID` bigint(20) NOT NULL AUTO_INCREMENT,
+ *   `FileTime` bigint(20) NOT NULL,
+ *   ...
+ *   PRIMARY KEY (`ID`,`FileTime`),
+ *   KEY `Filename_IDX` (`Filename`)
+ * ) ENGINE=InnoDB DEFAULT CHARSET=latin1
+ * PARTITION BY RANGE (`FileTime`) (
+ *   PARTITION mydbinbox_p20261018 VALUES LESS THAN (1792368000000)
+ * )$$
+ * }
+ * </pre>
+ *
+ * With PostgreSQL the table is declared with
+ * <code>PARTITION BY RANGE (FileTime)</code> and the partitions are tables
+ * of the same names. H2 and Derby tables cannot be partitioned.
+ *
+ * <p> The database routes reads, writes and listings to the partitions and
+ * skips partitions that cannot hold the records selected, so the scheme
+ * uses the table under its own name as before. When a partitioned table is
+ * first used, and every <code>cleo.uri.mydb.partition.interval</code> MS
+ * after that, the partitions for the current period and the
+ * <code>partition.ahead</code> periods after it are added, and the
+ * partitions older than the last <code>partition.retention</code> periods
+ * are dropped with all their records. Dropping a partition waits for the
+ * transactions using the table to end.
+ *
+ * <p> Chunked and deduplicated tables keep part of their contents in other
+ * tables, and tables with an <code>external.threshold</code> in files, which
+ * dropping a partition would leave behind, so they are not partitioned.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.partition</td>
+ *     <td>none</td>
+ *     <td><code>daily</code> or <code>monthly</code> to maintain the
+ *         partitions of a table partitioned by <code>FileTime</code></td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.partition.ahead</td>
+ *     <td>2</td>
+ *     <td>Number of partitions created ahead of the current one</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.partition.retention</td>
+ *     <td>0</td>
+ *     <td>Number of periods, including the current one, whose partitions
+ *         are kept (0 to keep all partitions)</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.partition.interval</td>
+ *     <td>3600000</td>
+ *     <td>Time in MS between partition maintenance runs</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBPartitionManager {
+  // Partitioned tables in use, keyed by lowercase name
+  private static final ConcurrentHashMap<String, String> tables =
+          new ConcurrentHashMap<String, String>();
+
+  private static ScheduledExecutorService timer = null;
+
+  /**
+   * Returns <code>true</code> if the partitions of a table are maintained.
+   * @param tableName Name of the table
+   * @return <code>true</code> if the <code>partition</code> setting of the
+   *         table is <code>daily</code> or <code>monthly</code> and the table
+   *         keeps all its contents in its own rows
+   */
+  public static boolean isEnabled(String tableName) {
+    return (getPeriodField(tableName) >= 0)
+           && !MyDBUtil.isChunked(tableName) && !MyDBBlobStore.isEnabled(tableName)
+           && !MyDBExternalStore.isEnabled(tableName);
+  }
+
+  /**
+   * Maintains the partitions of a table the first time it is used, so the
+   * partition for the current period exists before records are written.
+   *
+   * @param tableName Name of the table
+   */
+  public static void checkTable(String tableName) {
+    if (!isEnabled(tableName) || (tables.putIfAbsent(tableName.toLowerCase(), tableName) != null))
+      return;
+    maintain(tableName);
+    getTimer();
+  }
+
+  /**
+   * Adds the partitions for the current and the following periods and drops
+   * the partitions that are past retention.
+   *
+   * @param tableName Name of the table
+   */
+  public static synchronized void maintain(String tableName) {
+    int field = getPeriodField(tableName);
+    if (field < 0)
+      return;
+    Connection dbConnection = null;
+    int added = 0;
+    int dropped = 0;
+    try {
+      String physicalName = MyDBTableCache.getTableName(tableName);
+      if (physicalName == null)
+        return;
+      dbConnection = MyDBUtil.getDBConnection();
+      MyDBDialect dialect = MyDBUtil.getDialect();
+      List<String> partitions = listPartitions(dbConnection, dialect, physicalName);
+      if (partitions.isEmpty())
+        throw new Exception("Table " + physicalName + " has no partitions");
+
+      // Partitions can only be added after the last one
+      Calendar current = getPeriodStart(System.currentTimeMillis(), field);
+      long lastMS = Long.MIN_VALUE;
+      for (String partition : partitions)
+        lastMS = Math.max(lastMS, parsePeriodStart(physicalName, partition, field));
+      long ahead = Math.max(0, MyDBUtil.getLongTableProperty(tableName, "partition.ahead", 2));
+      Calendar start = (Calendar)current.clone();
+      for (int i = 0; i <= ahead; i++) {
+        Calendar end = (Calendar)start.clone();
+        end.add(field, 1);
+        if (start.getTimeInMillis() > lastMS) {
+          execute(dbConnection, dialect.getAddPartitionSQL(physicalName,
+                  getPartitionName(physicalName, start, field),
+                  start.getTimeInMillis(), end.getTimeInMillis()));
+          added++;
+        }
+        start = end;
+      }
+
+      long retention = MyDBUtil.getLongTableProperty(tableName, "partition.retention", 0);
+      if (retention > 0) {
+        Calendar cutoff = (Calendar)current.clone();
+        cutoff.add(field, (int)-(retention - 1));
+        for (String partition : partitions) {
+          long partitionMS = parsePeriodStart(physicalName, partition, field);
+          if ((partitionMS != Long.MIN_VALUE) && (partitionMS < cutoff.getTimeInMillis())) {
+            execute(dbConnection, dialect.getDropPartitionSQL(physicalName, partition));
+            dropped++;
+          }
+        }
+      }
+    } catch (Exception ex) {
+      LexURIFile.debug(true, "MyDBPartitionManager.maintain> " + tableName + " exception", ex);
+      MyDBTableCache.invalidate(tableName);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+    LexURIFile.debug("MyDBPartitionManager.maintain> " + tableName + " added=" + added
+                     + " dropped=" + dropped);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the calendar field of the partition period of a table.
+   * @param tableName Name of the table
+   * @return <code>Calendar.DAY_OF_MONTH</code> for <code>daily</code>,
+   *         <code>Calendar.MONTH</code> for <code>monthly</code>, or -1 if
+   *         the table is not partitioned
+   */
+  private static int getPeriodField(String tableName) {
+    String period = MyDBUtil.getTableProperty(tableName, "partition");
+    if ("daily".equalsIgnoreCase(period))
+      return Calendar.DAY_OF_MONTH;
+    if ("monthly".equalsIgnoreCase(period))
+      return Calendar.MONTH;
+    return -1;
+  }
+
+  /**
+   * Returns the start of the period holding a time.
+   * @param timeMS Time in MS
+   * @param field  Calendar field of the period
+   * @return The start of the period in UTC
+   */
+  private static Calendar getPeriodStart(long timeMS, int field) {
+    Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    cal.setTimeInMillis(timeMS);
+    if (field == Calendar.MONTH)
+      cal.set(Calendar.DAY_OF_MONTH, 1);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal;
+  }
+
+  /**
+   * Returns the format of the period in partition names.
+   * @param field Calendar field of the period
+   * @return A UTC date format
+   */
+  private static SimpleDateFormat getPeriodFormat(int field) {
+    SimpleDateFormat format = new SimpleDateFormat((field == Calendar.MONTH) ? "yyyyMM" : "yyyyMMdd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    format.setLenient(false);
+    return format;
+  }
+
+  /**
+   * Returns the name of the partition of a period.
+   * @param tableName Name of the table
+   * @param start     Start of the period
+   * @param field     Calendar field of the period
+   * @return The partition name
+   */
+  private static String getPartitionName(String tableName, Calendar start, int field) {
+    return (tableName + "_p" + getPeriodFormat(field).format(start.getTime())).toLowerCase();
+  }
+
+  /**
+   * Returns the start of the period of a partition from its name.
+   * @param tableName Name of the table
+   * @param partition Name of the partition
+   * @param field     Calendar field of the period
+   * @return The start of the period in MS, or <code>Long.MIN_VALUE</code>
+   *         if the partition is not named after a period
+   */
+  private static long parsePeriodStart(String tableName, String partition, int field) {
+    String prefix = (tableName + "_p").toLowerCase();
+    if (!partition.toLowerCase().startsWith(prefix))
+      return Long.MIN_VALUE;
+    try {
+      return getPeriodFormat(field).parse(partition.substring(prefix.length())).getTime();
+    } catch (ParseException ex) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Returns the names of the partitions of a table.
+   * @param dbConnection Connection to the database
+   * @param dialect      SQL dialect of the database
+   * @param tableName    Name of the table as stored in the database
+   * @return The partition names
+   * @throws Exception if the dialect does not support partitioned tables
+   */
+  private static List<String> listPartitions(Connection dbConnection, MyDBDialect dialect,
+                                             String tableName) throws Exception {
+    String sql = dialect.getListPartitionsSQL();
+    if (sql == null)
+      throw new Exception("Partitioned tables are not supported by the " + dialect.getName() + " dialect");
+    List<String> partitions = new ArrayList<String>();
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = MyDBUtil.prepareStatement(dbConnection, tableName, "listPartitions", sql);
+      stmt.setString(1, tableName);
+      rs = stmt.executeQuery();
+      while (rs.next())
+        partitions.add(rs.getString(1));
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * Executes a partition statement.
+   * @param dbConnection Connection to the database
+   * @param sql          Statement to execute
+   * @throws Exception
+   */
+  private static void execute(Connection dbConnection, String sql) throws Exception {
+    LexURIFile.debug("MyDBPartitionManager.execute> sql[" + sql + "]");
+    Statement stmt = dbConnection.createStatement();
+    try {
+      stmt.executeUpdate(sql);
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Returns the timer maintaining the partitions, creating it on first use.
+   * @return The timer
+   */
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      long intervalMS = Math.max(60000, MyDBUtil.getLongProperty("partition.interval", 3600000L));
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBPartitionManager");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      timer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          for (String tableName : tables.values())
+            maintain(tableName);
+        }
+      }, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+    }
+    return timer;
+  }
+}
@@ -0,0 +1,202 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A <code>MyDBPayloadBuffer</code> collects the bytes written to a
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBOutputStream}
+ * until they can be inserted into the database.
+ *
+ * <p> Bytes are kept in memory until the spill threshold is reached. After
+ * that, everything is written to a temporary file so heap use stays bounded
+ * regardless of the size of the payload. {@link #getInputStream()} then
+ * returns a stream over the collected bytes that can be handed to
+ * <code>PreparedStatement.setBinaryStream</code>.
+ */
+public class MyDBPayloadBuffer extends OutputStream {
+  private final long spillThreshold;
+  private final File spillDir;
+
+  private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+  private File         spillFile = null;
+  private OutputStream spillOut  = null;
+  private long         length    = 0;
+  private boolean      closed    = false;
+
+  /**
+   * Creates a buffer that spills to a temporary file once more than
+   * <code>spillThreshold</code> bytes have been written.
+   *
+   * @param spillThreshold Maximum number of bytes kept in memory
+   * @param spillDir       Directory for the temporary file or
+   *                       <code>null</code> for the default temporary
+   *                       directory
+   */
+  public MyDBPayloadBuffer(long spillThreshold, File spillDir) {
+    this.spillThreshold = spillThreshold;
+    this.spillDir       = spillDir;
+  }
+
+  /**
+   * Writes a byte to the buffer.
+   * @param b Byte to be written
+   * @throws IOException
+   */
+  @Override
+  public void write(int b) throws IOException {
+    checkOpen();
+    if (this.spillOut == null && (this.length + 1) > this.spillThreshold)
+      spill();
+    if (this.spillOut != null)
+      this.spillOut.write(b);
+    else
+      this.memory.write(b);
+    this.length++;
+  }
+
+  /**
+   * Writes <code>len</code> bytes of <code>b[]</code> starting at
+   * <code>off</code> to the buffer.
+   * @param b   Byte array to be partially written
+   * @param off Offset into <code>b[]</code> of where to start writing
+   * @param len Number of bytes to write
+   * @throws IOException
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    if (len <= 0)
+      return;
+    if (this.spillOut == null && (this.length + len) > this.spillThreshold)
+      spill();
+    if (this.spillOut != null)
+      this.spillOut.write(b, off, len);
+    else
+      this.memory.write(b, off, len);
+    this.length += len;
+  }
+
+  /**
+   * Finishes writing. No more bytes may be written after this call.
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.closed)
+      return;
+    this.closed = true;
+    if (this.spillOut != null) {
+      this.spillOut.close();
+      this.spillOut = null;
+    }
+  }
+
+  /**
+   * Returns the number of bytes written.
+   * @return Number of bytes written
+   */
+  public long getLength() {
+    return this.length;
+  }
+
+  /**
+   * Returns <code>true</code> if the bytes have been spilled to a temporary
+   * file.
+   * @return <code>true</code> if a temporary file is in use
+   */
+  public boolean isSpilled() {
+    return this.spillFile != null;
+  }
+
+  /**
+   * Returns the temporary file the bytes were spilled to.
+   * @return The temporary file or <code>null</code> if the bytes are in
+   *         memory
+   */
+  public File getSpillFile() {
+    return this.spillFile;
+  }
+
+  /**
+   * Closes the buffer for writing and returns a stream over the bytes
+   * written. May be called more than once; each call returns a new stream.
+   * @return A stream over the bytes written
+   * @throws IOException
+   */
+  public InputStream getInputStream() throws IOException {
+    close();
+    if (this.spillFile != null)
+      return new BufferedInputStream(new FileInputStream(this.spillFile),
+                                     MyDBUtil.COPY_BUFFER_SIZE);
+    else
+      return new ByteArrayInputStream(this.memory.getBuffer(), 0, this.memory.size());
+  }
+
+  /**
+   * Releases the memory and deletes the temporary file, if any.
+   */
+  public void dispose() {
+    try {
+      close();
+    } catch (IOException ex) {
+      LexURIFile.debug("MyDBPayloadBuffer.dispose> close exception", ex);
+    }
+    this.memory = null;
+    if (this.spillFile != null) {
+      if (this.spillFile.exists() && !this.spillFile.delete())
+        LexURIFile.debug(true, "MyDBPayloadBuffer.dispose> Unable to delete "
+                         + this.spillFile.getAbsolutePath());
+      this.spillFile = null;
+    }
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Moves the bytes collected in memory to a new temporary file.
+   * @throws IOException
+   */
+  private void spill() throws IOException {
+    this.spillFile = File.createTempFile("mydb", ".spill", this.spillDir);
+    LexURIFile.debug("MyDBPayloadBuffer.spill> " + this.spillFile.getAbsolutePath()
+                     + " after " + this.length + " bytes");
+    this.spillOut = new BufferedOutputStream(new FileOutputStream(this.spillFile),
+                                             MyDBUtil.COPY_BUFFER_SIZE);
+    this.memory.writeTo(this.spillOut);
+    this.memory = null;
+  }
+
+  /**
+   * Throws an exception if the buffer has been closed.
+   * @throws IOException
+   */
+  private void checkOpen() throws IOException {
+    if (this.closed)
+      throw new IOException("MyDB payload buffer is closed");
+  }
+
+  /**
+   * ByteArrayOutputStream that gives access to its internal buffer so it
+   * can be read without another copy.
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    private ExposedByteArrayOutputStream() {
+      super(8192);
+    }
+
+    private byte[] getBuffer() {
+      return this.buf;
+    }
+  }
+}
@@ -0,0 +1,536 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The <code>MyDBPayloadCache</code> class keeps the contents of recently read
+ * records in local files, so that a record sent again is not read from the
+ * database again. This helps when a send fails and is retried (for example
+ * with <code>CommandRetries</code>), or when the same record is resent.
+ *
+ * <p> When a {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBInputStream}
+ * reads a record by ID, the contents are copied to a file under
+ * <code>cleo.uri.mydb.payloadcache.dir</code> as they are read. The file is
+ * only added to the cache once the whole record has been read. The next read
+ * of the same record, after any claim or lock has been taken, only queries
+ * the record information to check that the record still exists with the
+ * same filename, time and length and then reads the contents from the file.
+ *
+ * <p> The files are kept in least recently used order and the oldest are
+ * deleted when their total size would exceed
+ * <code>cleo.uri.mydb.payloadcache.maxsize</code> bytes. Records larger than
+ * <code>cleo.uri.mydb.payloadcache.maxrecordsize</code> are not cached.
+ * Deleting a record removes it from the cache. The cache is local to each
+ * node, and files left from an earlier run are deleted on first use. The
+ * hit and miss counts are available from {@link #getStatistics()}.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.payloadcache.maxsize</td>
+ *     <td>0</td>
+ *     <td>Maximum total size in bytes of the cached contents. 0 turns the
+ *         cache off</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.payloadcache.maxrecordsize</td>
+ *     <td>payloadcache.maxsize / 4</td>
+ *     <td>Maximum size in bytes of a cached record</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.payloadcache.dir</td>
+ *     <td><i>temp dir</i>/mydb-payloadcache</td>
+ *     <td>Directory of the cache files</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBPayloadCache {
+  // Suffixes of committed and partial cache files
+  private static final String FILE_SUFFIX = ".mydbcache";
+  private static final String TEMP_SUFFIX = ".mydbcache.tmp";
+
+  // Cached records, keyed by table:ID, in least recently used order;
+  // guarded by the class
+  private static final LinkedHashMap<String, Entry> entries =
+          new LinkedHashMap<String, Entry>(16, 0.75f, true/*accessOrder*/);
+  private static long totalSize = 0;
+  private static File directory = null;
+
+  // Statistics (guarded by the class)
+  private static long hitCount      = 0;
+  private static long missCount     = 0;
+  private static long staleCount    = 0;
+  private static long evictionCount = 0;
+
+  /**
+   * Returns <code>true</code> if the contents of records read are cached.
+   * @return <code>true</code> if <code>cleo.uri.mydb.payloadcache.maxsize</code>
+   *         is positive
+   */
+  public static boolean isEnabled() {
+    return getMaxSize() > 0;
+  }
+
+  /**
+   * Returns the cached contents of a record if the record still exists
+   * with the same filename, time and length.
+   *
+   * @param dbConnection Connection to the database used to check the record
+   * @param tableName    Name of the table
+   * @param recordID     Record ID
+   * @return A stream over the cached contents or <code>null</code> if the
+   *         record is not cached
+   * @throws Exception
+   */
+  public static MyDBRecordStream open(Connection dbConnection, String tableName,
+                                      long recordID) throws Exception {
+    String key = getKey(tableName, recordID);
+    Entry entry;
+    synchronized (MyDBPayloadCache.class) {
+      entry = entries.get(key);
+      if (entry == null) {
+        missCount++;
+        return null;
+      }
+    }
+
+    // The record may have been deleted, renamed or rewritten by another node
+    MyDBItem info = MyDBUtil.readRecordInfo(dbConnection, tableName, recordID);
+    if ((info == null) || !matches(entry.item, info)) {
+      synchronized (MyDBPayloadCache.class) {
+        staleCount++;
+        if (entries.get(key) == entry)
+          remove(key);
+      }
+      return null;
+    }
+
+    InputStream in;
+    try {
+      in = new FileInputStream(entry.file);
+    } catch (IOException ex) {
+      LexURIFile.debug(true, "MyDBPayloadCache.open> " + key + " unreadable", ex);
+      invalidate(tableName, recordID);
+      return null;
+    }
+    synchronized (MyDBPayloadCache.class) {
+      hitCount++;
+    }
+    LexURIFile.debug("MyDBPayloadCache.open> " + key + " length=" + entry.size);
+    return new MyDBRecordStream(entry.item, null/*stmt*/, null/*rs*/, in);
+  }
+
+  /**
+   * Returns a stream over the contents of a record being read from the
+   * database that also copies them to a cache file. The record is cached
+   * once all of its contents have been read from the returned stream.
+   *
+   * @param tableName    Name of the table
+   * @param recordStream Stream over the record read from the database
+   * @return A stream to read instead of <code>recordStream</code>, or
+   *         <code>recordStream</code> itself if the record is not cached
+   */
+  public static MyDBRecordStream fill(String tableName, MyDBRecordStream recordStream) {
+    MyDBItem item = recordStream.getItem();
+    if (!accepts(item))
+      return recordStream;
+    try {
+      return new MyDBRecordStream(item, null/*stmt*/, null/*rs*/,
+                                  new FillInputStream(tableName, item, recordStream));
+    } catch (IOException ex) {
+      LexURIFile.debug(true, "MyDBPayloadCache.fill> " + getKey(tableName, item.getRecordID())
+                       + " not cached", ex);
+      return recordStream;
+    }
+  }
+
+  /**
+   * Caches the contents of a record that has been read into memory.
+   *
+   * @param tableName Name of the table
+   * @param item      Record including its file bytes
+   */
+  public static void put(String tableName, MyDBItem item) {
+    byte[] bytes = item.getFileBytes();
+    if ((bytes == null) || !accepts(item))
+      return;
+    File temp = null;
+    try {
+      temp = newFile(tableName, item.getRecordID(), TEMP_SUFFIX);
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+      commit(tableName, item, temp, bytes.length);
+    } catch (IOException ex) {
+      LexURIFile.debug(true, "MyDBPayloadCache.put> " + getKey(tableName, item.getRecordID())
+                       + " not cached", ex);
+      deleteFile(temp);
+    }
+  }
+
+  /**
+   * Removes a record from the cache, if it is cached.
+   *
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   */
+  public static synchronized void invalidate(String tableName, long recordID) {
+    remove(getKey(tableName, recordID));
+  }
+
+  /**
+   * Returns a snapshot of the cache statistics.
+   *
+   * @return Cache statistics
+   */
+  public static synchronized Statistics getStatistics() {
+    return new Statistics(hitCount, missCount, staleCount, evictionCount,
+                          entries.size(), totalSize);
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns <code>true</code> if a record is small enough to be cached.
+   * @param item Record information
+   * @return <code>true</code> if the record may be cached
+   */
+  private static boolean accepts(MyDBItem item) {
+    long maxSize = getMaxSize();
+    long maxRecordSize = MyDBUtil.getLongProperty("payloadcache.maxrecordsize", maxSize / 4);
+    return (maxSize > 0) && (item.getRecordID() >= 0)
+           && (item.getFileLength() <= Math.min(maxRecordSize, maxSize));
+  }
+
+  /**
+   * Returns <code>true</code> if a cached record still describes the record
+   * in the database.
+   * @param cached Record information when the record was cached
+   * @param info   Current record information
+   * @return <code>true</code> if the filename, time and length are the same
+   */
+  private static boolean matches(MyDBItem cached, MyDBItem info) {
+    return (info.getFileLength() == cached.getFileLength())
+           && (info.getDateTimeMS() == cached.getDateTimeMS())
+           && ((info.getFilename() == null) ? (cached.getFilename() == null)
+                                            : info.getFilename().equals(cached.getFilename()));
+  }
+
+  /**
+   * Returns the maximum total size of the cache.
+   * @return Value of the <code>cleo.uri.mydb.payloadcache.maxsize</code> property
+   */
+  private static long getMaxSize() {
+    return MyDBUtil.getLongProperty("payloadcache.maxsize", 0);
+  }
+
+  /**
+   * Adds a completely written cache file to the cache, replacing an older
+   * file of the same record and evicting the least recently used files as
+   * needed.
+   * @param tableName Name of the table
+   * @param item      Record information
+   * @param temp      Completely written temporary file
+   * @param size      Size of the file
+   * @throws IOException if the file cannot be renamed
+   */
+  private static void commit(String tableName, MyDBItem item, File temp, long size) throws IOException {
+    File file = new File(temp.getParentFile(),
+                         temp.getName().substring(0, temp.getName().length() - TEMP_SUFFIX.length())
+                         + FILE_SUFFIX);
+    if (!temp.renameTo(file))
+      throw new IOException("Unable to rename " + temp.getAbsolutePath());
+    String key = getKey(tableName, item.getRecordID());
+    // Keep the record information only
+    MyDBItem info = new MyDBItem(item.getRecordID(), item.getFilename(),
+                                 item.getDateTimeMS(), item.getFileLength(), null);
+    synchronized (MyDBPayloadCache.class) {
+      remove(key);
+      entries.put(key, new Entry(info, file, size));
+      totalSize += size;
+      long maxSize = getMaxSize();
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while ((totalSize > maxSize) && it.hasNext()) {
+        Entry eldest = it.next().getValue();
+        it.remove();
+        totalSize -= eldest.size;
+        evictionCount++;
+        deleteFile(eldest.file);
+      }
+    }
+    LexURIFile.debug("MyDBPayloadCache.commit> " + key + " length=" + size);
+  }
+
+  /**
+   * Removes an entry and deletes its file. Must be called holding the class
+   * lock.
+   * @param key Key of the entry
+   */
+  private static void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      totalSize -= entry.size;
+      deleteFile(entry.file);
+    }
+  }
+
+  /**
+   * Returns a new file name in the cache directory for a record.
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   * @param suffix    File name suffix
+   * @return The file
+   * @throws IOException if the directory cannot be created
+   */
+  private static File newFile(String tableName, long recordID, String suffix) throws IOException {
+    return new File(getDirectory(), tableName.toLowerCase() + "_" + recordID + "_"
+                                    + UUID.randomUUID() + suffix);
+  }
+
+  /**
+   * Returns the cache directory, creating it and deleting the cache files
+   * left from an earlier run on first use.
+   * @return The cache directory
+   * @throws IOException if the directory cannot be created
+   */
+  private static synchronized File getDirectory() throws IOException {
+    if (directory == null) {
+      String dir = System.getProperty(MyDBUtil.PROPERTY_PREFIX + "payloadcache.dir");
+      File file = ((dir != null) && (dir.trim().length() > 0))
+              ? new File(dir.trim())
+              : new File(System.getProperty("java.io.tmpdir"), "mydb-payloadcache");
+      if (!file.isDirectory() && !file.mkdirs() && !file.isDirectory())
+        throw new IOException("Unable to create " + file.getAbsolutePath());
+      File[] leftovers = file.listFiles();
+      if (leftovers != null) {
+        for (File leftover : leftovers) {
+          if (leftover.getName().endsWith(FILE_SUFFIX) || leftover.getName().endsWith(TEMP_SUFFIX))
+            deleteFile(leftover);
+        }
+      }
+      LexURIFile.debug("MyDBPayloadCache.getDirectory> " + file.getAbsolutePath());
+      directory = file;
+    }
+    return directory;
+  }
+
+  /**
+   * Deletes a file, logging a failure.
+   * @param file File to delete; <code>null</code> is ignored
+   */
+  private static void deleteFile(File file) {
+    if ((file != null) && file.exists() && !file.delete())
+      LexURIFile.debug(true, "MyDBPayloadCache.deleteFile> Unable to delete "
+                       + file.getAbsolutePath());
+  }
+
+  /**
+   * Returns the key of a record.
+   * @param tableName Name of the table
+   * @param recordID  Record ID
+   * @return The key
+   */
+  private static String getKey(String tableName, long recordID) {
+    return tableName.toLowerCase() + ":" + recordID;
+  }
+
+  /**
+   * A cached record.
+   */
+  private static class Entry {
+    private final MyDBItem item;
+    private final File     file;
+    private final long     size;
+
+    private Entry(MyDBItem item, File file, long size) {
+      this.item = item;
+      this.file = file;
+      this.size = size;
+    }
+  }
+
+  /**
+   * A stream over a record read from the database that copies the bytes
+   * read to a temporary file, which is added to the cache when the end of
+   * the record is reached.
+   */
+  private static class FillInputStream extends FilterInputStream {
+    private final String   tableName;
+    private final MyDBItem item;
+    private File           temp;
+    private OutputStream   out;
+    private long           length = 0;
+
+    private FillInputStream(String tableName, MyDBItem item, InputStream in) throws IOException {
+      super(in);
+      this.tableName = tableName;
+      this.item      = item;
+      this.temp      = newFile(tableName, item.getRecordID(), TEMP_SUFFIX);
+      this.out       = new BufferedOutputStream(new FileOutputStream(this.temp),
+                                                MyDBUtil.COPY_BUFFER_SIZE);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0)
+        finish();
+      else
+        copy(new byte[] { (byte)b }, 0, 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count < 0)
+        finish();
+      else
+        copy(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes are not copied, so the record cannot be cached
+      discard();
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      discard();
+      super.close();
+    }
+
+    /**
+     * Copies bytes read to the temporary file, and adds it to the cache once
+     * the whole record has been copied. A write error only stops the record
+     * from being cached.
+     */
+    private void copy(byte[] b, int off, int len) {
+      if (this.out == null)
+        return;
+      try {
+        this.out.write(b, off, len);
+        this.length += len;
+        if (this.length == this.item.getFileLength())
+          finish();
+      } catch (IOException ex) {
+        LexURIFile.debug(true, "MyDBPayloadCache.copy> " + this.temp.getName()
+                         + " write exception", ex);
+        discard();
+      }
+    }
+
+    /**
+     * Adds the temporary file to the cache if the whole record was copied.
+     */
+    private void finish() {
+      if (this.out == null)
+        return;
+      try {
+        this.out.close();
+        this.out = null;
+        if (this.length == this.item.getFileLength()) {
+          commit(this.tableName, this.item, this.temp, this.length);
+          this.temp = null;
+        }
+      } catch (IOException ex) {
+        LexURIFile.debug(true, "MyDBPayloadCache.finish> " + this.temp.getName()
+                         + " not cached", ex);
+      }
+      discard();
+    }
+
+    /**
+     * Stops copying and deletes the temporary file, if any.
+     */
+    private void discard() {
+      if (this.out != null) {
+        try {
+          this.out.close();
+        } catch (IOException ex) {
+        }
+        this.out = null;
+      }
+      deleteFile(this.temp);
+      this.temp = null;
+    }
+  }
+
+  /**
+   * A snapshot of the cache statistics.
+   */
+  public static class Statistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long staleCount;
+    private final long evictionCount;
+    private final int  entryCount;
+    private final long totalSize;
+
+    private Statistics(long hitCount, long missCount, long staleCount,
+                       long evictionCount, int entryCount, long totalSize) {
+      this.hitCount      = hitCount;
+      this.missCount     = missCount;
+      this.staleCount    = staleCount;
+      this.evictionCount = evictionCount;
+      this.entryCount    = entryCount;
+      this.totalSize     = totalSize;
+    }
+
+    /** @return Number of reads served from the cache */
+    public long getHitCount() { return this.hitCount; }
+    /** @return Number of reads of records that were not cached */
+    public long getMissCount() { return this.missCount; }
+    /** @return Number of cached records found deleted or changed */
+    public long getStaleCount() { return this.staleCount; }
+    /** @return Number of records evicted to stay within the maximum size */
+    public long getEvictionCount() { return this.evictionCount; }
+    /** @return Number of records cached */
+    public int getEntryCount() { return this.entryCount; }
+    /** @return Total size in bytes of the cached records */
+    public long getTotalSize() { return this.totalSize; }
+
+    /**
+     * Returns a string representation of the statistics used for debugging.
+     * @return String representing the statistics
+     */
+    @Override
+    public String toString() {
+      return "hits=" + this.hitCount
+              + " misses=" + this.missCount
+              + " stale=" + this.staleCount
+              + " evictions=" + this.evictionCount
+              + " entries=" + this.entryCount
+              + " size=" + this.totalSize;
+    }
+  }
+}
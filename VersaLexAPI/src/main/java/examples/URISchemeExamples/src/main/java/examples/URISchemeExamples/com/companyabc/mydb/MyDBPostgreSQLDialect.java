@@ -0,0 +1,103 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * SQL dialect for PostgreSQL (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBDialect}).
+ *
+ * <p> The contents columns are <code>bytea</code>, which the driver reads
+ * whole, so very large records should use the <code>chunked</code> layout.
+ * Adding <code>reWriteBatchedInserts=true</code> to
+ * <code>cleo.uri.mydb.url</code> sends batched inserts as multi-row
+ * inserts. Unquoted table and column names are folded to lowercase.
+ *
+ * <p> Filename patterns are matched with
+ * <code>LOWER(filename) LIKE ?</code>, which a plain index on
+ * <code>filename</code> does not help. For a pattern with a fixed prefix
+ * (such as <code>INV*</code>) to use an index, create an expression index
+ * for each table:
+ * <pre>
+ * CREATE INDEX mydboutbox_filename_lower_idx
+ *   ON mydboutbox (LOWER(filename) text_pattern_ops);
+ * </pre>
+ */
+public class MyDBPostgreSQLDialect extends MyDBDialect {
+  @Override
+  public String getName() {
+    return "postgresql";
+  }
+
+  @Override
+  public String getDriverClass(String url) {
+    return "org.postgresql.Driver";
+  }
+
+  @Override
+  public String getDefaultURL() {
+    return "jdbc:postgresql://localhost:5432/mysqlvltrader";
+  }
+
+  @Override
+  public String getLimitClause(String count) {
+    return " LIMIT " + count;
+  }
+
+  @Override
+  public String getRegexpPredicate(String column) {
+    return column + " ~* ?";
+  }
+
+  /**
+   * Returns only the ID column; otherwise the driver returns every column of
+   * the new row, including the contents.
+   * @return The ID column name
+   */
+  @Override
+  public String[] getGeneratedKeyColumns() {
+    return new String[] {"id"};
+  }
+
+  /**
+   * Uses the <code>int</code> length form, which is the one the driver
+   * implements for <code>bytea</code>.
+   */
+  @Override
+  public void setBinaryStream(PreparedStatement stmt, int index,
+                              InputStream in, long length) throws SQLException {
+    if (length > Integer.MAX_VALUE)
+      throw new SQLException("Record of " + length + " bytes is too large for a bytea column");
+    stmt.setBinaryStream(index, in, (int)length);
+  }
+
+  @Override
+  public boolean supportsDeleteReturning() {
+    return true;
+  }
+
+  @Override
+  public String getListPartitionsSQL() {
+    return "SELECT c.relname FROM pg_inherits i"
+           + " JOIN pg_class c ON c.oid = i.inhrelid"
+           + " JOIN pg_class p ON p.oid = i.inhparent"
+           + " WHERE p.relname = ?";
+  }
+
+  /**
+   * Each partition is a table attached to the table declared with
+   * <code>PARTITION BY RANGE (FileTime)</code>.
+   */
+  @Override
+  public String getAddPartitionSQL(String tableName, String partition,
+                                   long fromMS, long toMS) {
+    return "CREATE TABLE " + partition + " PARTITION OF " + tableName
+           + " FOR VALUES FROM (" + fromMS + ") TO (" + toMS + ")";
+  }
+
+  @Override
+  public String getDropPartitionSQL(String tableName, String partition) {
+    return "DROP TABLE " + partition;
+  }
+}
@@ -0,0 +1,344 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>MyDBPrefetcher</code> class reads the next record of a table in
+ * the background while the current one is being sent, so a wildcard send
+ * (<code>PUT -DEL *</code>) does not wait for the database between files.
+ *
+ * <p> When a {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBInputStream}
+ * starts reading a record, the record following it in record ID order (and
+ * matching the same filename pattern) is looked up and its contents copied
+ * into a {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPayloadBuffer}
+ * on a pooled connection of its own. When that record is read next, its
+ * contents come from the buffer instead of the database, and the record
+ * after it is prefetched in turn. If the reader gets there before the
+ * prefetch has finished, it waits for it rather than reading the record
+ * again.
+ *
+ * <p> At most <code>cleo.uri.mydb.prefetch.window</code> records are held,
+ * each in memory up to <code>cleo.uri.mydb.spillthreshold</code> bytes and in
+ * a temporary file beyond that. Prefetched records that are not read within
+ * <code>cleo.uri.mydb.prefetch.ttl</code> MS are dropped. Records are not
+ * modified once written (except by appending, so chunked tables, which have
+ * their own read ahead, are not prefetched). When
+ * <code>cleo.uri.mydb.claim</code> is <code>true</code>, only unclaimed
+ * records are prefetched, and the reader still claims the record before the
+ * prefetched contents are used.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.prefetch</td>
+ *     <td>false</td>
+ *     <td>If <code>true</code>, the next record is read while the current
+ *         one is being sent</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.prefetch.window</td>
+ *     <td>2</td>
+ *     <td>Maximum number of prefetched records held (for all tables)</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.prefetch.maxrecordsize</td>
+ *     <td>67108864</td>
+ *     <td>Largest record in bytes that is prefetched</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.prefetch.ttl</td>
+ *     <td>60000</td>
+ *     <td>Time in MS a prefetched record is kept waiting to be read</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.prefetch.threads</td>
+ *     <td>2</td>
+ *     <td>Number of threads prefetching records</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBPrefetcher {
+  private static ExecutorService executor = null;
+
+  // Prefetches started and not yet read or dropped (guarded by itself)
+  private static final LinkedList<Prefetch> prefetches = new LinkedList<Prefetch>();
+
+  /**
+   * Returns <code>true</code> if the next record should be read ahead.
+   * @return Value of the <code>cleo.uri.mydb.prefetch</code> property
+   */
+  public static boolean isEnabled() {
+    return MyDBUtil.getBooleanProperty("prefetch", false);
+  }
+
+  /**
+   * Starts reading the record following <code>recordID</code> in the
+   * background, unless it is already being read or the window is full.
+   *
+   * @param tableName   Name of the table
+   * @param recordID    Record ID of the record being read
+   * @param srchPattern Filename wildcard or <i>[regex]</i> the records are
+   *                    selected by, or <code>null</code> for all records
+   */
+  public static void prefetchAfter(String tableName, long recordID, String srchPattern) {
+    if (!isEnabled() || MyDBUtil.isChunked(tableName) || (recordID < 0))
+      return;
+
+    final Prefetch prefetch = new Prefetch(tableName, recordID, srchPattern);
+    synchronized (prefetches) {
+      expire();
+      if (prefetches.size() >= Math.max(1, MyDBUtil.getLongProperty("prefetch.window", 2)))
+        return;
+      for (Prefetch p : prefetches) {
+        if (p.tableName.equalsIgnoreCase(tableName)
+            && ((p.afterID == recordID) || (p.recordID > recordID)))
+          return; // Already reading ahead of this record
+      }
+      prefetches.add(prefetch);
+    }
+    LexURIFile.debug("MyDBPrefetcher.prefetchAfter> " + tableName + " ID=" + recordID
+                     + " pattern=" + srchPattern);
+    getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        fetch(prefetch);
+      }
+    });
+  }
+
+  /**
+   * Returns the contents of a record if it has been prefetched, waiting for
+   * a prefetch in progress. The record is no longer held by the prefetcher
+   * once it has been returned.
+   *
+   * @param tableName Name of the table
+   * @param recordID  Record ID of the record to read
+   * @return A stream over the record contents that must be closed, or
+   *         <code>null</code> if the record was not prefetched
+   */
+  public static MyDBRecordStream take(String tableName, long recordID) {
+    if (recordID < 0)
+      return null;
+
+    // Only a prefetch started after a lower record ID can be reading this one
+    List<Prefetch> candidates = new ArrayList<Prefetch>();
+    synchronized (prefetches) {
+      for (Prefetch p : prefetches) {
+        if (p.tableName.equalsIgnoreCase(tableName) && (p.afterID < recordID))
+          candidates.add(p);
+      }
+    }
+
+    long ttl = getTTL();
+    for (Prefetch p : candidates) {
+      try {
+        if (!p.located.await(ttl, TimeUnit.MILLISECONDS) || (p.recordID != recordID))
+          continue;
+        if (!p.done.await(ttl, TimeUnit.MILLISECONDS))
+          return null;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+
+      Entry entry;
+      synchronized (prefetches) {
+        if (!prefetches.remove(p))
+          return null; // Dropped
+        entry = p.entry;
+      }
+      if (entry == null)
+        return null;
+      LexURIFile.debug("MyDBPrefetcher.take> " + entry.item.toString());
+      try {
+        return new MyDBRecordStream(entry.item, null/*stmt*/, null/*rs*/, new BufferStream(entry.buffer));
+      } catch (IOException ex) {
+        LexURIFile.debug("MyDBPrefetcher.take> " + entry.item.toString() + " exception", ex);
+        entry.buffer.dispose();
+        return null;
+      }
+    }
+    return null;
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Looks up the record following the one being read and copies its
+   * contents into a payload buffer.
+   * @param prefetch Prefetch to perform
+   */
+  private static void fetch(Prefetch prefetch) {
+    Connection dbConnection = null;
+    MyDBRecordStream recordStream = null;
+    Entry entry = null;
+    try {
+      dbConnection = MyDBUtil.getDBConnection();
+      MyDBItem[] items = MyDBUtil.getDBItemsPage(dbConnection, prefetch.tableName,
+                                                 null/*srchFilename*/, prefetch.srchPattern,
+                                                 prefetch.afterID, 1);
+      if ((items.length > 0)
+          && (items[0].getFileLength() <= MyDBUtil.getLongProperty("prefetch.maxrecordsize", 67108864L))) {
+        prefetch.recordID = items[0].getRecordID();
+        prefetch.located.countDown();
+
+        recordStream = MyDBUtil.openRecordStream(dbConnection, prefetch.tableName, prefetch.recordID);
+        if (recordStream != null) {
+          MyDBPayloadBuffer buffer = MyDBUtil.createPayloadBuffer();
+          entry = new Entry(recordStream.getItem(), buffer);
+          byte[] buf = new byte[MyDBUtil.COPY_BUFFER_SIZE];
+          int len;
+          while ((len = recordStream.read(buf)) != -1)
+            buffer.write(buf, 0, len);
+          buffer.close();
+        }
+      }
+      LexURIFile.debug("MyDBPrefetcher.fetch> " + prefetch.tableName + " after ID="
+                       + prefetch.afterID + " read ID=" + prefetch.recordID);
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBPrefetcher.fetch> " + prefetch.tableName + " after ID="
+                       + prefetch.afterID + " exception", ex);
+      if (entry != null)
+        entry.buffer.dispose();
+      entry = null;
+    } finally {
+      try {
+        if (recordStream != null)
+          recordStream.close();
+      } catch (Exception ex) {
+      }
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+
+    synchronized (prefetches) {
+      if (prefetches.contains(prefetch)) {
+        if (entry != null)
+          prefetch.entry = entry;
+        else
+          prefetches.remove(prefetch); // Nothing to hand out
+      } else if (entry != null) {
+        entry.buffer.dispose(); // Dropped while it was being read
+      }
+    }
+    prefetch.located.countDown();
+    prefetch.done.countDown();
+  }
+
+  /**
+   * Drops the prefetched records that have not been read in time. Must be
+   * called holding the lock on <code>prefetches</code>.
+   */
+  private static void expire() {
+    long expired = System.currentTimeMillis() - getTTL();
+    for (Iterator<Prefetch> it = prefetches.iterator(); it.hasNext();) {
+      Prefetch p = it.next();
+      if (p.startMS < expired) {
+        it.remove();
+        if (p.entry != null)
+          p.entry.buffer.dispose();
+        LexURIFile.debug("MyDBPrefetcher.expire> " + p.tableName + " ID=" + p.recordID);
+      }
+    }
+  }
+
+  /**
+   * Returns the time a prefetched record is kept.
+   * @return Value of the <code>cleo.uri.mydb.prefetch.ttl</code> property
+   */
+  private static long getTTL() {
+    return Math.max(1000, MyDBUtil.getLongProperty("prefetch.ttl", 60000L));
+  }
+
+  /**
+   * Returns the thread pool prefetching records, creating it on first use.
+   * @return The thread pool
+   */
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      int threads = (int)Math.max(1, MyDBUtil.getLongProperty("prefetch.threads", 2));
+      LexURIFile.debug("MyDBPrefetcher.getExecutor> threads=" + threads);
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBPrefetcher-" + (++this.count));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * A record being read ahead.
+   */
+  private static class Prefetch {
+    private final String         tableName;
+    private final long           afterID;
+    private final String         srchPattern;
+    private final long           startMS  = System.currentTimeMillis();
+    private final CountDownLatch located  = new CountDownLatch(1);
+    private final CountDownLatch done     = new CountDownLatch(1);
+    private volatile long        recordID = -1;
+    private Entry                entry    = null; // Guarded by prefetches
+
+    private Prefetch(String tableName, long afterID, String srchPattern) {
+      this.tableName   = tableName;
+      this.afterID     = afterID;
+      this.srchPattern = srchPattern;
+    }
+  }
+
+  /**
+   * A prefetched record.
+   */
+  private static class Entry {
+    private final MyDBItem          item;
+    private final MyDBPayloadBuffer buffer;
+
+    private Entry(MyDBItem item, MyDBPayloadBuffer buffer) {
+      this.item   = item;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Stream over a prefetched record that disposes of its buffer when closed.
+   */
+  private static class BufferStream extends FilterInputStream {
+    private final MyDBPayloadBuffer buffer;
+
+    private BufferStream(MyDBPayloadBuffer buffer) throws IOException {
+      super(buffer.getInputStream());
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        this.buffer.dispose();
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * A <code>MyDBRecordStream</code> reads the contents of a single database
+ * record directly from the open JDBC <code>ResultSet</code>.
+ *
+ * <p> The result set (and the statement, unless it belongs to a
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBStatementCache})
+ * stays open until {@link #close()} is called, so the memory used does not
+ * grow with the size of the record. The connection the statement was created on must not be used for other
+ * statements or returned to the pool until this stream is closed.
+ */
+public class MyDBRecordStream extends InputStream {
+  private final MyDBItem myDBItem;
+  private Statement      stmt;
+  private ResultSet      rs;
+  private InputStream    in;
+
+  /**
+   * Creates a stream over the contents column of the current row of
+   * <code>rs</code>.
+   *
+   * @param myDBItem Record information (without the file bytes)
+   * @param stmt     Statement that produced <code>rs</code> or
+   *                 <code>null</code> if the statement is cached and must not
+   *                 be closed
+   * @param rs       Result set positioned on the record
+   * @param in       Binary stream for the contents column
+   */
+  MyDBRecordStream(MyDBItem myDBItem, Statement stmt, ResultSet rs, InputStream in) {
+    this.myDBItem = myDBItem;
+    this.stmt     = stmt;
+    this.rs       = rs;
+    this.in       = in;
+  }
+
+  /**
+   * Returns the record information read along with the contents.
+   * @return Record information (the file bytes are not included)
+   */
+  public MyDBItem getItem() {
+    return this.myDBItem;
+  }
+
+  /**
+   * Reads a byte from the record contents.
+   * @return The byte read or -1 if EOF has been reached
+   * @throws IOException
+   */
+  @Override
+  public int read() throws IOException {
+    checkOpen();
+    return this.in.read();
+  }
+
+  /**
+   * Reads from the record contents into a section of the byte array.
+   * @param b   Byte array to store the data read
+   * @param off Offset into byte array to start storing data
+   * @param len Number of bytes to read and store
+   * @return Number of bytes read or -1 for EOF
+   * @throws IOException
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    return this.in.read(b, off, len);
+  }
+
+  /**
+   * Skips bytes of the record contents.
+   * @param n Number of bytes to skip
+   * @return Number of bytes skipped
+   * @throws IOException
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    checkOpen();
+    return this.in.skip(n);
+  }
+
+  /**
+   * Closes the binary stream, result set, and (if not cached) statement.
+   */
+  @Override
+  public void close() {
+    if (this.in != null) {
+      try {
+        this.in.close();
+      } catch (Exception ex) {
+        LexURIFile.debug("MyDBRecordStream.close> in.close() exception", ex);
+      }
+      this.in = null;
+    }
+    if (this.rs != null) {
+      try {
+        this.rs.close();
+      } catch (Exception ex) {
+        LexURIFile.debug("MyDBRecordStream.close> rs.close() exception", ex);
+      }
+      this.rs = null;
+    }
+    if (this.stmt != null) {
+      try {
+        this.stmt.close();
+      } catch (Exception ex) {
+        LexURIFile.debug("MyDBRecordStream.close> stmt.close() exception", ex);
+      }
+      this.stmt = null;
+    }
+  }
+
+  /**
+   * Throws an exception if the stream has been closed.
+   * @throws IOException
+   */
+  private void checkOpen() throws IOException {
+    if (this.in == null)
+      throw new IOException("MyDB record stream is closed");
+  }
+}
@@ -0,0 +1,215 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A <code>MyDBStatementCache</code> holds the prepared statements of a
+ * single pooled connection, keyed by table and operation (for example
+ * <code>mydboutbox:delete</code>).
+ *
+ * <p> Statements returned by {@link #prepare(String, String)} belong to the
+ * cache and must not be closed by the caller; only their result sets should
+ * be closed. The least recently used statement is closed once the cache is
+ * full. All statements are closed when the connection leaves the pool.
+ */
+public class MyDBStatementCache {
+  private final Connection connection;
+  private final int        maxStatements;
+  private final LinkedHashMap<String, CachedStatement> statements;
+  private long hits   = 0;
+  private long misses = 0;
+
+  /**
+   * Creates an empty statement cache for a connection.
+   * @param connection    Connection the statements are prepared on
+   * @param maxStatements Maximum number of statements kept open
+   */
+  public MyDBStatementCache(Connection connection, int maxStatements) {
+    this.connection    = connection;
+    this.maxStatements = Math.max(1, maxStatements);
+    this.statements    = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true/*accessOrder*/);
+  }
+
+  /**
+   * Returns the cached statement for <code>key</code>, preparing
+   * <code>sql</code> if it is not cached yet.
+   *
+   * @param key Cache key, typically <i>table</i>:<i>operation</i>
+   * @param sql Parameterized SQL for the statement
+   * @return A prepared statement owned by the cache
+   * @throws SQLException
+   */
+  public PreparedStatement prepare(String key, String sql) throws SQLException {
+    return prepare(key, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+  }
+
+  /**
+   * Returns the cached statement for <code>key</code>, preparing
+   * <code>sql</code> with the given result set type and concurrency if it is
+   * not cached yet.
+   *
+   * @param key                  Cache key, typically <i>table</i>:<i>operation</i>
+   * @param sql                  Parameterized SQL for the statement
+   * @param resultSetType        Result set type
+   * @param resultSetConcurrency Result set concurrency
+   * @return A prepared statement owned by the cache
+   * @throws SQLException
+   */
+  public PreparedStatement prepare(String key, String sql,
+                                   int resultSetType,
+                                   int resultSetConcurrency)
+          throws SQLException {
+    return prepare(key, sql, resultSetType, resultSetConcurrency, false/*returnGeneratedKeys*/, null);
+  }
+
+  /**
+   * Returns the cached statement for <code>key</code>, preparing
+   * <code>sql</code> so that it returns the keys generated by an
+   * <code>INSERT</code> if it is not cached yet.
+   *
+   * @param key Cache key, typically <i>table</i>:<i>operation</i>
+   * @param sql Parameterized INSERT statement
+   * @return A prepared statement owned by the cache
+   * @throws SQLException
+   */
+  public PreparedStatement prepareReturningKeys(String key, String sql) throws SQLException {
+    return prepare(key, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+                   true/*returnGeneratedKeys*/, null);
+  }
+
+  /**
+   * Returns the cached statement for <code>key</code>, preparing
+   * <code>sql</code> so that it returns the named generated columns if it is
+   * not cached yet.
+   *
+   * @param key        Cache key, typically <i>table</i>:<i>operation</i>
+   * @param sql        Parameterized INSERT statement
+   * @param keyColumns Names of the generated columns to return, or
+   *                   <code>null</code> to let the driver choose
+   * @return A prepared statement owned by the cache
+   * @throws SQLException
+   */
+  public PreparedStatement prepareReturningKeys(String key, String sql,
+                                                String[] keyColumns) throws SQLException {
+    return prepare(key, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+                   true/*returnGeneratedKeys*/, keyColumns);
+  }
+
+  /**
+   * Returns the cached statement for <code>key</code>, preparing it if it is
+   * not cached yet or was prepared from different SQL.
+   *
+   * @param key                  Cache key
+   * @param sql                  Parameterized SQL for the statement
+   * @param resultSetType        Result set type
+   * @param resultSetConcurrency Result set concurrency
+   * @param returnGeneratedKeys  <code>true</code> to return generated keys
+   * @param keyColumns           Names of the generated columns to return or
+   *                             <code>null</code>
+   * @return A prepared statement owned by the cache
+   * @throws SQLException
+   */
+  private synchronized PreparedStatement prepare(String key, String sql,
+                                                 int resultSetType,
+                                                 int resultSetConcurrency,
+                                                 boolean returnGeneratedKeys,
+                                                 String[] keyColumns)
+          throws SQLException {
+    MyDBMetrics.statementUsed(sql);
+    CachedStatement cached = this.statements.get(key);
+    if ((cached != null) && cached.sql.equals(sql) && !cached.stmt.isClosed()) {
+      this.hits++;
+      return cached.stmt;
+    }
+    if (cached != null) {
+      this.statements.remove(key);
+      closeQuietly(cached);
+    }
+
+    this.misses++;
+    LexURIFile.debug("MyDBStatementCache.prepare> key[" + key + "] sql[" + sql + "]");
+    PreparedStatement stmt;
+    if (returnGeneratedKeys && (keyColumns != null))
+      stmt = this.connection.prepareStatement(sql, keyColumns);
+    else if (returnGeneratedKeys)
+      stmt = this.connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    else
+      stmt = this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    this.statements.put(key, new CachedStatement(sql, stmt));
+    evict();
+    return stmt;
+  }
+
+  /**
+   * Closes all cached statements.
+   */
+  public synchronized void close() {
+    for (CachedStatement cached : this.statements.values())
+      closeQuietly(cached);
+    this.statements.clear();
+  }
+
+  /**
+   * Returns the number of times a cached statement was reused.
+   * @return Number of cache hits
+   */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Returns the number of times a statement had to be prepared.
+   * @return Number of cache misses
+   */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Closes the least recently used statements while the cache is too big.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, CachedStatement>> it = this.statements.entrySet().iterator();
+    while ((this.statements.size() > this.maxStatements) && it.hasNext()) {
+      CachedStatement cached = it.next().getValue();
+      it.remove();
+      closeQuietly(cached);
+    }
+  }
+
+  /**
+   * Closes a statement, ignoring errors.
+   * @param cached Statement to close
+   */
+  private static void closeQuietly(CachedStatement cached) {
+    try {
+      cached.stmt.close();
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBStatementCache.closeQuietly> close exception", ex);
+    }
+  }
+
+  /**
+   * A prepared statement and the SQL it was prepared from.
+   */
+  private static class CachedStatement {
+    private final String            sql;
+    private final PreparedStatement stmt;
+
+    private CachedStatement(String sql, PreparedStatement stmt) {
+      this.sql  = sql;
+      this.stmt = stmt;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package examples.URISchemeExamples.com.companyabc.mydb;
+
+import com.cleo.lexicom.beans.LexURIFile;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The <code>MyDBTableCache</code> class remembers the tables found in the
+ * database so that {@link MyDBUtil#dbTableExists(String)}, which VLTrader
+ * calls for every file received into a <i>MyDB:</i> inbox, does not query
+ * the database metadata every time.
+ *
+ * <p> A table that was found is remembered, with its name as stored by the
+ * database, for <code>cleo.uri.mydb.tablecache.ttl</code> MS. Once half of
+ * that time has passed, the entry is checked again in the background while
+ * the cached name keeps being returned, so a table that is in use is
+ * normally never checked by the caller's thread. Tables that were not found
+ * are not remembered, so a new table is seen at once, and an entry is
+ * dropped as soon as reading or writing the table fails, in case it was
+ * dropped or renamed.
+ *
+ * <p> The names of the table's columns are remembered with it, so that
+ * {@link #hasColumn(String, String)} can tell which optional columns
+ * (such as <code>Codec</code>) a table has without a query per record.
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.tablecache.ttl</td>
+ *     <td>300000</td>
+ *     <td>Time in MS a table found in the database is remembered (0 to
+ *         check the database every time)</td>
+ *   </tr>
+ * </table>
+ */
+public class MyDBTableCache {
+  // Tables found, keyed by lowercase table name
+  private static final ConcurrentHashMap<String, Entry> tables = new ConcurrentHashMap<String, Entry>();
+
+  private static ExecutorService refresher = null;
+
+  /**
+   * Returns the name of a table as stored by the database.
+   *
+   * @param tableName Name of the table in any case
+   * @return The name of the table or <code>null</code> if the table does
+   *         not exist (or the database could not be reached)
+   */
+  public static String getTableName(String tableName) {
+    try {
+      Entry entry = getEntry(tableName);
+      return (entry != null) ? entry.name : null;
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBTableCache.getTableName(" + tableName + ")", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if a table has a column. Unlike
+   * {@link #getTableName(String)}, a failure to read the database metadata
+   * is thrown rather than taken to mean the column is missing.
+   *
+   * @param tableName  Name of the table in any case
+   * @param columnName Name of the column in any case
+   * @return <code>true</code> if the table has the column
+   * @throws Exception if the table does not exist or its columns could not
+   *                   be read
+   */
+  public static boolean hasColumn(String tableName, String columnName) throws Exception {
+    Entry entry = getEntry(tableName);
+    if (entry == null)
+      throw new SQLException("Table " + tableName + " not found");
+    return entry.columns.contains(columnName.toLowerCase());
+  }
+
+  /**
+   * Forgets a table so that the next check queries the database. Called
+   * when an operation on the table fails.
+   *
+   * @param tableName Name of the table
+   */
+  public static void invalidate(String tableName) {
+    if ((tableName != null) && (tables.remove(tableName.toLowerCase()) != null))
+      LexURIFile.debug("MyDBTableCache.invalidate> " + tableName);
+  }
+
+  /**
+   * Forgets all tables.
+   */
+  public static void clear() {
+    tables.clear();
+  }
+
+//------------------------------------------------------------------------------
+// Helper functions
+//------------------------------------------------------------------------------
+  /**
+   * Returns the cache entry of a table, looking the table up if it is not
+   * cached or has expired.
+   *
+   * @param tableName Name of the table in any case
+   * @return The entry or <code>null</code> if the table does not exist
+   * @throws Exception if the database metadata could not be read
+   */
+  private static Entry getEntry(String tableName) throws Exception {
+    String key = tableName.toLowerCase();
+    long ttl = getTTL();
+    Entry entry = tables.get(key);
+    if ((entry != null) && (ttl > 0)) {
+      long age = System.currentTimeMillis() - entry.checkedMS;
+      if (age < ttl) {
+        if (age >= ttl / 2)
+          refresh(key, tableName, entry);
+        return entry;
+      }
+    }
+
+    entry = lookup(tableName);
+    if ((entry != null) && (ttl > 0))
+      tables.put(key, entry);
+    else
+      tables.remove(key);
+    return entry;
+  }
+
+  /**
+   * Checks a table again in the background, unless that is already being
+   * done.
+   *
+   * @param key       Cache key of the table
+   * @param tableName Name of the table
+   * @param entry     Current cache entry
+   */
+  private static void refresh(final String key, final String tableName, final Entry entry) {
+    if (!entry.refreshing.compareAndSet(false, true))
+      return;
+    getRefresher().execute(new Runnable() {
+      @Override
+      public void run() {
+        Entry found = null;
+        try {
+          found = lookup(tableName);
+        } catch (Exception ex) {
+          LexURIFile.debug("MyDBTableCache.refresh(" + tableName + ")", ex);
+        }
+        if (found != null)
+          tables.replace(key, entry, found);
+        else
+          tables.remove(key, entry);
+        LexURIFile.debug("MyDBTableCache.refresh> " + tableName + " -> "
+                         + ((found != null) ? found.name : null));
+      }
+    });
+  }
+
+  /**
+   * Looks a table and its columns up in the database metadata.
+   *
+   * @param tableName Name of the table
+   * @return A new entry or <code>null</code> if the table does not exist
+   * @throws Exception if the database could not be reached or the columns
+   *                   could not be read
+   */
+  private static Entry lookup(String tableName) throws Exception {
+    long checkedMS = System.currentTimeMillis();
+    Connection dbConnection = MyDBUtil.getDBConnection();
+    try {
+      String name = MyDBUtil.dbGetCaseSensitiveTableName(dbConnection, tableName);
+      if (name == null)
+        return null;
+      return new Entry(name, MyDBUtil.dbGetColumnNames(dbConnection, name), checkedMS);
+    } finally {
+      MyDBUtil.releaseDBConnection(dbConnection);
+    }
+  }
+
+  /**
+   * Returns the time a table is remembered.
+   * @return Value of the <code>cleo.uri.mydb.tablecache.ttl</code> property
+   */
+  private static long getTTL() {
+    return Math.max(0, MyDBUtil.getLongProperty("tablecache.ttl", 300000L));
+  }
+
+  /**
+   * Returns the thread checking tables in the background, creating it on
+   * first use.
+   * @return The single thread executor
+   */
+  private static synchronized ExecutorService getRefresher() {
+    if (refresher == null) {
+      refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MyDBTableCache");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return refresher;
+  }
+
+  /**
+   * A table found in the database.
+   */
+  private static class Entry {
+    private final String        name;
+    private final Set<String>   columns; // Lowercase column names
+    private final long          checkedMS;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private Entry(String name, Set<String> columns, long checkedMS) {
+      this.name      = name;
+      this.columns   = columns;
+      this.checkedMS = checkedMS;
+    }
+  }
+}
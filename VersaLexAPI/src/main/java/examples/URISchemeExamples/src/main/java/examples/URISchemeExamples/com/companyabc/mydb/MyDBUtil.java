@@ -3,22 +3,262 @@ package examples.URISchemeExamples.com.companyabc.mydb;
 import com.cleo.lexicom.beans.LexURIFile;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * The <Code>MyDBUtil</code> class contains utility methods for accessing the
- * MySQL database for the <i>MyDB:</i> scheme.
+ * MySQL database for the <i>MyDB:</i> scheme. Other databases (PostgreSQL,
+ * H2 and Derby) are supported through the SQL dialect selected with
+ * <code>cleo.uri.mydb.dialect</code> (see {@link MyDBDialect}).
+ * 
+ * <p> Connections are borrowed from a bounded
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBConnectionPool}
+ * with {@link #getDBConnection()} and must be handed back with
+ * {@link #releaseDBConnection(Connection)}. The pool is created on first use
+ * and is configured with the following system properties:
+ *
+ * <table border="1">
+ *   <tr>
+ *     <th>System Property</th>
+ *     <th>Default</th>
+ *     <th>Description</th>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.url</td>
+ *     <td>jdbc:mysql://localhost:3306/mysqlvltrader</td>
+ *     <td>JDBC URL of the database. The default depends on the dialect</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.username</td>
+ *     <td>root</td>
+ *     <td>Database user</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pw</td>
+ *     <td>mysqlroot</td>
+ *     <td>Database password</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.maxsize</td>
+ *     <td>10</td>
+ *     <td>Maximum number of open connections</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.maxlifetime</td>
+ *     <td>1800000</td>
+ *     <td>Maximum age of a connection in MS (0 for no limit)</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.idletimeout</td>
+ *     <td>600000</td>
+ *     <td>Time in MS after which an unused connection is closed (0 for no
+ *         limit)</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.validationinterval</td>
+ *     <td>30000</td>
+ *     <td>Idle time in MS after which a connection is validated before it is
+ *         handed out</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.validationtimeout</td>
+ *     <td>5</td>
+ *     <td>Timeout in seconds for validating a connection</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.borrowtimeout</td>
+ *     <td>30000</td>
+ *     <td>Maximum time in MS to wait for a connection when all are in use</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pool.statementcachesize</td>
+ *     <td>32</td>
+ *     <td>Maximum number of prepared statements cached per connection</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.url</td>
+ *     <td><i>none</i></td>
+ *     <td>JDBC URL of a read-only replica of the database (with the same
+ *         dialect). When set, listings and existence checks are made on
+ *         the replica (see {@link #getReadDBConnection(String)}); reads,
+ *         claims, writes and deletes always use the primary</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.username</td>
+ *     <td>cleo.uri.mydb.username</td>
+ *     <td>Replica database user</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.pw</td>
+ *     <td>cleo.uri.mydb.pw</td>
+ *     <td>Replica database password</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.pool.maxsize</td>
+ *     <td>cleo.uri.mydb.pool.maxsize</td>
+ *     <td>Maximum number of open replica connections. The other pool
+ *         settings are shared with the primary</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.maxlag</td>
+ *     <td>5000</td>
+ *     <td>Time in MS after this node changes a table during which the
+ *         table is read from the primary. Should exceed the replication
+ *         lag</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.replica.retryinterval</td>
+ *     <td>30000</td>
+ *     <td>Time in MS the primary is used after the replica could not be
+ *         reached</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.streamingreads</td>
+ *     <td>true</td>
+ *     <td>If <code>true</code>, {@link MyDBInputStream} streams the record
+ *         contents from the open result set instead of reading the whole
+ *         record into memory first</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.spillthreshold</td>
+ *     <td>1048576</td>
+ *     <td>Number of bytes {@link MyDBOutputStream} keeps in memory before
+ *         spilling the record contents to a temporary file</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.spilldir</td>
+ *     <td>java.io.tmpdir</td>
+ *     <td>Directory for the temporary spill files</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.pagesize</td>
+ *     <td>1000</td>
+ *     <td>Number of records read per query by the paginated listing
+ *         ({@link MyDBFile#listFilesIterator})</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.fetchsize</td>
+ *     <td>500</td>
+ *     <td>JDBC fetch size hint for listing queries. With MySQL this only
+ *         takes effect when <code>useCursorFetch=true</code> is added to
+ *         <code>cleo.uri.mydb.url</code></td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.regexp</td>
+ *     <td>true</td>
+ *     <td>If <code>true</code>, <i>[regex]</i> filename patterns that only
+ *         use the syntax common to Java and the database are matched in the
+ *         database with <code>REGEXP</code>; otherwise the whole table is
+ *         listed and matched by VLTrader</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.layout</td>
+ *     <td>blob</td>
+ *     <td><code>blob</code> stores the contents in the
+ *         <code>FileContents</code> column; <code>chunked</code> stores them
+ *         in fixed-size chunks in <i>table</i><code>_chunks</code> (see
+ *         {@link MyDBChunkStore})</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.chunksize</td>
+ *     <td>1048576</td>
+ *     <td>Size in bytes of the chunks of a chunked table. Must not be
+ *         changed once the table holds records</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.chunk.prefetch</td>
+ *     <td>2</td>
+ *     <td>Number of chunks read ahead of the reader</td>
+ *   </tr>
+ *   <tr>
+ *     <td>cleo.uri.mydb.chunk.threads</td>
+ *     <td>4</td>
+ *     <td>Number of threads reading chunks</td>
+ *   </tr>
+ * </table>
+ * 
+ * <p> The <code>cleo.uri.mydb.codec</code> properties for compressing the
+ * record contents are described in {@link MyDBCodec}.
+ * 
+ * <p> The <code>cleo.uri.mydb.dedup</code> property for storing identical
+ * record contents once is described in {@link MyDBBlobStore}.
+ * 
+ * <p> The <code>cleo.uri.mydb.external.*</code> properties for storing
+ * large record contents in files are described in
+ * {@link MyDBExternalStore}.
+ * 
+ * <p> Table settings (<code>layout</code>, <code>chunksize</code>,
+ * <code>chunk.prefetch</code>, <code>codec</code>, <code>codec.level</code>,
+ * <code>dedup</code>, <code>external.threshold</code>,
+ * <code>softdelete</code>, <code>changefeed</code> and the <code>partition</code> settings) can be set for a single table with
+ * <code>cleo.uri.mydb.table.</code><i>tablename</i><code>.</code><i>setting</i>,
+ * with the table name in lowercase, which overrides
+ * <code>cleo.uri.mydb.</code><i>setting</i>.
+ * 
+ * <p> The <code>cleo.uri.mydb.claim.*</code> properties for sharing a table
+ * between several nodes are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBClaims}.
+ * 
+ * <p> The <code>cleo.uri.mydb.prefetch.*</code> properties for reading the
+ * next record while the current one is being sent are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPrefetcher}.
+ * 
+ * <p> The <code>cleo.uri.mydb.payloadcache.*</code> properties for keeping
+ * recently read records in local files for retries are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPayloadCache}.
+ * 
+ * <p> The <code>cleo.uri.mydb.consume</code> property for reading and
+ * deleting a record in one transaction is described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBConsumer}.
+ * 
+ * <p> The <code>cleo.uri.mydb.softdelete</code> and
+ * <code>cleo.uri.mydb.compactor.*</code> properties for marking records
+ * deleted and purging them in the background are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBCompactor}.
+ * 
+ * <p> The <code>cleo.uri.mydb.partition.*</code> properties for tables
+ * partitioned by <code>FileTime</code> are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBPartitionManager}.
+ * 
+ * <p> The <code>cleo.uri.mydb.changefeed.*</code> properties for
+ * detecting new records without listing the table are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBChangeFeed}.
+ * 
+ * <p> The <code>cleo.uri.mydb.bulk.*</code> properties for exporting or
+ * importing many records concurrently are described in
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBBulkTransfer}.
+ * 
+ * <p> The time, rows and bytes of listing, reading, writing and deleting
+ * records are recorded per table by
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBMetrics},
+ * which also logs operations slower than
+ * <code>cleo.uri.mydb.metrics.slowms</code> with their SQL.
+ * 
+ * <p> The <code>cleo.uri.mydb.replica.*</code> properties send listings and
+ * existence checks to a read-only replica. A table this node has changed
+ * is read from the primary for <code>cleo.uri.mydb.replica.maxlag</code> MS,
+ * and a specific record not found on the replica is looked up again on the
+ * primary. Reading, claiming, writing and deleting records always use the
+ * primary. For testing, the replica can be a second in-process H2 database.
+ *
+ * <p> Tables found by {@link #dbTableExists(String)} are remembered for
+ * <code>cleo.uri.mydb.tablecache.ttl</code> MS (see
+ * {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBTableCache}).
  * 
  * <p> <b>Note:</b> This is an example only. A better implementation would
- * use a database connection pool and make multiple attempts to update the
- * database in the case of a failure.
+ * make multiple attempts to update the database in the case of a failure.
  * 
  */
 public class MyDBUtil {
   // Database connection information
-  private static String DRIVER   = "com.mysql.jdbc.Driver";
   private static String URL      = null;
   private static String USERNAME = null;
   private static String PW       = null;
@@ -29,9 +269,41 @@ public class MyDBUtil {
   private static String FILENAME_COLNAME     = "Filename";
   private static String FILELENGTH_COLNAME   = "FileLength";
   private static String FILECONTENTS_COLNAME = "FileContents";
+  private static String CLAIMOWNER_COLNAME   = "ClaimOwner";
+  private static String CLAIMEXPIRES_COLNAME = "ClaimExpires";
+  private static String CODEC_COLNAME        = "Codec";
+  private static String BLOBHASH_COLNAME     = "BlobHash";
+  private static String DELETEDTIME_COLNAME  = "DeletedTime";
+  private static String EXTERNALPATH_COLNAME = "ExternalPath";
+  private static String CHECKSUM_COLNAME     = "Checksum";
+
+  // Selects records that are not claimed by a node (see MyDBClaims); the
+  // parameter is the current time
+  private static final String UNCLAIMED_PREDICATE = "(" + CLAIMOWNER_COLNAME + " IS NULL OR "
+                                                  + CLAIMEXPIRES_COLNAME + " < ?)";
+
+  // Selects records that have not been soft deleted (see MyDBCompactor)
+  private static final String LIVE_PREDICATE = DELETEDTIME_COLNAME + " IS NULL";
   
+  // System property prefix for all MyDB settings
+  protected static final String PROPERTY_PREFIX = "cleo.uri.mydb.";
+
+  // Buffer size used when copying record contents
+  protected static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  // Table names are concatenated into the SQL so they are restricted to
+  // plain identifiers
+  private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_$.]+");
+
   // Other internal flags
   private static boolean driverLoaded = false;
+  private static MyDBConnectionPool connectionPool = null;
+  private static MyDBDialect dialect = null;
+
+  // Read-only replica for listings and existence checks
+  private static MyDBConnectionPool replicaPool = null;
+  private static long replicaDownUntil = 0;
+  private static final ConcurrentHashMap<String, Long> lastWriteTimes = new ConcurrentHashMap<String, Long>();
   
   /**
    * Loads the database driver
@@ -53,22 +325,209 @@ public class MyDBUtil {
   }
   
   /**
-   * Retrieves a connection to the database.
-   * 
-   * <p> In an actual implementation, it is strongly recommended to use a
-   * database connection pool.
+   * Borrows a connection to the database from the connection pool. The
+   * connection must be handed back with
+   * {@link #releaseDBConnection(Connection)} rather than closed.
    * 
    * @return     A connection to the database
    * @throws Exception
    */
   public static Connection getDBConnection() throws Exception {
-    if (!driverLoaded)
-      loadDriver(DRIVER);
-    
+    MyDBConnectionPool pool = getConnectionPool();
+    long startNS = System.nanoTime();
+    Connection connection = pool.borrowConnection();
+    MyDBMetrics.connectionBorrowed(false/*replica*/, System.nanoTime() - startNS);
+    return connection;
+  }
+
+  /**
+   * Borrows a connection from the pool only if one is free, for work that
+   * has another way to proceed when the pool is busy. The connection must
+   * be handed back with {@link #releaseDBConnection(Connection)}.
+   * 
+   * @return A connection to the database or <code>null</code> if all
+   *         connections are in use
+   * @throws Exception
+   */
+  protected static Connection tryGetDBConnection() throws Exception {
+    return getConnectionPool().tryBorrowConnection();
+  }
+
+  /**
+   * Borrows a connection for listing records or checking that a record
+   * exists. This is a replica connection if
+   * <code>cleo.uri.mydb.replica.url</code> is set, the replica can be
+   * reached, and this node has not changed the table in the last
+   * <code>cleo.uri.mydb.replica.maxlag</code> MS; otherwise it is a primary
+   * connection. A replica may not have the newest records yet, so a record
+   * not found on it should be looked up again on the primary (see
+   * {@link #isReplicaConnection(Connection)}). The connection must be handed
+   * back with {@link #releaseDBConnection(Connection)}.
+   * 
+   * @param tableName Name of the table to be read
+   * @return A connection to the replica or the primary database
+   * @throws Exception
+   */
+  public static Connection getReadDBConnection(String tableName) throws Exception {
+    MyDBConnectionPool pool = getReplicaPool();
+    if ((pool == null) || isRecentlyWritten(tableName))
+      return getDBConnection();
+    try {
+      long startNS = System.nanoTime();
+      Connection connection = pool.borrowConnection();
+      MyDBMetrics.connectionBorrowed(true/*replica*/, System.nanoTime() - startNS);
+      return connection;
+    } catch (SQLException ex) {
+      LexURIFile.debug(true, "MyDBUtil.getReadDBConnection> Replica not available; using the primary", ex);
+      synchronized (MyDBUtil.class) {
+        replicaDownUntil = System.currentTimeMillis() + getLongProperty("replica.retryinterval", 30000L);
+      }
+      return getDBConnection();
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if a connection is a replica connection
+   * obtained from {@link #getReadDBConnection(String)}.
+   * 
+   * @param connection Borrowed connection
+   * @return <code>true</code> for a replica connection
+   */
+  public static boolean isReplicaConnection(Connection connection) {
+    MyDBConnectionPool pool = getCurrentReplicaPool();
+    return (pool != null) && (connection != null) && pool.isBorrowed(connection);
+  }
+
+  /**
+   * Returns a connection obtained from {@link #getDBConnection()} or
+   * {@link #getReadDBConnection(String)} to its connection pool.
+   * 
+   * @param connection Connection to return; <code>null</code> is ignored
+   */
+  public static void releaseDBConnection(Connection connection) {
+    if (connection == null)
+      return;
+    MyDBConnectionPool replica = getCurrentReplicaPool();
+    if ((replica != null) && replica.isBorrowed(connection)) {
+      replica.returnConnection(connection);
+      return;
+    }
+    MyDBConnectionPool pool = getCurrentConnectionPool();
+    if (pool != null)
+      pool.returnConnection(connection); // Closes it if not from this pool
+    else
+      closeDBConnection(connection);
+  }
+
+  /**
+   * Closes a connection obtained from {@link #getDBConnection()} instead of
+   * returning it to the pool. Used when the connection is known to be broken.
+   * 
+   * @param connection Connection to discard; <code>null</code> is ignored
+   */
+  public static void discardDBConnection(Connection connection) {
+    if (connection == null)
+      return;
+    MyDBConnectionPool replica = getCurrentReplicaPool();
+    if ((replica != null) && replica.isBorrowed(connection)) {
+      replica.discardConnection(connection);
+      return;
+    }
+    MyDBConnectionPool pool = getCurrentConnectionPool();
+    if (pool != null)
+      pool.discardConnection(connection);
+    else
+      closeDBConnection(connection);
+  }
+
+  /**
+   * Returns a snapshot of the connection pool statistics.
+   * 
+   * @return Connection pool statistics
+   * @throws Exception
+   */
+  public static MyDBConnectionPool.Statistics getPoolStatistics() throws Exception {
+    return getConnectionPool().getStatistics();
+  }
+
+  /**
+   * Returns a snapshot of the statistics of the primary or replica pool
+   * without creating it.
+   * 
+   * @param replica <code>true</code> for the replica pool
+   * @return Connection pool statistics or <code>null</code> if the pool has
+   *         not been created
+   */
+  protected static MyDBConnectionPool.Statistics getCurrentPoolStatistics(boolean replica) {
+    MyDBConnectionPool pool = replica ? getCurrentReplicaPool() : getCurrentConnectionPool();
+    return (pool != null) ? pool.getStatistics() : null;
+  }
+
+  /**
+   * Closes the connection pool. A new pool is created on the next call to
+   * {@link #getDBConnection()}.
+   */
+  public static synchronized void closeConnectionPool() {
+    if (connectionPool != null) {
+      LexURIFile.debug("MyDBUtil.closeConnectionPool> " + connectionPool.getStatistics());
+      connectionPool.close();
+      connectionPool = null;
+    }
+    if (replicaPool != null) {
+      LexURIFile.debug("MyDBUtil.closeConnectionPool> replica " + replicaPool.getStatistics());
+      replicaPool.close();
+      replicaPool = null;
+    }
+    for (MyDBMetrics.Statistics stats : MyDBMetrics.getStatistics())
+      LexURIFile.debug("MyDBUtil.closeConnectionPool> " + stats);
+    replicaDownUntil = 0;
+    lastWriteTimes.clear();
+    dialect = null;
+    MyDBTableCache.clear();
+  }
+
+  /**
+   * Returns the SQL dialect of the database, selected by the
+   * <code>cleo.uri.mydb.dialect</code> property or else by the JDBC URL.
+   * 
+   * @return The SQL dialect
+   * @throws SQLException if the dialect cannot be created
+   */
+  protected static synchronized MyDBDialect getDialect() throws SQLException {
+    if (dialect == null) {
+      String url = (URL != null) ? URL : System.getProperty(PROPERTY_PREFIX + "url");
+      try {
+        dialect = MyDBDialect.forName(System.getProperty(PROPERTY_PREFIX + "dialect"), url);
+      } catch (Exception ex) {
+        throw new SQLException("Failed to create MyDB dialect", ex);
+      }
+    }
+    return dialect;
+  }
+
+  /**
+   * Returns the connection pool, creating it from the
+   * <code>cleo.uri.mydb.*</code> system properties on first use.
+   * 
+   * @return The connection pool
+   * @throws Exception
+   */
+  private static synchronized MyDBConnectionPool getConnectionPool() throws Exception {
+    if (connectionPool != null)
+      return connectionPool;
+
+    MyDBDialect sqlDialect = getDialect();
     if (URL == null)
       URL = System.getProperty("cleo.uri.mydb.url");
     if (URL == null)
-      URL = "jdbc:mysql://localhost:3306/mysqlvltrader";
+      URL = sqlDialect.getDefaultURL();
+
+    if (!driverLoaded) {
+      String driver = System.getProperty(PROPERTY_PREFIX + "driver");
+      if ((driver == null) || (driver.trim().length() == 0))
+        driver = sqlDialect.getDriverClass(URL);
+      loadDriver(driver.trim());
+    }
     
     if (USERNAME == null)
       USERNAME = System.getProperty("cleo.uri.mydb.username");
@@ -79,43 +538,261 @@ public class MyDBUtil {
       PW = System.getProperty("cleo.uri.mydb.pw");
     if (PW == null)
       PW = "mysqlroot";
-    
-    Connection connection;
-    if ((USERNAME != null && USERNAME.length() > 0) || (PW != null && PW.length() > 0))
-      connection = DriverManager.getConnection(URL, USERNAME, PW);
-    else
-      connection = DriverManager.getConnection(URL);
-    
-    return connection;
+
+    connectionPool = new MyDBConnectionPool(URL, USERNAME, PW,
+            (int)getLongProperty("pool.maxsize", 10),
+            getLongProperty("pool.maxlifetime", 1800000L),
+            getLongProperty("pool.idletimeout", 600000L),
+            getLongProperty("pool.validationinterval", 30000L),
+            (int)getLongProperty("pool.validationtimeout", 5),
+            getLongProperty("pool.borrowtimeout", 30000L),
+            (int)getLongProperty("pool.statementcachesize", 32));
+    return connectionPool;
+  }
+
+  /**
+   * Returns the replica connection pool, creating it on first use.
+   * 
+   * @return The replica connection pool, or <code>null</code> if there is
+   *         no replica or it could not be reached recently
+   * @throws Exception
+   */
+  private static synchronized MyDBConnectionPool getReplicaPool() throws Exception {
+    if (System.currentTimeMillis() < replicaDownUntil)
+      return null;
+    if (replicaPool != null)
+      return replicaPool;
+
+    String url = System.getProperty(PROPERTY_PREFIX + "replica.url");
+    if ((url == null) || (url.trim().length() == 0))
+      return null;
+    url = url.trim();
+    getConnectionPool(); // Loads the driver and the primary settings
+    String driver = System.getProperty(PROPERTY_PREFIX + "driver");
+    if ((driver == null) || (driver.trim().length() == 0))
+      loadDriver(getDialect().getDriverClass(url));
+
+    String username = System.getProperty(PROPERTY_PREFIX + "replica.username");
+    String pw       = System.getProperty(PROPERTY_PREFIX + "replica.pw");
+    LexURIFile.debug("MyDBUtil.getReplicaPool> url[" + url + "]");
+    replicaPool = new MyDBConnectionPool(url,
+            (username != null) ? username : USERNAME,
+            (pw != null) ? pw : PW,
+            (int)getLongProperty("replica.pool.maxsize", getLongProperty("pool.maxsize", 10)),
+            getLongProperty("pool.maxlifetime", 1800000L),
+            getLongProperty("pool.idletimeout", 600000L),
+            getLongProperty("pool.validationinterval", 30000L),
+            (int)getLongProperty("pool.validationtimeout", 5),
+            getLongProperty("pool.borrowtimeout", 30000L),
+            (int)getLongProperty("pool.statementcachesize", 32));
+    return replicaPool;
+  }
+
+  /**
+   * Returns the replica connection pool if it has been created.
+   * 
+   * @return The replica connection pool or <code>null</code>
+   */
+  private static synchronized MyDBConnectionPool getCurrentReplicaPool() {
+    return replicaPool;
+  }
+
+  /**
+   * Notes that this node has changed a table, so that it is read from the
+   * primary until the replica has caught up.
+   * 
+   * @param tableName Name of the table
+   */
+  private static void markWritten(String tableName) {
+    lastWriteTimes.put(tableName.toLowerCase(), System.currentTimeMillis());
+  }
+
+  /**
+   * Returns <code>true</code> if this node changed a table within the last
+   * <code>cleo.uri.mydb.replica.maxlag</code> MS.
+   * 
+   * @param tableName Name of the table
+   * @return <code>true</code> if the replica may not have the change yet
+   */
+  private static boolean isRecentlyWritten(String tableName) {
+    Long writeTime = lastWriteTimes.get(tableName.toLowerCase());
+    return (writeTime != null)
+           && (System.currentTimeMillis() - writeTime.longValue() < getLongProperty("replica.maxlag", 5000L));
+  }
+
+  /**
+   * Returns the connection pool if it has been created.
+   * 
+   * @return The connection pool or <code>null</code>
+   */
+  private static synchronized MyDBConnectionPool getCurrentConnectionPool() {
+    return connectionPool;
   }
 
   /**
-   * Checks if a database table exists in the database
+   * Closes a connection that does not belong to a pool.
+   * 
+   * @param connection Connection to close
+   */
+  private static void closeDBConnection(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LexURIFile.debug("MyDBUtil.closeDBConnection> close exception", ex);
+    }
+  }
+
+  /**
+   * Returns the value of the <code>cleo.uri.mydb.</code><i>name</i> system
+   * property as a number.
+   * 
+   * @param name         Property name without the <code>cleo.uri.mydb.</code>
+   *                     prefix
+   * @param defaultValue Value returned if the property is not set or is not
+   *                     a number
+   * @return The property value or <code>defaultValue</code>
+   */
+  protected static long getLongProperty(String name, long defaultValue) {
+    return parseLong(PROPERTY_PREFIX + name, System.getProperty(PROPERTY_PREFIX + name),
+                     defaultValue);
+  }
+
+  /**
+   * Returns the value of a table setting: the
+   * <code>cleo.uri.mydb.table.</code><i>tablename</i><code>.</code><i>name</i>
+   * system property if it is set, otherwise the
+   * <code>cleo.uri.mydb.</code><i>name</i> system property.
+   * 
+   * @param tableName Name of the table
+   * @param name      Setting name without a prefix
+   * @return The setting or <code>null</code> if neither property is set
+   */
+  protected static String getTableProperty(String tableName, String name) {
+    String value = System.getProperty(PROPERTY_PREFIX + "table." + tableName.toLowerCase() + "." + name);
+    if ((value == null) || (value.trim().length() == 0))
+      value = System.getProperty(PROPERTY_PREFIX + name);
+    if ((value == null) || (value.trim().length() == 0))
+      return null;
+    return value.trim();
+  }
+
+  /**
+   * Returns the value of a table setting (see
+   * {@link #getTableProperty(String, String)}) as a number.
+   * 
+   * @param tableName    Name of the table
+   * @param name         Setting name without a prefix
+   * @param defaultValue Value returned if the setting is not set or is not
+   *                     a number
+   * @return The setting or <code>defaultValue</code>
+   */
+  protected static long getLongTableProperty(String tableName, String name, long defaultValue) {
+    return parseLong(tableName + ":" + name, getTableProperty(tableName, name), defaultValue);
+  }
+
+  /**
+   * Parses a numeric property value.
+   * 
+   * @param desc         Property description for the debug message
+   * @param value        Property value or <code>null</code>
+   * @param defaultValue Value returned if the value is not set or is not
+   *                     a number
+   * @return The value or <code>defaultValue</code>
+   */
+  private static long parseLong(String desc, String value, long defaultValue) {
+    if ((value == null) || (value.trim().length() == 0))
+      return defaultValue;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException nfe) {
+      LexURIFile.debug(true, "MyDBUtil.parseLong> Invalid value '" + value
+                       + "' for " + desc + "; using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the value of the <code>cleo.uri.mydb.</code><i>name</i> system
+   * property as a boolean.
+   * 
+   * @param name         Property name without the <code>cleo.uri.mydb.</code>
+   *                     prefix
+   * @param defaultValue Value returned if the property is not set
+   * @return The property value or <code>defaultValue</code>
+   */
+  protected static boolean getBooleanProperty(String name, boolean defaultValue) {
+    String value = System.getProperty(PROPERTY_PREFIX + name);
+    if ((value == null) || (value.trim().length() == 0))
+      return defaultValue;
+    return Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * Returns <code>true</code> if record contents should be streamed from the
+   * open result set rather than read into memory.
+   * 
+   * @return Value of the <code>cleo.uri.mydb.streamingreads</code> property
+   */
+  protected static boolean isStreamingReads() {
+    return getBooleanProperty("streamingreads", true);
+  }
+
+  /**
+   * Returns <code>true</code> if the contents of the records of a table are
+   * stored in chunks (see {@link MyDBChunkStore}).
+   * 
+   * @param tableName Name of the table
+   * @return <code>true</code> if the <code>layout</code> setting of the
+   *         table is <code>chunked</code>
+   */
+  protected static boolean isChunked(String tableName) {
+    return "chunked".equalsIgnoreCase(getTableProperty(tableName, "layout"));
+  }
+
+  /**
+   * Returns <code>true</code> if deleted records of a table are only marked
+   * deleted and purged later (see {@link MyDBCompactor}).
+   * 
+   * @param tableName Name of the table
+   * @return Value of the <code>softdelete</code> setting of the table
+   */
+  protected static boolean isSoftDelete(String tableName) {
+    return "true".equalsIgnoreCase(getTableProperty(tableName, "softdelete"));
+  }
+
+  /**
+   * Returns the chunk size of a chunked table.
+   * 
+   * @param tableName Name of the table
+   * @return Value of the <code>chunksize</code> setting of the table
+   */
+  protected static int getChunkSize(String tableName) {
+    return (int)Math.min(Math.max(getLongTableProperty(tableName, "chunksize", 1048576L), 1024),
+                         Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * Creates a buffer for the contents of a record being written, configured
+   * with the <code>cleo.uri.mydb.spillthreshold</code> and
+   * <code>cleo.uri.mydb.spilldir</code> properties.
+   * 
+   * @return A new, empty payload buffer
+   */
+  protected static MyDBPayloadBuffer createPayloadBuffer() {
+    String spillDir = System.getProperty(PROPERTY_PREFIX + "spilldir");
+    return new MyDBPayloadBuffer(getLongProperty("spillthreshold", 1048576L),
+            ((spillDir != null) && (spillDir.trim().length() > 0)) ? new File(spillDir.trim()) : null);
+  }
+
+  /**
+   * Checks if a database table exists in the database. Tables that were
+   * found are remembered for a while (see {@link MyDBTableCache}).
    * @param tableName Name of the table to check
    * @return <code>true</code> if the database table exists;
    *         <code>false</code> otherwise
    */
   protected static boolean dbTableExists(String tableName) {
-    boolean tableExists = false;
-    Connection dbCon = null;
-    try {
-      // Get a new connection to the database
-      dbCon = getDBConnection();
-      // Check if the tble exists
-      tableExists = dbGetCaseSensitiveTableName(dbCon, tableName) != null;
-    } catch (Exception ex){
-      LexURIFile.debug("MyDBUtil.dbTableExists(" + tableName + ")", ex);
-      tableExists = false;
-    } finally {
-      if (dbCon != null) {
-        try {
-          dbCon.close();
-        } catch (Exception closeEx) {
-          LexURIFile.debug("MyDBUtil.dbTableExists(" + tableName + ")", closeEx);
-        }
-      }
-    }
-    return tableExists;
+    return MyDBTableCache.getTableName(tableName) != null;
   }
   
   /**
@@ -125,9 +802,10 @@ public class MyDBUtil {
    * @return The name of the matching table or <code>null</code> if no match
    *         was found.
    */
-  private static String dbGetCaseSensitiveTableName(Connection connection, String tableName) {
+  protected static String dbGetCaseSensitiveTableName(Connection connection, String tableName) {
     LexURIFile.debug("MyDBUtil.dbGetCaseSensitiveTableName> Check if table ["
             + tableName + "] exists...");
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.TABLE_EXISTS);
     ResultSet tblrs = null;
     try {
       DatabaseMetaData md = connection.getMetaData();
@@ -141,12 +819,15 @@ public class MyDBUtil {
         LexURIFile.debug("tblName[" + tblName + "]");
         if (tblName.equalsIgnoreCase(tableName)) {
           LexURIFile.debug("MyDBUtil.dbGetCaseSensitiveTableName> " + tblName);
+          timer.succeeded(1, 0);
           return tblName;
         }
       }
+      timer.succeeded(0, 0);
     } catch (Exception ex) {
       LexURIFile.debug("MyDBUtil.dbGetCaseSensitiveTableName(" + tableName + ")", ex);
     } finally {
+      timer.stop();
       try {
         if (tblrs != null)
           tblrs.close();
@@ -156,6 +837,30 @@ public class MyDBUtil {
     return null;
   }
 
+  /**
+   * Returns the names of the columns of a table.
+   * @param connection Current connection to the database
+   * @param tableName  Name of the table as stored by the database (see
+   *                   {@link #dbGetCaseSensitiveTableName(Connection, String)})
+   * @return The lowercase column names
+   * @throws SQLException if the table has no columns or the metadata could
+   *                      not be read
+   */
+  protected static Set<String> dbGetColumnNames(Connection connection, String tableName) throws SQLException {
+    Set<String> columns = new HashSet<String>();
+    ResultSet colrs = connection.getMetaData().getColumns(null, null, tableName, null);
+    try {
+      while (colrs.next())
+        columns.add(colrs.getString(4).toLowerCase());
+    } finally {
+      colrs.close();
+    }
+    if (columns.isEmpty())
+      throw new SQLException("No columns found for table " + tableName);
+    LexURIFile.debug("MyDBUtil.dbGetColumnNames> " + tableName + " " + columns);
+    return columns;
+  }
+
   /**
    * Writes bytes as a file to the database.
    * 
@@ -168,128 +873,1247 @@ public class MyDBUtil {
   protected static void writeRecord(Connection dbConnection, String tableName, 
                                     String filename, byte[] fileBytes)
           throws Exception {
-    if ((dbConnection == null) || dbConnection.isClosed())
-      throw new Exception("Database connection is not open");
-    
-    // Build SQL statement for to insert the record
-    String sql = "INSERT INTO " + tableName + " " +
-                          " ( " + FILETIME_COLNAME + ", " +
-                                  FILENAME_COLNAME + ", " +
-                                  FILELENGTH_COLNAME + ", " + 
-                                  FILECONTENTS_COLNAME + ") " +
-                    "VALUES ( " + System.currentTimeMillis() + ", " +
-                                  "'" + filename + "', " +
-                                  fileBytes.length + ", " +
-                                  "? )"; // ? indicates that the value is provided later
-    LexURIFile.debug("MyDBUtil.writeRecord> sql[" + sql + "]");
-
-    // Insert the record
-    PreparedStatement stmt = dbConnection.prepareStatement(sql);
-    InputStream in = new ByteArrayInputStream(fileBytes);
-    stmt.setBinaryStream(1, in, (int)fileBytes.length);
-    stmt.executeUpdate();
-    stmt.close();
-    in.close();
+    writeRecord(dbConnection, tableName, filename,
+                new ByteArrayInputStream(fileBytes), fileBytes.length);
   }
-  
+
   /**
-   * Deletes a specific record out of the named table.
-   * @param dbConnection  Connection to the database
-   * @param tableName     Name of the table 
-   * @param recIdToDelete Record ID of the recrod to delete
+   * Writes a stream as a file to the database. The stream is handed to the
+   * driver with <code>setBinaryStream</code>, so the contents do not need to
+   * fit in memory and may be larger than 2GB.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param in           File contents; closed by this method
+   * @param fileLength   Number of bytes in <code>in</code>
    * @throws Exception 
    */
-  protected static void deleteRecord(Connection dbConnection, String tableName, long recIdToDelete) throws Exception {
-    String sql = "DELETE FROM " + tableName
-                    + " WHERE " + ID_COLNAME + " = " + recIdToDelete;
-    LexURIFile.debug("MyDBUtil.deleteRecord> sql[" + sql + "]");
-    
-    Statement stmt = null;
+  protected static void writeRecord(Connection dbConnection, String tableName, 
+                                    String filename, InputStream in,
+                                    long fileLength)
+          throws Exception {
+    writeRecord(dbConnection, tableName, filename, in, fileLength, fileLength, MyDBCodec.NONE);
+  }
+
+  /**
+   * Writes a stream of encoded contents as a file to the database (see
+   * {@link MyDBCodec}).
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param in           Encoded file contents; closed by this method
+   * @param storedLength Number of bytes in <code>in</code>
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @throws Exception 
+   */
+  protected static void writeRecord(Connection dbConnection, String tableName, 
+                                    String filename, InputStream in,
+                                    long storedLength, long fileLength,
+                                    String codec)
+          throws Exception {
+    if ((dbConnection == null) || dbConnection.isClosed())
+      throw new Exception("Database connection is not open");
+
+    markWritten(tableName);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.WRITE);
     try {
-      stmt = dbConnection.createStatement();
-      int retVal = stmt.executeUpdate(sql);
-      LexURIFile.debug("SQL (" + sql + ") return value=" + retVal);
-    } catch (Exception ex) {
-      LexURIFile.debug("SQL (" + sql + ") Exception", ex);
-      throw ex;
-    } finally {
+      if (isChunked(tableName)) {
+        MyDBChunkStore.writeRecord(dbConnection, tableName, filename, in, fileLength);
+        timer.succeeded(1, fileLength);
+        return;
+      }
+
+      // Insert the record, logging it in the same transaction for a change
+      // feed table (see MyDBChangeFeed)
+      boolean logged = MyDBChangeFeed.isLogging(tableName);
+      boolean autoCommit = dbConnection.getAutoCommit();
+      PreparedStatement stmt = null;
       try {
-        stmt.close();
+        if (logged)
+          dbConnection.setAutoCommit(false);
+        stmt = prepareInsert(dbConnection, tableName, filename, in, storedLength, fileLength,
+                             codec, logged/*returnKeys*/);
+        stmt.executeUpdate();
+        if (logged) {
+          MyDBChangeFeed.logInsert(dbConnection, tableName, getGeneratedKey(stmt, tableName));
+          dbConnection.commit();
+        }
+        timer.succeeded(1, storedLength);
       } catch (Exception ex) {
-        LexURIFile.debug("stmt.close() Exception", ex);
+        if (logged) {
+          try {
+            dbConnection.rollback();
+          } catch (Exception rbex) {
+            LexURIFile.debug("MyDBUtil.writeRecord> rollback exception", rbex);
+          }
+        }
+        throw ex;
+      } finally {
+        try {
+          if (stmt != null)
+            stmt.clearParameters(); // Release the reference to the stream
+        } catch (Exception ex) {
+        }
+        try {
+          in.close();
+        } catch (Exception ex) {
+        }
+        if (logged)
+          dbConnection.setAutoCommit(autoCommit);
       }
+    } finally {
+      timer.stop();
     }
-    
   }
-
+  
   /**
-   * Reads a specific (or the first) record out of the database table.
+   * Inserts the information of a record whose contents are stored
+   * elsewhere, leaving <code>FileContents</code> empty.
+   * 
    * @param dbConnection Connection to the database
-   * @param tableName    Name of the table to read
-   * @param recordID     Record ID of the record to read. If this is < 0, then
-   *                     the first record will be read.
-   * @return             Returns a
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param fileLength   Number of bytes in the file
+   * @return The record ID of the new record
+   * @throws Exception 
+   */
+  protected static long insertRecordInfo(Connection dbConnection, String tableName,
+                                         String filename, long fileLength) throws Exception {
+    String sql = getInsertSQL(tableName);
+    LexURIFile.debug("MyDBUtil.insertRecordInfo> sql[" + sql + "] filename[" + filename
+                     + "] length=" + fileLength);
+    markWritten(tableName);
+
+    PreparedStatement stmt = getStatementCache(dbConnection)
+            .prepareReturningKeys(tableName.toLowerCase() + ":insertRecordInfo", sql,
+                                  getDialect().getGeneratedKeyColumns());
+    stmt.setLong(1, System.currentTimeMillis());
+    stmt.setString(2, filename);
+    stmt.setLong(3, fileLength);
+    stmt.setBytes(4, new byte[0]);
+    if (MyDBCodec.hasCodecColumn(tableName))
+      stmt.setString(5, MyDBCodec.NONE);
+    stmt.executeUpdate();
+    return getGeneratedKey(stmt, tableName);
+  }
+
+  /**
+   * Inserts a record whose contents are stored in the blob table (see
+   * {@link MyDBBlobStore}), leaving <code>FileContents</code> empty.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param fileLength   Number of bytes in the file
+   * @param hash         Hash of the contents in the blob table
+   * @throws Exception 
+   */
+  protected static void insertBlobRecord(Connection dbConnection, String tableName,
+                                         String filename, long fileLength,
+                                         String hash) throws Exception {
+    boolean hasCodec = MyDBCodec.hasCodecColumn(tableName);
+    String sql = "INSERT INTO " + checkTableName(tableName) + " " +
+                         " ( " + FILETIME_COLNAME + ", " +
+                                 FILENAME_COLNAME + ", " +
+                                 FILELENGTH_COLNAME + ", " +
+                                 FILECONTENTS_COLNAME + ", " +
+                                 BLOBHASH_COLNAME +
+                                 (hasCodec ? ", " + CODEC_COLNAME : "") + ") " +
+                 "VALUES ( ?, ?, ?, ?, ?" + (hasCodec ? ", ?" : "") + " )";
+    LexURIFile.debug("MyDBUtil.insertBlobRecord> sql[" + sql + "] filename[" + filename
+                     + "] length=" + fileLength + " hash=" + hash);
+    markWritten(tableName);
+
+    boolean logged = MyDBChangeFeed.isLogging(tableName);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.WRITE);
+    try {
+      PreparedStatement stmt = logged
+              ? getStatementCache(dbConnection).prepareReturningKeys(tableName.toLowerCase() + ":insertBlobRecord.keys",
+                                                                     sql, getDialect().getGeneratedKeyColumns())
+              : prepareStatement(dbConnection, tableName, "insertBlobRecord", sql);
+      stmt.setLong(1, System.currentTimeMillis());
+      stmt.setString(2, filename);
+      stmt.setLong(3, fileLength);
+      stmt.setBytes(4, new byte[0]);
+      stmt.setString(5, hash);
+      if (hasCodec)
+        stmt.setString(6, MyDBCodec.NONE); // The codec is kept with the blob
+      stmt.executeUpdate();
+      if (logged)
+        MyDBChangeFeed.logInsert(dbConnection, tableName, getGeneratedKey(stmt, tableName));
+      timer.succeeded(1, 0); // The contents were written to the blob table
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Inserts a record whose contents are stored in a file (see
+   * {@link MyDBExternalStore}), leaving <code>FileContents</code> empty.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @param path         Path of the file relative to the external directory
+   * @param checksum     Checksum of the encoded contents
+   * @throws Exception 
+   */
+  protected static void insertExternalRecord(Connection dbConnection, String tableName,
+                                             String filename, long fileLength,
+                                             String codec, String path,
+                                             String checksum) throws Exception {
+    boolean hasCodec = MyDBCodec.hasCodecColumn(tableName);
+    if (!hasCodec && !MyDBCodec.NONE.equals(codec))
+      throw new SQLException("Table " + tableName + " has no " + CODEC_COLNAME + " column");
+    String sql = "INSERT INTO " + checkTableName(tableName) + " " +
+                         " ( " + FILETIME_COLNAME + ", " +
+                                 FILENAME_COLNAME + ", " +
+                                 FILELENGTH_COLNAME + ", " +
+                                 FILECONTENTS_COLNAME + ", " +
+                                 EXTERNALPATH_COLNAME + ", " +
+                                 CHECKSUM_COLNAME +
+                                 (hasCodec ? ", " + CODEC_COLNAME : "") + ") " +
+                 "VALUES ( ?, ?, ?, ?, ?, ?" + (hasCodec ? ", ?" : "") + " )";
+    LexURIFile.debug("MyDBUtil.insertExternalRecord> sql[" + sql + "] filename[" + filename
+                     + "] length=" + fileLength + " path[" + path + "]");
+    markWritten(tableName);
+
+    boolean logged = MyDBChangeFeed.isLogging(tableName);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.WRITE);
+    try {
+      PreparedStatement stmt = logged
+              ? getStatementCache(dbConnection).prepareReturningKeys(tableName.toLowerCase() + ":insertExternalRecord.keys",
+                                                                     sql, getDialect().getGeneratedKeyColumns())
+              : prepareStatement(dbConnection, tableName, "insertExternalRecord", sql);
+      stmt.setLong(1, System.currentTimeMillis());
+      stmt.setString(2, filename);
+      stmt.setLong(3, fileLength);
+      stmt.setBytes(4, new byte[0]);
+      stmt.setString(5, path);
+      stmt.setString(6, checksum);
+      if (hasCodec)
+        stmt.setString(7, codec);
+      stmt.executeUpdate();
+      if (logged)
+        MyDBChangeFeed.logInsert(dbConnection, tableName, getGeneratedKey(stmt, tableName));
+      timer.succeeded(1, 0); // The contents were written to a file
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Returns the length of a record, locking the record until the current
+   * transaction ends.
+   * 
+   * @param dbConnection Connection to the database with auto-commit off
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record
+   * @return The length of the record or -1 if it does not exist
+   * @throws Exception 
+   */
+  protected static long lockRecordLength(Connection dbConnection, String tableName,
+                                         long recordID) throws Exception {
+    String sql = "SELECT " + FILELENGTH_COLNAME +
+                   " FROM " + checkTableName(tableName) +
+                  " WHERE " + ID_COLNAME + " = ?" +
+                  (isSoftDelete(tableName) ? " AND " + LIVE_PREDICATE : "") +
+                  getDialect().getForUpdateClause();
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "lockRecordLength", sql);
+      stmt.setLong(1, recordID);
+      rs = stmt.executeQuery();
+      return rs.next() ? rs.getLong(1) : -1;
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Sets the length and time of a record after its contents have been
+   * extended.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record
+   * @param fileLength   New length of the record
+   * @throws Exception 
+   */
+  protected static void updateRecordLength(Connection dbConnection, String tableName,
+                                           long recordID, long fileLength) throws Exception {
+    String sql = "UPDATE " + checkTableName(tableName)
+                   + " SET " + FILELENGTH_COLNAME + " = ?, " + FILETIME_COLNAME + " = ?"
+                   + " WHERE " + ID_COLNAME + " = ?";
+    markWritten(tableName);
+    MyDBPayloadCache.invalidate(tableName, recordID);
+    PreparedStatement stmt = prepareStatement(dbConnection, tableName, "updateRecordLength", sql);
+    stmt.setLong(1, fileLength);
+    stmt.setLong(2, System.currentTimeMillis());
+    stmt.setLong(3, recordID);
+    stmt.executeUpdate();
+  }
+
+  /**
+   * Adds a record to the batch of inserts for a table. The batch is
+   * executed by {@link #executeRecordBatch(Connection, String)}; the caller
+   * decides when to commit.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param in           Encoded file contents; must stay open until the
+   *                     batch has been executed
+   * @param storedLength Number of bytes in <code>in</code>
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @throws Exception 
+   */
+  protected static void addRecordToBatch(Connection dbConnection, String tableName,
+                                         String filename, InputStream in,
+                                         long storedLength, long fileLength,
+                                         String codec) throws Exception {
+    prepareInsert(dbConnection, tableName, filename, in, storedLength, fileLength,
+                  codec, false/*returnKeys*/).addBatch();
+  }
+
+  /**
+   * Executes the inserts added with
+   * {@link #addRecordToBatch(Connection, String, String, InputStream, long, long, String)}.
+   * With MySQL, adding <code>rewriteBatchedStatements=true</code> to
+   * <code>cleo.uri.mydb.url</code> sends the batch as multi-row inserts.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table written to
+   * @return The update counts of the inserts
+   * @throws Exception 
+   */
+  protected static int[] executeRecordBatch(Connection dbConnection, String tableName) throws Exception {
+    markWritten(tableName);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.WRITE);
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "writeRecord",
+                                                getInsertSQL(tableName));
+      try {
+        int[] updateCounts = stmt.executeBatch();
+        timer.succeeded(updateCounts.length, 0);
+        return updateCounts;
+      } finally {
+        try {
+          stmt.clearBatch();
+          stmt.clearParameters(); // Release the references to the streams
+        } catch (Exception ex) {
+        }
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Returns the cached insert statement for a table with its parameters set.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the database table to write to
+   * @param filename     Name of the file being written
+   * @param in           Encoded file contents
+   * @param storedLength Number of bytes in <code>in</code>
+   * @param fileLength   Number of bytes in the file before encoding
+   * @param codec        Codec the contents were encoded with
+   * @param returnKeys   <code>true</code> to prepare the statement so that
+   *                     it returns the record ID
+   * @return Prepared statement ready to execute or add to the batch
+   * @throws Exception 
+   */
+  private static PreparedStatement prepareInsert(Connection dbConnection, String tableName,
+                                                 String filename, InputStream in,
+                                                 long storedLength, long fileLength,
+                                                 String codec, boolean returnKeys) throws Exception {
+    String sql = getInsertSQL(tableName);
+    LexURIFile.debug("MyDBUtil.prepareInsert> sql[" + sql + "] filename[" + filename
+                     + "] length=" + fileLength + " stored=" + storedLength + " codec=" + codec);
+
+    boolean hasCodec = MyDBCodec.hasCodecColumn(tableName);
+    if (!hasCodec && !MyDBCodec.NONE.equals(codec))
+      throw new SQLException("Table " + tableName + " has no " + CODEC_COLNAME + " column");
+    PreparedStatement stmt = returnKeys
+            ? getStatementCache(dbConnection).prepareReturningKeys(tableName.toLowerCase() + ":writeRecord.keys",
+                                                                   sql, getDialect().getGeneratedKeyColumns())
+            : prepareStatement(dbConnection, tableName, "writeRecord", sql);
+    stmt.setLong(1, System.currentTimeMillis());
+    stmt.setString(2, filename);
+    stmt.setLong(3, fileLength);
+    getDialect().setBinaryStream(stmt, 4, in, storedLength);
+    if (hasCodec)
+      stmt.setString(5, codec);
+    return stmt;
+  }
+
+  /**
+   * Returns the record ID generated by an executed insert.
+   * 
+   * @param stmt      Insert prepared to return generated keys
+   * @param tableName Name of the database table written to
+   * @return The record ID of the new record
+   * @throws SQLException if no record ID was generated
+   */
+  private static long getGeneratedKey(PreparedStatement stmt, String tableName) throws SQLException {
+    ResultSet rs = stmt.getGeneratedKeys();
+    try {
+      if (!rs.next())
+        throw new SQLException("No record ID generated for " + tableName);
+      return rs.getLong(1);
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Returns the SQL statement to insert a record into a table.
+   * 
+   * @param tableName Name of the database table to write to
+   * @return Parameterized INSERT statement
+   * @throws Exception if the table name is not valid or its columns could
+   *                   not be read
+   */
+  private static String getInsertSQL(String tableName) throws Exception {
+    if (MyDBCodec.hasCodecColumn(tableName))
+      return "INSERT INTO " + checkTableName(tableName) + " " +
+                     " ( " + FILETIME_COLNAME + ", " +
+                             FILENAME_COLNAME + ", " +
+                             FILELENGTH_COLNAME + ", " + 
+                             FILECONTENTS_COLNAME + ", " +
+                             CODEC_COLNAME + ") " +
+               "VALUES ( ?, ?, ?, ?, ? )";
+    return "INSERT INTO " + checkTableName(tableName) + " " +
+                   " ( " + FILETIME_COLNAME + ", " +
+                           FILENAME_COLNAME + ", " +
+                           FILELENGTH_COLNAME + ", " + 
+                           FILECONTENTS_COLNAME + ") " +
+             "VALUES ( ?, ?, ?, ? )";
+  }
+
+  /**
+   * Deletes a specific record out of the named table.
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table 
+   * @param recIdToDelete Record ID of the recrod to delete
+   * @throws Exception 
+   */
+  protected static void deleteRecord(Connection dbConnection, String tableName, long recIdToDelete) throws Exception {
+    markWritten(tableName);
+    MyDBPayloadCache.invalidate(tableName, recIdToDelete);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.DELETE);
+    try {
+      if (isSoftDelete(tableName)) {
+        boolean deleted = tombstoneRecord(dbConnection, tableName, recIdToDelete, null/*owner*/);
+        timer.succeeded(deleted ? 1 : 0, 0);
+        return;
+      }
+
+      String sql = "DELETE FROM " + checkTableName(tableName)
+                      + " WHERE " + ID_COLNAME + " = ?";
+      LexURIFile.debug("MyDBUtil.deleteRecord> sql[" + sql + "] ID=" + recIdToDelete);
+
+      try {
+        PreparedStatement stmt = prepareStatement(dbConnection, tableName, "deleteRecord", sql);
+        stmt.setLong(1, recIdToDelete);
+        int retVal = executeDelete(dbConnection, tableName, recIdToDelete, stmt);
+        LexURIFile.debug("SQL (" + sql + ") ID=" + recIdToDelete + " return value=" + retVal);
+        timer.succeeded(retVal, 0);
+      } catch (Exception ex) {
+        LexURIFile.debug("SQL (" + sql + ") ID=" + recIdToDelete + " Exception", ex);
+        throw ex;
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Deletes a record only if it is unclaimed or claimed by
+   * <code>owner</code>, so a record whose lease has been taken over by
+   * another node is left alone.
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table 
+   * @param recIdToDelete Record ID of the record to delete
+   * @param owner         Claim owner name of this node
+   * @return <code>true</code> if the record was deleted
+   * @throws Exception 
+   */
+  protected static boolean deleteClaimedRecord(Connection dbConnection, String tableName,
+                                               long recIdToDelete, String owner) throws Exception {
+    markWritten(tableName);
+    MyDBPayloadCache.invalidate(tableName, recIdToDelete);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.DELETE);
+    try {
+      boolean deleted;
+      if (isSoftDelete(tableName)) {
+        deleted = tombstoneRecord(dbConnection, tableName, recIdToDelete, owner);
+      } else {
+        String sql = "DELETE FROM " + checkTableName(tableName)
+                        + " WHERE " + ID_COLNAME + " = ?"
+                        + " AND (" + CLAIMOWNER_COLNAME + " = ? OR " + UNCLAIMED_PREDICATE + ")";
+        LexURIFile.debug("MyDBUtil.deleteClaimedRecord> sql[" + sql + "] ID=" + recIdToDelete
+                         + " owner[" + owner + "]");
+
+        PreparedStatement stmt = prepareStatement(dbConnection, tableName, "deleteRecord.claimed", sql);
+        stmt.setLong(1, recIdToDelete);
+        stmt.setString(2, owner);
+        stmt.setLong(3, System.currentTimeMillis());
+        int retVal = executeDelete(dbConnection, tableName, recIdToDelete, stmt);
+        LexURIFile.debug("SQL (" + sql + ") ID=" + recIdToDelete + " return value=" + retVal);
+        deleted = retVal > 0;
+      }
+      timer.succeeded(deleted ? 1 : 0, 0);
+      return deleted;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Deletes a record that the current transaction has locked, together with
+   * the contents stored outside the record. The transaction is not
+   * committed.
+   * 
+   * @param dbConnection  Connection to the database with auto-commit off
+   * @param tableName     Name of the table
+   * @param recIdToDelete Record ID of the record to delete
+   * @param externalPaths Receives the path of the file holding the contents
+   *                      (see {@link MyDBExternalStore}), which the caller
+   *                      deletes after committing
+   * @return <code>true</code> if the record was deleted
+   * @throws Exception 
+   */
+  protected static boolean deleteLockedRecord(Connection dbConnection, String tableName,
+                                              long recIdToDelete,
+                                              List<String> externalPaths) throws Exception {
+    markWritten(tableName);
+    MyDBPayloadCache.invalidate(tableName, recIdToDelete);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.DELETE);
+    try {
+      boolean deleted = isSoftDelete(tableName)
+              ? tombstoneRecord(dbConnection, tableName, recIdToDelete, null/*owner*/)
+              : purgeRecord(dbConnection, tableName, recIdToDelete, externalPaths);
+      timer.succeeded(deleted ? 1 : 0, 0);
+      return deleted;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Purges the records of a soft delete table that were marked deleted
+   * before <code>deletedBefore</code>, oldest first, in one transaction.
+   * 
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table
+   * @param deletedBefore Only records marked deleted before this time in MS
+   *                      are purged
+   * @param maxRecords    Maximum number of records to purge
+   * @return The number of records purged
+   * @throws Exception 
+   */
+  protected static int purgeDeletedRecords(Connection dbConnection, String tableName,
+                                           long deletedBefore, int maxRecords) throws Exception {
+    String sql = "SELECT " + ID_COLNAME +
+                   " FROM " + checkTableName(tableName) +
+                  " WHERE " + DELETEDTIME_COLNAME + " < ?" +
+               " ORDER BY " + DELETEDTIME_COLNAME + getDialect().getLimitClause("?");
+    ArrayList<Long> recordIDs = new ArrayList<Long>(maxRecords);
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "getDeletedRecordIDs", sql);
+      stmt.setLong(1, deletedBefore);
+      stmt.setInt(2, maxRecords);
+      rs = stmt.executeQuery();
+      while (rs.next() && (recordIDs.size() < maxRecords))
+        recordIDs.add(rs.getLong(1));
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+    if (recordIDs.isEmpty())
+      return 0;
+
+    int purged = 0;
+    List<String> externalPaths = new ArrayList<String>();
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      for (long recordID : recordIDs) {
+        if (purgeRecord(dbConnection, tableName, recordID, externalPaths))
+          purged++;
+      }
+      dbConnection.commit();
+      MyDBExternalStore.deleteFiles(externalPaths);
+    } catch (Exception ex) {
+      try {
+        dbConnection.rollback();
+      } catch (Exception rbex) {
+        LexURIFile.debug("MyDBUtil.purgeDeletedRecords> rollback exception", rbex);
+      }
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+    }
+    LexURIFile.debug("MyDBUtil.purgeDeletedRecords> " + tableName + " purged=" + purged);
+    return purged;
+  }
+
+  /**
+   * Marks a record of a soft delete table deleted. Listing and reading skip
+   * the record from then on, and {@link MyDBCompactor} purges it later.
+   * 
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table
+   * @param recIdToDelete Record ID of the record to delete
+   * @param owner         Claim owner name of this node, or <code>null</code>
+   *                      to mark the record deleted whoever claims it
+   * @return <code>true</code> if the record was marked deleted
+   * @throws Exception 
+   */
+  private static boolean tombstoneRecord(Connection dbConnection, String tableName,
+                                         long recIdToDelete, String owner) throws Exception {
+    String sql = "UPDATE " + checkTableName(tableName)
+                   + " SET " + DELETEDTIME_COLNAME + " = ?"
+                   + " WHERE " + ID_COLNAME + " = ? AND " + LIVE_PREDICATE;
+    String operation = "tombstoneRecord";
+    if (owner != null) {
+      sql += " AND (" + CLAIMOWNER_COLNAME + " = ? OR " + UNCLAIMED_PREDICATE + ")";
+      operation += ".claimed";
+    }
+    LexURIFile.debug("MyDBUtil.tombstoneRecord> sql[" + sql + "] ID=" + recIdToDelete);
+
+    long now = System.currentTimeMillis();
+    PreparedStatement stmt = prepareStatement(dbConnection, tableName, operation, sql);
+    stmt.setLong(1, now);
+    stmt.setLong(2, recIdToDelete);
+    if (owner != null) {
+      stmt.setString(3, owner);
+      stmt.setLong(4, now);
+    }
+    int retVal = stmt.executeUpdate();
+    LexURIFile.debug("SQL (" + sql + ") ID=" + recIdToDelete + " return value=" + retVal);
+    if (retVal > 0)
+      MyDBCompactor.recordDeleted(tableName);
+    return retVal > 0;
+  }
+
+  /**
+   * Physically deletes a record together with the contents stored outside
+   * the record, in the current transaction. For a deduplicated table or a
+   * table storing contents in files, the <code>BlobHash</code> or
+   * <code>ExternalPath</code> is taken from the deleted row with
+   * <code>DELETE ... RETURNING</code> if the dialect supports it, saving a
+   * query.
+   * 
+   * @param dbConnection  Connection to the database with auto-commit off
+   * @param tableName     Name of the table
+   * @param recIdToDelete Record ID of the record to delete
+   * @param externalPaths Receives the path of the file holding the contents,
+   *                      which may only be deleted once the transaction has
+   *                      been committed
+   * @return <code>true</code> if the record was deleted
+   * @throws Exception 
+   */
+  private static boolean purgeRecord(Connection dbConnection, String tableName,
+                                     long recIdToDelete,
+                                     List<String> externalPaths) throws Exception {
+    String sql = "DELETE FROM " + checkTableName(tableName)
+                    + " WHERE " + ID_COLNAME + " = ?";
+    boolean blob = MyDBBlobStore.isEnabled(tableName);
+    String column = blob ? BLOBHASH_COLNAME
+                    : MyDBExternalStore.hasColumns(tableName) ? EXTERNALPATH_COLNAME : null;
+    int retVal;
+    String value = null;
+    if (column == null) {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "deleteRecord", sql);
+      stmt.setLong(1, recIdToDelete);
+      retVal = stmt.executeUpdate();
+      if ((retVal > 0) && isChunked(tableName))
+        MyDBChunkStore.deleteChunks(dbConnection, tableName, recIdToDelete);
+    } else if (getDialect().supportsDeleteReturning()) {
+      sql += " RETURNING " + column;
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "deleteRecord.returning", sql);
+      stmt.setLong(1, recIdToDelete);
+      ResultSet rs = stmt.executeQuery();
+      try {
+        retVal = rs.next() ? 1 : 0;
+        if (retVal > 0)
+          value = rs.getString(1);
+      } finally {
+        rs.close();
+      }
+    } else {
+      value = lockRecordColumn(dbConnection, tableName, recIdToDelete, column);
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "deleteRecord", sql);
+      stmt.setLong(1, recIdToDelete);
+      retVal = stmt.executeUpdate();
+    }
+    if ((retVal > 0) && (value != null)) {
+      if (blob)
+        MyDBBlobStore.release(dbConnection, tableName, value);
+      else
+        externalPaths.add(value);
+    }
+    LexURIFile.debug("MyDBUtil.purgeRecord> sql[" + sql + "] ID=" + recIdToDelete
+                     + " return value=" + retVal);
+    return retVal > 0;
+  }
+
+  /**
+   * Executes a prepared <code>DELETE</code> of a record and deletes the
+   * contents stored outside the record: its chunks for a chunked table, or
+   * its reference to the blob table for a deduplicated table, in the same
+   * transaction. The file of a record whose contents are stored in a file is
+   * deleted after the transaction has been committed.
+   * 
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table
+   * @param recIdToDelete Record ID of the record to delete
+   * @param stmt          Prepared statement deleting the record
+   * @return The number of records deleted
+   * @throws Exception 
+   */
+  private static int executeDelete(Connection dbConnection, String tableName,
+                                   long recIdToDelete, PreparedStatement stmt) throws Exception {
+    boolean blob = MyDBBlobStore.isEnabled(tableName);
+    if (!blob && !MyDBExternalStore.hasColumns(tableName)) {
+      int retVal = stmt.executeUpdate();
+      if ((retVal > 0) && isChunked(tableName))
+        MyDBChunkStore.deleteChunks(dbConnection, tableName, recIdToDelete);
+      return retVal;
+    }
+
+    boolean autoCommit = dbConnection.getAutoCommit();
+    try {
+      dbConnection.setAutoCommit(false);
+      String value = lockRecordColumn(dbConnection, tableName, recIdToDelete,
+                                      blob ? BLOBHASH_COLNAME : EXTERNALPATH_COLNAME);
+      int retVal = stmt.executeUpdate();
+      if ((retVal > 0) && (value != null) && blob)
+        MyDBBlobStore.release(dbConnection, tableName, value);
+      dbConnection.commit();
+      if ((retVal > 0) && (value != null) && !blob)
+        MyDBExternalStore.deleteFile(value);
+      return retVal;
+    } catch (Exception ex) {
+      try {
+        dbConnection.rollback();
+      } catch (Exception rbex) {
+        LexURIFile.debug("MyDBUtil.executeDelete> rollback exception", rbex);
+      }
+      throw ex;
+    } finally {
+      dbConnection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Returns the <code>BlobHash</code> or <code>ExternalPath</code> of a
+   * record, locking the record until the current transaction ends.
+   * 
+   * @param dbConnection Connection to the database with auto-commit off
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record
+   * @param column       Name of the column
+   * @return The value or <code>null</code> if the record does not exist or
+   *         holds its own contents
+   * @throws Exception 
+   */
+  private static String lockRecordColumn(Connection dbConnection, String tableName,
+                                         long recordID, String column) throws Exception {
+    String sql = "SELECT " + column +
+                   " FROM " + checkTableName(tableName) +
+                  " WHERE " + ID_COLNAME + " = ?" +
+                  getDialect().getForUpdateClause();
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "lock" + column, sql);
+      stmt.setLong(1, recordID);
+      rs = stmt.executeQuery();
+      return rs.next() ? rs.getString(1) : null;
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Claims a record for <code>owner</code> if it is unclaimed, its lease has
+   * expired, or it is already claimed by <code>owner</code>. The check and
+   * the update are a single statement, so at most one node can succeed.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the record to claim
+   * @param owner        Claim owner name of this node
+   * @param now          Current time in MS
+   * @param expires      Time in MS at which the claim expires
+   * @return <code>true</code> if the record was claimed
+   * @throws Exception 
+   */
+  protected static boolean claimRecord(Connection dbConnection, String tableName,
+                                       long recordID, String owner,
+                                       long now, long expires) throws Exception {
+    String sql = "UPDATE " + checkTableName(tableName)
+                   + " SET " + CLAIMOWNER_COLNAME + " = ?, " + CLAIMEXPIRES_COLNAME + " = ?"
+                   + " WHERE " + ID_COLNAME + " = ?"
+                   + " AND (" + CLAIMOWNER_COLNAME + " = ? OR " + UNCLAIMED_PREDICATE + ")"
+                   + (isSoftDelete(tableName) ? " AND " + LIVE_PREDICATE : "");
+    LexURIFile.debug("MyDBUtil.claimRecord> sql[" + sql + "] ID=" + recordID
+                     + " owner[" + owner + "]");
+
+    markWritten(tableName);
+    PreparedStatement stmt = prepareStatement(dbConnection, tableName, "claimRecord", sql);
+    stmt.setString(1, owner);
+    stmt.setLong(2, expires);
+    stmt.setLong(3, recordID);
+    stmt.setString(4, owner);
+    stmt.setLong(5, now);
+    return stmt.executeUpdate() > 0;
+  }
+
+  /**
+   * Extends the lease of a record claimed by <code>owner</code>.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param recordID     Record ID of the claimed record
+   * @param owner        Claim owner name of this node
+   * @param expires      New time in MS at which the claim expires
+   * @return <code>true</code> if the record is still claimed by
+   *         <code>owner</code> and the lease was extended
+   * @throws Exception 
+   */
+  protected static boolean renewClaim(Connection dbConnection, String tableName,
+                                      long recordID, String owner,
+                                      long expires) throws Exception {
+    String sql = "UPDATE " + checkTableName(tableName)
+                   + " SET " + CLAIMEXPIRES_COLNAME + " = ?"
+                   + " WHERE " + ID_COLNAME + " = ? AND " + CLAIMOWNER_COLNAME + " = ?";
+    PreparedStatement stmt = prepareStatement(dbConnection, tableName, "renewClaim", sql);
+    stmt.setLong(1, expires);
+    stmt.setLong(2, recordID);
+    stmt.setString(3, owner);
+    return stmt.executeUpdate() > 0;
+  }
+
+  /**
+   * Returns the IDs of the first unclaimed records in record ID order.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table
+   * @param now          Current time in MS; claims that expired before this
+   *                     time are ignored
+   * @param maxRecords   Maximum number of record IDs to return
+   * @return Record IDs of unclaimed records
+   * @throws Exception 
+   */
+  protected static long[] getUnclaimedRecordIDs(Connection dbConnection, String tableName,
+                                                long now, int maxRecords) throws Exception {
+    String sql = "SELECT " + ID_COLNAME +
+                   " FROM " + checkTableName(tableName) +
+                  " WHERE " + UNCLAIMED_PREDICATE +
+                  (isSoftDelete(tableName) ? " AND " + LIVE_PREDICATE : "") +
+               " ORDER BY " + ID_COLNAME + getDialect().getLimitClause("?");
+    LexURIFile.debug("MyDBUtil.getUnclaimedRecordIDs> sql[" + sql + "]");
+
+    long[] recordIDs = new long[maxRecords];
+    int count = 0;
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, "getUnclaimedRecordIDs", sql);
+      stmt.setLong(1, now);
+      stmt.setInt(2, maxRecords);
+      rs = stmt.executeQuery();
+      while (rs.next() && (count < maxRecords))
+        recordIDs[count++] = rs.getLong(1);
+    } finally {
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+    long[] result = new long[count];
+    System.arraycopy(recordIDs, 0, result, 0, count);
+    return result;
+  }
+
+  /**
+   * Reads a specific (or the first) record out of the database table.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to read
+   * @param recordID     Record ID of the record to read. If this is < 0, then
+   *                     the first record will be read.
+   * @return             Returns a
    *                     {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
    *                     object containing the data from the record.
    * @throws Exception 
    */
   protected static MyDBItem readRecord(Connection dbConnection, String tableName, long recordID) throws Exception {
+    if (isChunked(tableName))
+      return readChunkedRecord(dbConnection, tableName, recordID);
+
     MyDBItem myDBItem = null;
     
-    // Build the SQL statement to read a single record
-    String sql;
-    if (recordID >= 0) {
-      sql = "SELECT " + ID_COLNAME + ", " +
-                        FILETIME_COLNAME + ", " +
-                        FILENAME_COLNAME + ", " +
-                        FILELENGTH_COLNAME + ", " +
-                        FILECONTENTS_COLNAME +
-             " FROM " + tableName +
-            " WHERE " + ID_COLNAME + " = " + recordID;
-    } else {
-      sql = "SELECT " + ID_COLNAME + ", " +
-                        FILETIME_COLNAME + ", " +
-                        FILENAME_COLNAME + ", " +
-                        FILELENGTH_COLNAME + ", " +
-                        FILECONTENTS_COLNAME +
-             " FROM " + tableName +
-         " ORDER BY " + ID_COLNAME +
-            " LIMIT 1";
-    }
-    LexURIFile.debug("MyDBUtil.readRecord> sql[" + sql + "]");
-    
-    Statement stmt = null;
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.READ);
     ResultSet rs = null;
     try {
-      stmt = dbConnection.createStatement();
-      rs = queryDB(stmt, sql);
+      rs = queryDB(prepareReadRecord(dbConnection, tableName, recordID, false/*streaming*/),
+                   "readRecord(" + tableName + "," + recordID + ")");
       if (rs != null && rs.next()) {
         long   dbRecordID      = rs.getLong(1);
         long   dbRecDateTimeMS = rs.getLong(2);
         String dbRecFilename   = rs.getString(3);
         long   dbRecFileLen    = rs.getLong(4);
-        InputStream in = rs.getBinaryStream(5);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int c;
-        while ((c = in.read()) != -1)
-          baos.write(c);
+        InputStream in = MyDBCodec.decode(getCodec(rs, tableName), openContents(rs, tableName));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                (int)Math.min(Math.max(dbRecFileLen, 0), Integer.MAX_VALUE - 8));
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buf)) != -1)
+          baos.write(buf, 0, len);
         byte[] dbRecFileBytes = baos.toByteArray();
         
+        in.close();
         myDBItem = new MyDBItem(dbRecordID, dbRecFilename, dbRecDateTimeMS, dbRecFileLen, dbRecFileBytes);
         LexURIFile.debug("MyDBUtil.readRecord> " + myDBItem.toString());
+        timer.succeeded(1, dbRecFileBytes.length);
+      } else if (rs != null) {
+        timer.succeeded(0, 0);
       }
     } finally {
+      timer.stop();
       try {
         rs.close();
       } catch (Exception ex) {
       }
+    }
+    return myDBItem;
+  }
+
+  /**
+   * Reads a specific (or the first) record of a chunked table into memory.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to read
+   * @param recordID     Record ID of the record to read or < 0 for the first
+   *                     record
+   * @return The record including its contents or <code>null</code> if no
+   *         record was found
+   * @throws Exception 
+   */
+  private static MyDBItem readChunkedRecord(Connection dbConnection, String tableName,
+                                            long recordID) throws Exception {
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.READ);
+    try {
+      MyDBRecordStream recordStream = openRecordStream(dbConnection, tableName, recordID);
+      if (recordStream == null) {
+        timer.succeeded(0, 0);
+        return null;
+      }
+      try {
+        MyDBItem info = recordStream.getItem();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                (int)Math.min(Math.max(info.getFileLength(), 0), Integer.MAX_VALUE - 8));
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        int len;
+        while ((len = recordStream.read(buf)) != -1)
+          baos.write(buf, 0, len);
+        timer.succeeded(1, baos.size());
+        return new MyDBItem(info.getRecordID(), info.getFilename(), info.getDateTimeMS(),
+                            info.getFileLength(), baos.toByteArray());
+      } finally {
+        recordStream.close();
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Reads the ID, time, filename and length of a specific (or the first)
+   * record without transferring its contents.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to read
+   * @param recordID     Record ID of the record to read. If this is < 0, then
+   *                     the first record will be read.
+   * @return             A
+   *                     {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   *                     without file bytes or <code>null</code> if no record
+   *                     was found
+   * @throws Exception 
+   */
+  protected static MyDBItem readRecordInfo(Connection dbConnection, String tableName, long recordID) throws Exception {
+    if (recordID >= 0) {
+      MyDBItem[] myDBItems = getDBItems(dbConnection, tableName, null/*srchFilename*/, recordID);
+      return (myDBItems.length > 0) ? myDBItems[0] : null;
+    }
+
+    String sql = "SELECT " + ID_COLNAME + ", " +
+                             FILETIME_COLNAME + ", " +
+                             FILENAME_COLNAME + ", " +
+                             FILELENGTH_COLNAME +
+                   " FROM " + checkTableName(tableName);
+    String operation = "readRecordInfo.first";
+    boolean unclaimed = MyDBClaims.isEnabled();
+    if (unclaimed) {
+      sql += " WHERE " + UNCLAIMED_PREDICATE;
+      operation += ".unclaimed";
+    }
+    if (isSoftDelete(tableName))
+      sql += (unclaimed ? " AND " : " WHERE ") + LIVE_PREDICATE;
+    sql += " ORDER BY " + ID_COLNAME + getDialect().getLimitClause("1");
+    LexURIFile.debug("MyDBUtil.readRecordInfo> sql[" + sql + "]");
+
+    MyDBItem myDBItem = null;
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.LIST);
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, operation, sql);
+      if (unclaimed)
+        stmt.setLong(1, System.currentTimeMillis());
+      rs = queryDB(stmt, sql);
+      if (rs != null && rs.next()) {
+        myDBItem = new MyDBItem(rs.getLong(1), rs.getString(3), rs.getLong(2), rs.getLong(4), null);
+        LexURIFile.debug("MyDBUtil.readRecordInfo> " + myDBItem.toString());
+      }
+      if (rs != null)
+        timer.succeeded((myDBItem != null) ? 1 : 0, 0);
+    } finally {
+      timer.stop();
       try {
-        stmt.close();
+        rs.close();
       } catch (Exception ex) {
       }
     }
     return myDBItem;
   }
+
+  /**
+   * Opens a specific (or the first) record of the database table for
+   * streaming. Unlike {@link #readRecord(Connection, String, long)}, the
+   * contents are not read into memory; they are read from the returned
+   * stream while the statement stays open.
+   * 
+   * <p> The caller must close the returned stream before using
+   * <code>dbConnection</code> for anything else or releasing it. For a
+   * chunked table, the chunks are read by a
+   * {@link MyDBChunkReader}, ahead on free pooled connections and otherwise
+   * on <code>dbConnection</code>.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to read
+   * @param recordID     Record ID of the record to read. If this is < 0, then
+   *                     the first record will be read.
+   * @return             A stream over the record contents or
+   *                     <code>null</code> if no record was found
+   * @throws Exception 
+   */
+  protected static MyDBRecordStream openRecordStream(Connection dbConnection,
+                                                     String tableName,
+                                                     long recordID) throws Exception {
+    // Only opening the record is timed; the contents are transferred as the
+    // caller reads the stream
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.READ);
+    ResultSet rs = null;
+    try {
+      if (isChunked(tableName)) {
+        MyDBItem info = readRecordInfo(dbConnection, tableName, recordID);
+        if (info == null) {
+          timer.succeeded(0, 0);
+          return null;
+        }
+        LexURIFile.debug("MyDBUtil.openRecordStream> chunked " + info.toString());
+        timer.succeeded(1, info.getFileLength());
+        return new MyDBRecordStream(info, null/*stmt*/, null/*rs*/,
+                new MyDBChunkReader(dbConnection, tableName, info.getRecordID(),
+                                    info.getFileLength(), getChunkSize(tableName),
+                                    (int)getLongTableProperty(tableName, "chunk.prefetch", 2)));
+      }
+
+      rs = prepareReadRecord(dbConnection, tableName, recordID, true/*streaming*/).executeQuery();
+      if (rs.next()) {
+        MyDBItem myDBItem = new MyDBItem(rs.getLong(1), rs.getString(3),
+                                         rs.getLong(2), rs.getLong(4), null);
+        LexURIFile.debug("MyDBUtil.openRecordStream> " + myDBItem.toString());
+        InputStream in = MyDBCodec.decode(getCodec(rs, tableName), openContents(rs, tableName));
+        timer.succeeded(1, myDBItem.getFileLength());
+        if (getExternalPath(rs, tableName) != null)
+          // The contents come from a file; the result set is closed now
+          return new MyDBRecordStream(myDBItem, null/*stmt*/, null/*rs*/, in);
+        // The statement belongs to the statement cache; only the result set
+        // is closed with the stream.
+        MyDBRecordStream recordStream = new MyDBRecordStream(myDBItem, null/*stmt*/, rs, in);
+        rs = null; // Now owned by recordStream
+        return recordStream;
+      }
+      timer.succeeded(0, 0);
+      return null;
+    } finally {
+      timer.stop();
+      try {
+        if (rs != null)
+          rs.close();
+      } catch (Exception ex) {
+      }
+    }
+  }
+
+  /**
+   * Returns the cached statement to read a single record including its
+   * contents, with its parameters set.
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to read
+   * @param recordID     Record ID to read or < 0 for the first record
+   * @param streaming    <code>true</code> if the contents will be streamed
+   * @return Prepared statement ready to execute
+   * @throws Exception
+   */
+  private static PreparedStatement prepareReadRecord(Connection dbConnection,
+                                                     String tableName,
+                                                     long recordID,
+                                                     boolean streaming) throws Exception {
+    String sql;
+    String col = "";
+    if (MyDBBlobStore.isEnabled(tableName)) {
+      // Contents (and codec) come from the blob table unless the record
+      // holds its own
+      col = "t.";
+      sql = "SELECT t." + ID_COLNAME + ", " +
+                   "t." + FILETIME_COLNAME + ", " +
+                   "t." + FILENAME_COLNAME + ", " +
+                   "t." + FILELENGTH_COLNAME + ", " +
+                   "COALESCE(b." + FILECONTENTS_COLNAME + ", t." + FILECONTENTS_COLNAME + "), " +
+                   (MyDBCodec.hasCodecColumn(tableName)
+                      ? "COALESCE(b." + CODEC_COLNAME + ", t." + CODEC_COLNAME + ")"
+                      : "b." + CODEC_COLNAME) +
+                   (MyDBExternalStore.hasColumns(tableName)
+                      ? ", t." + EXTERNALPATH_COLNAME + ", t." + CHECKSUM_COLNAME : "") +
+             " FROM " + checkTableName(tableName) + " t" +
+             " LEFT JOIN " + checkTableName(MyDBBlobStore.getBlobTableName(tableName)) + " b" +
+               " ON b.Hash = t." + BLOBHASH_COLNAME;
+    } else {
+      sql = "SELECT " + ID_COLNAME + ", " +
+                        FILETIME_COLNAME + ", " +
+                        FILENAME_COLNAME + ", " +
+                        FILELENGTH_COLNAME + ", " +
+                        FILECONTENTS_COLNAME +
+                        (MyDBCodec.hasCodecColumn(tableName) ? ", " + CODEC_COLNAME : "") +
+                        (MyDBExternalStore.hasColumns(tableName)
+                           ? ", " + EXTERNALPATH_COLNAME + ", " + CHECKSUM_COLNAME : "") +
+              " FROM " + checkTableName(tableName);
+    }
+    String live = isSoftDelete(tableName) ? col + LIVE_PREDICATE : null;
+    String operation;
+    if (recordID >= 0) {
+      sql += " WHERE " + col + ID_COLNAME + " = ?" + ((live != null) ? " AND " + live : "");
+      operation = "readRecord.id";
+    } else {
+      sql += ((live != null) ? " WHERE " + live : "")
+             + " ORDER BY " + col + ID_COLNAME + getDialect().getLimitClause("1");
+      operation = "readRecord.first";
+    }
+    if (streaming)
+      operation += ".stream";
+    LexURIFile.debug("MyDBUtil.prepareReadRecord> sql[" + sql + "] ID=" + recordID);
+
+    PreparedStatement stmt = prepareStatement(dbConnection, tableName, operation, sql);
+    if (streaming)
+      setStreamingFetch(stmt);
+    if (recordID >= 0)
+      stmt.setLong(1, recordID);
+    return stmt;
+  }
+
+  /**
+   * Returns the codec of the record read by the statement from
+   * {@link #prepareReadRecord(Connection, String, long, boolean)}.
+   * @param rs        Result set positioned on the record
+   * @param tableName Name of the table read
+   * @return The codec of the record or <code>null</code> if the table has
+   *         no codec column
+   * @throws Exception
+   */
+  private static String getCodec(ResultSet rs, String tableName) throws Exception {
+    return (MyDBCodec.hasCodecColumn(tableName) || MyDBBlobStore.isEnabled(tableName))
+           ? rs.getString(6) : null;
+  }
+
+  /**
+   * Returns the <code>ExternalPath</code> of the record read by the
+   * statement from {@link #prepareReadRecord(Connection, String, long, boolean)}.
+   * @param rs        Result set positioned on the record
+   * @param tableName Name of the table read
+   * @return The path of the file holding the contents or <code>null</code>
+   *         if the record holds its own contents
+   * @throws Exception
+   */
+  private static String getExternalPath(ResultSet rs, String tableName) throws Exception {
+    int column = getExternalPathColumn(tableName);
+    return (column > 0) ? rs.getString(column) : null;
+  }
+
+  /**
+   * Returns the index of the <code>ExternalPath</code> column selected by
+   * {@link #prepareReadRecord(Connection, String, long, boolean)}. It is
+   * selected whenever the table has the column, whether or not new contents
+   * are stored in files, so records written to files earlier can still be
+   * read.
+   * @param tableName Name of the table read
+   * @return The column index, followed by <code>Checksum</code>, or 0 if the
+   *         table has no <code>ExternalPath</code> column
+   * @throws Exception
+   */
+  private static int getExternalPathColumn(String tableName) throws Exception {
+    if (!MyDBExternalStore.hasColumns(tableName))
+      return 0;
+    return (MyDBCodec.hasCodecColumn(tableName) || MyDBBlobStore.isEnabled(tableName)) ? 7 : 6;
+  }
+
+  /**
+   * Opens the stored (encoded) contents of the record read by the statement
+   * from {@link #prepareReadRecord(Connection, String, long, boolean)},
+   * either from the <code>FileContents</code> column or from the file it
+   * refers to (see {@link MyDBExternalStore}).
+   * @param rs        Result set positioned on the record
+   * @param tableName Name of the table read
+   * @return A stream over the stored contents
+   * @throws Exception
+   */
+  private static InputStream openContents(ResultSet rs, String tableName) throws Exception {
+    String path = getExternalPath(rs, tableName);
+    if (path == null)
+      return rs.getBinaryStream(5);
+    return MyDBExternalStore.open(path, rs.getString(getExternalPathColumn(tableName) + 1));
+  }
+
+  /**
+   * Asks the driver to stream result set rows instead of buffering the
+   * whole result in memory, as far as the dialect supports it (see
+   * {@link MyDBDialect#setStreamingFetch(Statement)}).
+   * 
+   * @param stmt Statement to configure
+   * @throws SQLException
+   */
+  private static void setStreamingFetch(Statement stmt) throws SQLException {
+    getDialect().setStreamingFetch(stmt);
+  }
   
   /**
    * Returns an array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
@@ -315,31 +2139,105 @@ public class MyDBUtil {
                                          String tableName,
                                          String srchFilename,
                                          long srchRecordID) throws Exception {
+    return getDBItems(dbConnection, tableName, srchFilename, null/*srchPattern*/, srchRecordID);
+  }
+
+  /**
+   * Returns an array of {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   * objects which contain records matching <code>srchFilename</code>,
+   * <code>srchPattern</code> and/or <code>srchRecordID</code>. If no search
+   * criteria are specified, then all records will be returned.
+   * 
+   * <p> <code>srchPattern</code> is a VLTrader filename wildcard
+   * (<code>*</code> and <code>?</code>) or <i>[regex]</i>, which is
+   * translated to a <code>LIKE</code> or <code>REGEXP</code> predicate (see
+   * {@link #getFilenameMatch(String)}) so only candidate rows are returned.
+   * 
+   * <p> When records are claimed (see {@link MyDBClaims}), records claimed
+   * by a node are left out unless a record ID is given.
+   * 
+   * <p><b>Note:</b> The bytes of the database files will not be returned as
+   * this is used for 'directory' listings.
+   * 
+   * @param dbConnection Connection to the database
+   * @param tableName    Name of the table to query
+   * @param srchFilename Filename to match or <code>null</code> for no filename
+   *                     matching.
+   * @param srchPattern  Filename wildcard or <i>[regex]</i> to match or
+   *                     <code>null</code> for no pattern matching.
+   * @param srchRecordID Database table record ID to match or -1 for no
+   *                     record ID matching.
+   * @return             An array of
+   *                     {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   *                     objects matching the search criteria.
+   * @throws Exception 
+   */
+  protected static MyDBItem[] getDBItems(Connection dbConnection,
+                                         String tableName,
+                                         String srchFilename,
+                                         String srchPattern,
+                                         long srchRecordID) throws Exception {
     // Buid the SQL statement to select matching record(s)
+    boolean byFilename = (srchFilename != null) && (srchFilename.length() > 0);
+    boolean byID       = (srchRecordID >= 0);
+    boolean unclaimed  = !byID && MyDBClaims.isEnabled();
+    FilenameMatch match = getFilenameMatch(srchPattern);
     String sql = "SELECT " + ID_COLNAME + ", " +
                              FILETIME_COLNAME + ", " +
                              FILENAME_COLNAME + ", " +
                              FILELENGTH_COLNAME +
-                   " FROM " + tableName;
+                   " FROM " + checkTableName(tableName);
+    String operation = "getDBItems";
     boolean whereAdded = false;
-    if ((srchFilename != null) && (srchFilename.length() > 0)) {
-      sql += " WHERE (" + FILENAME_COLNAME + " = '" + srchFilename + "')";
+    if (byFilename) {
+      sql += " WHERE (" + FILENAME_COLNAME + " = ?)";
+      operation += ".filename";
+      whereAdded = true;
+    }
+    if (match != null) {
+      sql += (whereAdded) ? " AND " : " WHERE ";
+      sql += match.predicate;
+      operation += "." + match.operation;
       whereAdded = true;
     }
-    if (srchRecordID >= 0) {
+    if (unclaimed) {
       sql += (whereAdded) ? " AND " : " WHERE ";
-      sql += "(" + ID_COLNAME + " = " + srchRecordID + ")";
+      sql += UNCLAIMED_PREDICATE;
+      operation += ".unclaimed";
+      whereAdded = true;
+    }
+    if (byID) {
+      sql += (whereAdded) ? " AND " : " WHERE ";
+      sql += "(" + ID_COLNAME + " = ?)";
+      operation += ".id";
+      whereAdded = true;
+    }
+    if (isSoftDelete(tableName)) {
+      sql += (whereAdded) ? " AND " : " WHERE ";
+      sql += LIVE_PREDICATE;
     }
     sql += " ORDER BY " + ID_COLNAME;
-    LexURIFile.debug("MyDBUtil.getDBItems> sql[" + sql + "]");
+    LexURIFile.debug("MyDBUtil.getDBItems> sql[" + sql + "] filename[" + srchFilename
+                     + "] pattern[" + ((match != null) ? match.value : null)
+                     + "] ID=" + srchRecordID);
     
     ArrayList<MyDBItem> dbItems = new ArrayList<MyDBItem>();
     
-    Statement stmt = null;
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.LIST);
     ResultSet rs = null;
     try {
       // Execute the query
-      stmt = dbConnection.createStatement();
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, operation, sql);
+      stmt.setFetchSize(getFetchSize());
+      int paramIdx = 1;
+      if (byFilename)
+        stmt.setString(paramIdx++, srchFilename);
+      if (match != null)
+        stmt.setString(paramIdx++, match.value);
+      if (unclaimed)
+        stmt.setLong(paramIdx++, System.currentTimeMillis());
+      if (byID)
+        stmt.setLong(paramIdx++, srchRecordID);
       rs = queryDB(stmt, sql);
       // Loop through the results building the return array
       while (rs != null && rs.next()) {
@@ -351,35 +2249,401 @@ public class MyDBUtil {
         LexURIFile.debug("MyDBUtil.getDBItems> " + myDBItem.toString());
         dbItems.add(myDBItem);
       }
+      if (rs != null)
+        timer.succeeded(dbItems.size(), 0);
     } finally {
+      timer.stop();
       try {
         rs.close();
       } catch (Exception ex) {
       }
+    }
+    if ((rs == null) && (match != null)) {
+      // A failed pushdown must not look like an empty directory
+      LexURIFile.debug(true, "MyDBUtil.getDBItems> Pattern [" + srchPattern
+                             + "] failed in the database; listing without it");
+      return getDBItems(dbConnection, tableName, srchFilename, null/*srchPattern*/, srchRecordID);
+    }
+    
+    LexURIFile.debug("MyDBUtil.getDBItems> Found " + dbItems.size() + " item(s)");
+    return dbItems.toArray(new MyDBItem[dbItems.size()]);
+  }
+
+  /**
+   * Returns one page of the records matching <code>srchFilename</code>
+   * whose record ID is greater than <code>afterRecordID</code>, in record ID
+   * order. Pages are selected by key ("WHERE ID &gt; ? ... LIMIT ?") rather
+   * than by offset, so each page costs the same no matter how far into the
+   * table it is. When records are claimed (see {@link MyDBClaims}), records
+   * claimed by a node are left out.
+   * 
+   * <p><b>Note:</b> The bytes of the database files will not be returned as
+   * this is used for 'directory' listings.
+   * 
+   * @param dbConnection  Connection to the database
+   * @param tableName     Name of the table to query
+   * @param srchFilename  Filename to match or <code>null</code> for no
+   *                      filename matching.
+   * @param srchPattern   Filename wildcard or <i>[regex]</i> to match or
+   *                      <code>null</code> for no pattern matching.
+   * @param afterRecordID Only records with a larger ID are returned; -1 for
+   *                      the first page
+   * @param pageSize      Maximum number of records to return
+   * @return              Up to <code>pageSize</code>
+   *                      {@link examples.URISchemeExamples.com.companyabc.mydb.MyDBItem}
+   *                      objects; fewer than <code>pageSize</code> means this
+   *                      is the last page.
+   * @throws Exception 
+   */
+  protected static MyDBItem[] getDBItemsPage(Connection dbConnection,
+                                             String tableName,
+                                             String srchFilename,
+                                             String srchPattern,
+                                             long afterRecordID,
+                                             int pageSize) throws Exception {
+    boolean byFilename = (srchFilename != null) && (srchFilename.length() > 0);
+    boolean unclaimed  = MyDBClaims.isEnabled();
+    FilenameMatch match = getFilenameMatch(srchPattern);
+    String sql = "SELECT " + ID_COLNAME + ", " +
+                             FILETIME_COLNAME + ", " +
+                             FILENAME_COLNAME + ", " +
+                             FILELENGTH_COLNAME +
+                   " FROM " + checkTableName(tableName) +
+                  " WHERE (" + ID_COLNAME + " > ?)";
+    String operation = "getDBItemsPage";
+    if (byFilename) {
+      sql += " AND (" + FILENAME_COLNAME + " = ?)";
+      operation += ".filename";
+    }
+    if (match != null) {
+      sql += " AND " + match.predicate;
+      operation += "." + match.operation;
+    }
+    if (unclaimed) {
+      sql += " AND " + UNCLAIMED_PREDICATE;
+      operation += ".unclaimed";
+    }
+    if (isSoftDelete(tableName))
+      sql += " AND " + LIVE_PREDICATE;
+    sql += " ORDER BY " + ID_COLNAME + getDialect().getLimitClause("?");
+    LexURIFile.debug("MyDBUtil.getDBItemsPage> sql[" + sql + "] filename[" + srchFilename
+                     + "] afterID=" + afterRecordID + " pageSize=" + pageSize);
+
+    ArrayList<MyDBItem> dbItems = new ArrayList<MyDBItem>(pageSize);
+    MyDBMetrics.Timer timer = MyDBMetrics.start(tableName, MyDBMetrics.LIST);
+    ResultSet rs = null;
+    try {
+      PreparedStatement stmt = prepareStatement(dbConnection, tableName, operation, sql);
+      stmt.setFetchSize(Math.min(getFetchSize(), pageSize));
+      int paramIdx = 1;
+      stmt.setLong(paramIdx++, afterRecordID);
+      if (byFilename)
+        stmt.setString(paramIdx++, srchFilename);
+      if (match != null)
+        stmt.setString(paramIdx++, match.value);
+      if (unclaimed)
+        stmt.setLong(paramIdx++, System.currentTimeMillis());
+      stmt.setInt(paramIdx++, pageSize);
+      try {
+        rs = stmt.executeQuery();
+      } catch (SQLException ex) {
+        if (match == null)
+          throw ex;
+        // A failed pushdown must not look like the end of the listing
+        LexURIFile.debug(true, "MyDBUtil.getDBItemsPage> Pattern [" + srchPattern
+                               + "] failed in the database; listing without it", ex);
+      }
+      while (rs != null && rs.next())
+        dbItems.add(new MyDBItem(rs.getLong(1), rs.getString(3), rs.getLong(2), rs.getLong(4), null));
+      if (rs != null)
+        timer.succeeded(dbItems.size(), 0);
+    } finally {
+      timer.stop();
       try {
-        stmt.close();
+        if (rs != null)
+          rs.close();
       } catch (Exception ex) {
       }
     }
-    
-    LexURIFile.debug("MyDBUtil.getDBItems> Found " + dbItems.size() + " item(s)");
+    if (rs == null)
+      return getDBItemsPage(dbConnection, tableName, srchFilename, null/*srchPattern*/,
+                            afterRecordID, pageSize);
+
+    LexURIFile.debug("MyDBUtil.getDBItemsPage> Found " + dbItems.size() + " item(s)");
     return dbItems.toArray(new MyDBItem[dbItems.size()]);
   }
 
+  /**
+   * Translates a VLTrader filename wildcard into a SQL predicate on the
+   * filename column.
+   * 
+   * <ul>
+   * <li> <i>[regex]</i> becomes <code>Filename REGEXP ?</code> (or the
+   *      dialect's equivalent) with the brackets removed, provided the
+   *      expression only uses literals, escaped punctuation,
+   *      <code>.</code>, <code>^</code>, <code>$</code>, <code>|</code>,
+   *      groups, simple character classes and greedy quantifiers (see
+   *      {@link #isPortableRegex(String)}) and
+   *      <code>cleo.uri.mydb.regexp</code> is not <code>false</code></li>
+   * <li> Otherwise <code>*</code> and <code>?</code> become <code>%</code>
+   *      and <code>_</code> in a case-insensitive <code>LIKE ? ESCAPE
+   *      '!'</code> (see {@link MyDBDialect#getLikePredicate(String)}),
+   *      with any literal <code>%</code>, <code>_</code> and <code>!</code>
+   *      escaped, the pattern in lower case and non-ASCII characters
+   *      matched by <code>_</code></li>
+   * </ul>
+   * 
+   * <p> The predicate only has to narrow the rows down: VLTrader still
+   * applies its own filter to the listing, so it may match more rows than
+   * VLTrader would (for example because <code>REGEXP</code> is not anchored)
+   * but never fewer. Wildcards ignore case in VLTrader, so the
+   * <code>LIKE</code> is case-insensitive on every database, and a regular
+   * expression the database might read differently is not pushed down at
+   * all.
+   * 
+   * @param pattern Filename wildcard or <i>[regex]</i>
+   * @return The predicate to add or <code>null</code> if the pattern cannot
+   *         (or need not) be evaluated by the database
+   * @throws SQLException if the dialect cannot be created
+   */
+  protected static FilenameMatch getFilenameMatch(String pattern) throws SQLException {
+    if ((pattern == null) || (pattern.length() == 0))
+      return null;
+
+    if (pattern.startsWith("[") && pattern.endsWith("]") && (pattern.length() > 2)) {
+      String regex = pattern.substring(1, pattern.length() - 1);
+      String predicate = getDialect().getRegexpPredicate(FILENAME_COLNAME);
+      if ((predicate == null) || !getBooleanProperty("regexp", true) || !isPortableRegex(regex))
+        return null;
+      return new FilenameMatch("(" + predicate + ")", regex, "regexp");
+    }
+
+    boolean wildcardOnly = true;
+    StringBuilder like = new StringBuilder(pattern.length() + 8);
+    for (int ii = 0; ii < pattern.length(); ii++) {
+      char c = pattern.charAt(ii);
+      switch (c) {
+        case '*':
+          like.append('%');
+          break;
+        case '?':
+          like.append('_');
+          wildcardOnly = false;
+          break;
+        case '%':
+        case '_':
+        case '!':
+          like.append('!').append(c);
+          wildcardOnly = false;
+          break;
+        default:
+          // Java and the database may fold non-ASCII case differently
+          like.append((c < 0x80) ? Character.toLowerCase(c) : '_');
+          wildcardOnly = false;
+      }
+    }
+    if (wildcardOnly)
+      return null; // Just '*'; every row matches
+    return new FilenameMatch("(" + getDialect().getLikePredicate(FILENAME_COLNAME) + ")",
+                             like.toString(), "like");
+  }
+
+  /**
+   * Checks whether a Java regular expression only uses syntax that MySQL
+   * <code>REGEXP</code>, PostgreSQL <code>~</code> and H2
+   * <code>REGEXP</code> read the same way: printable ASCII literals,
+   * <code>\</code> followed by punctuation, <code>.</code>, <code>^</code>,
+   * <code>$</code>, <code>|</code>, <code>( )</code>, character classes
+   * without escapes or nested classes, and the greedy quantifiers
+   * <code>* + ?</code> and <code>{n,m}</code>. Anything else (such as
+   * <code>\d</code>, <code>(?i)</code> or <code>*?</code>) is left to
+   * VLTrader.
+   * @param regex Regular expression without the enclosing brackets
+   * @return <code>true</code> if the expression can be pushed down
+   */
+  protected static boolean isPortableRegex(String regex) {
+    boolean atom   = false; // The previous token can take a quantifier
+    boolean branch = false; // The current alternative is not empty
+    int     depth  = 0;
+    int     ii    = 0;
+    while (ii < regex.length()) {
+      char c = regex.charAt(ii++);
+      if ((c < 0x20) || (c > 0x7e))
+        return false;
+      switch (c) {
+        case '\\':
+          if ((ii == regex.length()) || Character.isLetterOrDigit(regex.charAt(ii))
+              || (regex.charAt(ii) < 0x20) || (regex.charAt(ii) > 0x7e))
+            return false;
+          ii++;
+          atom = branch = true;
+          break;
+        case '[':
+          if ((ii < regex.length()) && (regex.charAt(ii) == '^'))
+            ii++;
+          int first = ii;
+          while ((ii < regex.length()) && (regex.charAt(ii) != ']')) {
+            char cc = regex.charAt(ii++);
+            if ((cc == '[') || (cc == '\\') || (cc == '&') || (cc < 0x20) || (cc > 0x7e))
+              return false;
+          }
+          if ((ii == first) || (ii == regex.length()))
+            return false; // Empty or unclosed class
+          ii++;
+          atom = branch = true;
+          break;
+        case '(':
+          if ((ii == regex.length()) || ("?*+{|)".indexOf(regex.charAt(ii)) >= 0))
+            return false;
+          depth++;
+          atom = branch = false;
+          break;
+        case ')':
+          if ((depth == 0) || !branch)
+            return false;
+          depth--;
+          atom = branch = true;
+          break;
+        case '|':
+          if (!branch)
+            return false;
+          atom = branch = false;
+          break;
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          if (!atom)
+            return false;
+          if (c == '{') {
+            int close = regex.indexOf('}', ii);
+            if ((close < 0) || !regex.substring(ii, close).matches("\\d+(,\\d*)?"))
+              return false;
+            ii = close + 1;
+          }
+          if ((ii < regex.length()) && ("*+?{".indexOf(regex.charAt(ii)) >= 0))
+            return false; // Lazy, possessive or stacked quantifier
+          atom = false;
+          break;
+        case ']':
+        case '}':
+          return false;
+        case '^':
+        case '$':
+          atom = false;
+          branch = true;
+          break;
+        default:
+          atom = branch = true;
+      }
+    }
+    return (depth == 0) && branch;
+  }
+
+  /**
+   * Returns the number of records per page for paginated listings.
+   * @return Value of the <code>cleo.uri.mydb.pagesize</code> property
+   */
+  protected static int getPageSize() {
+    return (int)Math.max(1, getLongProperty("pagesize", 1000));
+  }
+
+  /**
+   * Returns the JDBC fetch size hint for listing queries.
+   * @return Value of the <code>cleo.uri.mydb.fetchsize</code> property
+   */
+  protected static int getFetchSize() {
+    return (int)Math.max(1, getLongProperty("fetchsize", 500));
+  }
+
+  /**
+   * Returns the cached prepared statement for an operation on a table.
+   * 
+   * <p> Statements are cached per pooled connection and keyed by table and
+   * operation, so each distinct query is parsed once per connection. The
+   * returned statement must not be closed by the caller. With MySQL, adding
+   * <code>useServerPrepStmts=true&amp;cachePrepStmts=true</code> to
+   * <code>cleo.uri.mydb.url</code> makes the driver use server-side prepared
+   * statements as well.
+   * 
+   * @param dbConnection Connection obtained from {@link #getDBConnection()}
+   * @param tableName    Name of the table the statement operates on
+   * @param operation    Name of the operation
+   * @param sql          Parameterized SQL for the statement
+   * @return A prepared statement owned by the connection's statement cache
+   * @throws SQLException
+   */
+  protected static PreparedStatement prepareStatement(Connection dbConnection,
+                                                      String tableName,
+                                                      String operation,
+                                                      String sql) throws SQLException {
+    return getStatementCache(dbConnection).prepare(tableName.toLowerCase() + ":" + operation, sql);
+  }
+
+  /**
+   * Returns the statement cache of a pooled connection.
+   * 
+   * @param dbConnection Connection obtained from {@link #getDBConnection()}
+   * @return The statement cache of the connection, or a new one-statement
+   *         cache if the connection is not pooled
+   */
+  private static MyDBStatementCache getStatementCache(Connection dbConnection) {
+    MyDBConnectionPool pool = getCurrentConnectionPool();
+    MyDBStatementCache cache = (pool != null) ? pool.getStatementCache(dbConnection) : null;
+    MyDBConnectionPool replica = getCurrentReplicaPool();
+    if ((cache == null) && (replica != null))
+      cache = replica.getStatementCache(dbConnection);
+    if (cache == null) {
+      // Not a pooled connection; the statement is closed with the connection
+      cache = new MyDBStatementCache(dbConnection, 1);
+    }
+    return cache;
+  }
+
+  /**
+   * Checks that a table name is a plain SQL identifier, since table names
+   * cannot be passed as statement parameters.
+   * 
+   * @param tableName Table name from the URI
+   * @return <code>tableName</code>
+   * @throws SQLException if the name contains characters other than letters,
+   *                      digits, '_', '$' or '.'
+   */
+  protected static String checkTableName(String tableName) throws SQLException {
+    if ((tableName == null) || !TABLE_NAME_PATTERN.matcher(tableName).matches())
+      throw new SQLException("Invalid MyDB table name '" + tableName + "'");
+    return tableName;
+  }
+
   /**
    * Executes a SQL query and returns the ResultSet.
-   * @param stmt Database connection Statement to use
-   * @param sql  SQL to execute
+   * @param stmt Prepared statement to execute
+   * @param desc Description of the query used for debugging
    * @return     A ResultSet as the result of the query or <code>null</code>
    *             if an error occurred.
    */
-  private static ResultSet queryDB(Statement stmt, String sql) {
+  private static ResultSet queryDB(PreparedStatement stmt, String desc) {
     try {
-      return stmt.executeQuery(sql);
+      return stmt.executeQuery();
     } catch (Exception ex) {
-      LexURIFile.debug("MyDBUtil.queryDB> Exception during SQL [" + sql + "]", ex);
+      LexURIFile.debug("MyDBUtil.queryDB> Exception during SQL [" + desc + "]", ex);
       return null;
     }
   }
   
+  /**
+   * A filename predicate produced by {@link MyDBUtil#getFilenameMatch(String)}.
+   */
+  protected static class FilenameMatch {
+    private final String predicate;
+    private final String value;
+    private final String operation;
+
+    private FilenameMatch(String predicate, String value, String operation) {
+      this.predicate = predicate;
+      this.value     = value;
+      this.operation = operation;
+    }
+  }
+
 }